@@ -0,0 +1,235 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package com.jcraft.jorbis;
+
+/**
+ * Vorbis type 0 mapping with a faster synthesis than the one of JOrbis.
+ *
+ * Spectra are decoded by JOrbis, but transformed with an {@link Imdct}
+ * and windowed over the window slopes only. Channels without audio are
+ * not transformed. Tables are shared by all decoders, and the transform
+ * and windowing run outside the lock of the shared mapping, so they do
+ * not block other decoders.
+ *
+ * Installed for all decoders with {@link #install()}.
+ */
+public class FastMapping0 extends Mapping0 {
+    private static final float M_PI = 3.1415927f;
+
+    // Window slopes indexed by log2 of the length
+    private static final float[][] SLOPES = new float[32][];
+
+    private static boolean installed = false;
+
+    /**
+     * Replace the type 0 mapping of JOrbis. Streams set up afterwards are
+     * decoded with the faster synthesis.
+     */
+    public static synchronized void install() {
+        if (!installed) {
+            FuncMapping.mapping_P[0] = new FastMapping0();
+            installed = true;
+        }
+    }
+
+    /**
+     * Get shared window slope. Values match the windows of JOrbis.
+     *
+     * @param length Slope length
+     * @return Rising slope
+     */
+    private static synchronized float[] getSlope(int length) {
+        int log2 = Integer.numberOfTrailingZeros(length);
+        float[] slope = SLOPES[log2];
+        if (slope == null) {
+            slope = new float[length];
+            for (int i = 0; i < length; i++) {
+                float x = (float) ((i + .5) / length * M_PI / 2.);
+                x = (float) Math.sin(x);
+                x *= x;
+                x *= M_PI / 2.;
+                x = (float) Math.sin(x);
+                slope[i] = x;
+            }
+            SLOPES[log2] = slope;
+        }
+        return slope;
+    }
+
+    @Override
+    int inverse(Block vb, Object l) {
+        DspState vd = vb.vd;
+        Info vi = vd.vi;
+        int n = vb.pcmend = vi.blocksizes[vb.W];
+
+        // Channels without audio, as bits
+        long silent;
+        synchronized (this) {
+            silent = spectrum(vb, (LookMapping0) l);
+        }
+
+        // Window slopes, as halves of the neighbouring blocks
+        int left;
+        int right;
+        if (vb.W == 0) {
+            left = n >> 1;
+            right = n >> 1;
+        } else {
+            left = vi.blocksizes[vb.lW] >> 1;
+            right = vi.blocksizes[vb.nW] >> 1;
+        }
+        int leftBegin = (n >> 2) - (left >> 1);
+        int rightBegin = n - (n >> 2) - (right >> 1);
+        int rightEnd = rightBegin + right;
+        float[] leftSlope = getSlope(left);
+        float[] rightSlope = getSlope(right);
+
+        Imdct imdct = Imdct.get(n);
+        for (int i = 0; i < vi.channels; i++) {
+            float[] pcm = vb.pcm[i];
+
+            if (i < 64 && (silent & (1L << i)) != 0) {
+                for (int j = 0; j < n; j++) {
+                    pcm[j] = 0.f;
+                }
+                continue;
+            }
+
+            imdct.backward(pcm);
+
+            for (int j = 0; j < leftBegin; j++) {
+                pcm[j] = 0.f;
+            }
+            for (int j = 0; j < left; j++) {
+                pcm[leftBegin + j] *= leftSlope[j];
+            }
+            for (int j = 0; j < right; j++) {
+                pcm[rightBegin + j] *= rightSlope[right - 1 - j];
+            }
+            for (int j = rightEnd; j < n; j++) {
+                pcm[j] = 0.f;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Decode floors and residues into spectra, as JOrbis does, in the
+     * scratch arrays of the mapping.
+     *
+     * @param vb Block
+     * @param look Mapping state
+     * @return Channels without audio, as bits
+     */
+    private long spectrum(Block vb, LookMapping0 look) {
+        Info vi = vb.vd.vi;
+        InfoMapping0 info = look.map;
+        int n = vb.pcmend;
+
+        if (pcmbundle == null || pcmbundle.length < vi.channels) {
+            pcmbundle = new float[vi.channels][];
+            nonzero = new int[vi.channels];
+            zerobundle = new int[vi.channels];
+            floormemo = new Object[vi.channels];
+        }
+
+        // Recover the spectral envelope
+        for (int i = 0; i < vi.channels; i++) {
+            float[] pcm = vb.pcm[i];
+            int submap = info.chmuxlist[i];
+
+            floormemo[i] = look.floor_func[submap].inverse1(
+                    vb, look.floor_look[submap], floormemo[i]);
+            nonzero[i] = floormemo[i] != null ? 1 : 0;
+            for (int j = 0; j < n / 2; j++) {
+                pcm[j] = 0;
+            }
+        }
+
+        for (int i = 0; i < info.coupling_steps; i++) {
+            int mag = info.coupling_mag[i];
+            int ang = info.coupling_ang[i];
+            if (nonzero[mag] != 0 || nonzero[ang] != 0) {
+                nonzero[mag] = 1;
+                nonzero[ang] = 1;
+            }
+        }
+
+        // Recover the residue, applied to the spectral envelope
+        for (int i = 0; i < info.submaps; i++) {
+            int inBundle = 0;
+            for (int j = 0; j < vi.channels; j++) {
+                if (info.chmuxlist[j] == i) {
+                    zerobundle[inBundle] = nonzero[j] != 0 ? 1 : 0;
+                    pcmbundle[inBundle++] = vb.pcm[j];
+                }
+            }
+
+            look.residue_func[i].inverse(vb, look.residue_look[i],
+                    pcmbundle, zerobundle, inBundle);
+        }
+
+        // Inverse channel coupling
+        for (int i = info.coupling_steps - 1; i >= 0; i--) {
+            float[] pcmM = vb.pcm[info.coupling_mag[i]];
+            float[] pcmA = vb.pcm[info.coupling_ang[i]];
+
+            for (int j = 0; j < n / 2; j++) {
+                float mag = pcmM[j];
+                float ang = pcmA[j];
+
+                if (mag > 0) {
+                    if (ang > 0) {
+                        pcmM[j] = mag;
+                        pcmA[j] = mag - ang;
+                    } else {
+                        pcmA[j] = mag;
+                        pcmM[j] = mag + ang;
+                    }
+                } else {
+                    if (ang > 0) {
+                        pcmM[j] = mag;
+                        pcmA[j] = mag + ang;
+                    } else {
+                        pcmA[j] = mag;
+                        pcmM[j] = mag - ang;
+                    }
+                }
+            }
+        }
+
+        // Apply the spectral envelope
+        long silent = 0;
+        for (int i = 0; i < vi.channels; i++) {
+            int submap = info.chmuxlist[i];
+            look.floor_func[submap].inverse2(
+                    vb, look.floor_look[submap], floormemo[i], vb.pcm[i]);
+
+            if (nonzero[i] == 0 && i < 64) {
+                silent |= 1L << i;
+            }
+        }
+        return silent;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package com.jcraft.jorbis;
+
+/**
+ * Inverse MDCT computed with a quarter length complex FFT.
+ *
+ * Tables depend only on the block size, so instances are shared between
+ * all decoders with {@link #get(int)}. The transform works in place in the
+ * block buffer, using its upper half as work area, so it needs no locking
+ * or scratch arrays of its own.
+ */
+final class Imdct {
+    private static final Imdct[] CACHE = new Imdct[32];
+
+    private final int n;
+
+    // Pre and post rotation, interleaved cosine and sine
+    private final float[] pre;
+    private final float[] post;
+
+    // FFT twiddles, stage with half size h at offset 2 * h
+    private final float[] twiddle;
+
+    // Bit reversal permutation of the FFT input
+    private final int[] reverse;
+
+    /**
+     * Get shared transform.
+     *
+     * @param n Block size, a power of two of at least 64
+     * @return Transform
+     */
+    static synchronized Imdct get(int n) {
+        int log2n = Integer.numberOfTrailingZeros(n);
+        Imdct imdct = CACHE[log2n];
+        if (imdct == null) {
+            imdct = new Imdct(n);
+            CACHE[log2n] = imdct;
+        }
+        return imdct;
+    }
+
+    private Imdct(int n) {
+        this.n = n;
+
+        int n4 = n >> 2;
+
+        pre = new float[n4 * 2];
+        post = new float[n4 * 2];
+        for (int k = 0; k < n4; k++) {
+            double alpha = -2 * Math.PI * (k + 0.25) / n;
+            pre[k * 2] = (float) Math.cos(alpha);
+            pre[k * 2 + 1] = (float) Math.sin(alpha);
+
+            double beta = -2 * Math.PI * k / n;
+            post[k * 2] = (float) Math.cos(beta);
+            post[k * 2 + 1] = (float) Math.sin(beta);
+        }
+
+        twiddle = new float[n4 * 2];
+        for (int h = 1; h < n4; h <<= 1) {
+            for (int j = 0; j < h; j++) {
+                double theta = -Math.PI * j / h;
+                twiddle[(h + j) * 2] = (float) Math.cos(theta);
+                twiddle[(h + j) * 2 + 1] = (float) Math.sin(theta);
+            }
+        }
+
+        int bits = Integer.numberOfTrailingZeros(n4);
+        reverse = new int[n4];
+        for (int k = 0; k < n4; k++) {
+            reverse[k] = Integer.reverse(k) >>> (32 - bits);
+        }
+    }
+
+    /**
+     * Transform the first half of a buffer holding spectral coefficients
+     * into a full block of samples.
+     *
+     * The half length DCT-IV of the coefficients is computed with a
+     * quarter length FFT, and the block is unfolded from it using the
+     * symmetries of the MDCT.
+     *
+     * @param pcm Buffer of at least the block size
+     */
+    void backward(float[] pcm) {
+        int n2 = n >> 1;
+        int n4 = n >> 2;
+        float[] pre = this.pre;
+        float[] post = this.post;
+
+        // Pre rotation of pairs from both ends into the upper half, in
+        // bit reversed order
+        for (int k = 0; k < n4; k++) {
+            float a = pcm[k * 2];
+            float b = pcm[n2 - 1 - k * 2];
+            float c = pre[k * 2];
+            float s = pre[k * 2 + 1];
+            int z = n2 + reverse[k] * 2;
+            pcm[z] = a * c - b * s;
+            pcm[z + 1] = a * s + b * c;
+        }
+
+        fft(pcm, n2, n4);
+
+        // Post rotation and unfolding. Each DCT-IV output lands in two
+        // places of the block. Outputs in the upper half overwrite the
+        // FFT values they are made from, so the values are processed in
+        // groups of four, whose outputs fill exactly the space they use.
+        int n34 = n2 + n4;
+        for (int k = 0; k < n4 >> 2; k++) {
+            int a = k;
+            int b = (n4 >> 1) - 1 - k;
+            int c = (n4 >> 1) + k;
+            int d = n4 - 1 - k;
+
+            int za = n2 + a * 2;
+            int zb = n2 + b * 2;
+            int zc = n2 + c * 2;
+            int zd = n2 + d * 2;
+
+            float ar = pcm[za] * post[a * 2] - pcm[za + 1] * post[a * 2 + 1];
+            float ai = pcm[za] * post[a * 2 + 1] + pcm[za + 1] * post[a * 2];
+            float br = pcm[zb] * post[b * 2] - pcm[zb + 1] * post[b * 2 + 1];
+            float bi = pcm[zb] * post[b * 2 + 1] + pcm[zb + 1] * post[b * 2];
+            float cr = pcm[zc] * post[c * 2] - pcm[zc + 1] * post[c * 2 + 1];
+            float ci = pcm[zc] * post[c * 2 + 1] + pcm[zc + 1] * post[c * 2];
+            float dr = pcm[zd] * post[d * 2] - pcm[zd + 1] * post[d * 2 + 1];
+            float di = pcm[zd] * post[d * 2 + 1] + pcm[zd + 1] * post[d * 2];
+
+            // Real parts are even outputs, imaginary parts odd outputs
+            // counted from the end, negated
+            lower(pcm, n2 - 1 - a * 2, -ai);
+            lower(pcm, n2 - 1 - b * 2, -bi);
+            lower(pcm, c * 2, cr);
+            lower(pcm, d * 2, dr);
+
+            pcm[n34 - 1 - a * 2] = -ar;
+            pcm[n34 + a * 2] = -ar;
+            pcm[n34 - 1 - b * 2] = -br;
+            pcm[n34 + b * 2] = -br;
+            pcm[n34 - 1 - (n2 - 1 - c * 2)] = ci;
+            pcm[n34 + (n2 - 1 - c * 2)] = ci;
+            pcm[n34 - 1 - (n2 - 1 - d * 2)] = di;
+            pcm[n34 + (n2 - 1 - d * 2)] = di;
+        }
+    }
+
+    /**
+     * Unfold a DCT-IV output of the upper half into the lower half of the
+     * block.
+     *
+     * @param pcm Block
+     * @param p Output index
+     * @param value Output value
+     */
+    private void lower(float[] pcm, int p, float value) {
+        int n4 = n >> 2;
+        pcm[p - n4] = value;
+        pcm[(n >> 1) + n4 - 1 - p] = -value;
+    }
+
+    /**
+     * Forward complex FFT in place, on input in bit reversed order.
+     *
+     * @param z Buffer of interleaved real and imaginary parts
+     * @param offset Offset of the first value
+     * @param m Number of complex values
+     */
+    private void fft(float[] z, int offset, int m) {
+        int end = offset + m * 2;
+        float[] twiddle = this.twiddle;
+
+        // First two stages as radix 4, without multiplications
+        for (int i = offset; i < end; i += 8) {
+            float r0 = z[i] + z[i + 2];
+            float i0 = z[i + 1] + z[i + 3];
+            float r1 = z[i] - z[i + 2];
+            float i1 = z[i + 1] - z[i + 3];
+            float r2 = z[i + 4] + z[i + 6];
+            float i2 = z[i + 5] + z[i + 7];
+            float r3 = z[i + 4] - z[i + 6];
+            float i3 = z[i + 5] - z[i + 7];
+
+            z[i] = r0 + r2;
+            z[i + 1] = i0 + i2;
+            z[i + 4] = r0 - r2;
+            z[i + 5] = i0 - i2;
+
+            // Multiplied by -i
+            z[i + 2] = r1 + i3;
+            z[i + 3] = i1 - r3;
+            z[i + 6] = r1 - i3;
+            z[i + 7] = i1 + r3;
+        }
+
+        // Remaining stages as radix 2
+        for (int h = 4; h < m; h <<= 1) {
+            int size = h * 4;
+            int w = h * 2;
+            for (int start = offset; start < end; start += size) {
+                int a = start;
+                int b = start + h * 2;
+                for (int j = 0; j < h; j++) {
+                    float c = twiddle[w + j * 2];
+                    float s = twiddle[w + j * 2 + 1];
+                    float br = z[b] * c - z[b + 1] * s;
+                    float bi = z[b] * s + z[b + 1] * c;
+                    float ar = z[a];
+                    float ai = z[a + 1];
+                    z[a] = ar + br;
+                    z[a + 1] = ai + bi;
+                    z[b] = ar - br;
+                    z[b + 1] = ai - bi;
+                    a += 2;
+                    b += 2;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package com.jcraft.jorbis;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jcraft.jogg.Packet;
+
+/**
+ * Decoding setup of a Vorbis stream, shared between decoders.
+ *
+ * Parsing the setup header and building codebooks, floor and residue
+ * tables is the most expensive part of starting a stream. Setups are
+ * cached by their identification and setup headers, so reconnecting to
+ * a station or decoding several streams of the same encoder parses them
+ * only once. Shared structures are only read while decoding.
+ *
+ * The {@link Info} of a setup is shared, so it must not be cleared or
+ * modified.
+ */
+public final class Setup {
+    /**
+     * Maximum number of cached setups. The least recently used setup is
+     * dropped first.
+     */
+    public static final int MAX_CACHED = 8;
+
+    private static final Map<Key, Setup> CACHE =
+        new LinkedHashMap<Key, Setup>(MAX_CACHED, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Setup> e) {
+                return size() > MAX_CACHED;
+            }
+        };
+
+    private static int hits = 0;
+    private static int misses = 0;
+
+    private final Info info;
+    private final int modebits;
+    private final Object[][] transform;
+    private final float[][][][][] window;
+    private final CodeBook[] fullbooks;
+    private final Object[] mode;
+
+    /**
+     * Cache key, compared by content.
+     */
+    private static final class Key {
+        private final byte[] data;
+        private final int hash;
+
+        private Key(byte[] data) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash &&
+                Arrays.equals(((Key) o).data, data);
+        }
+    }
+
+    private Setup(Info info, DspState template) {
+        this.info = info;
+        this.modebits = template.modebits;
+        this.transform = template.transform;
+        this.window = template.window;
+        this.fullbooks = template.fullbooks;
+        this.mode = template.mode;
+    }
+
+    /**
+     * Get setup for the setup header of a stream, parsing it only when not
+     * cached.
+     *
+     * @param info Vorbis info with the identification header read
+     * @param comment Vorbis comment with the comment header read
+     * @param identification Identification header packet data
+     * @param packet Setup header packet
+     * @return Setup, whose info replaces the given one, or null when the
+     *         header is invalid
+     */
+    public static Setup headerin(Info info, Comment comment,
+                                 byte[] identification, Packet packet) {
+        byte[] data = new byte[identification.length + packet.bytes];
+        System.arraycopy(identification, 0, data, 0, identification.length);
+        System.arraycopy(packet.packet_base, packet.packet,
+                         data, identification.length, packet.bytes);
+        Key key = new Key(data);
+
+        synchronized (CACHE) {
+            Setup setup = CACHE.get(key);
+            if (setup != null) {
+                hits++;
+                return setup;
+            }
+            misses++;
+        }
+
+        Setup setup;
+        try {
+            if (info.synthesis_headerin(comment, packet) < 0) {
+                return null;
+            }
+
+            // Built once by JOrbis, then shared
+            DspState template = new DspState();
+            template.synthesis_init(info);
+            setup = new Setup(info, template);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        synchronized (CACHE) {
+            Setup cached = CACHE.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            CACHE.put(key, setup);
+        }
+        return setup;
+    }
+
+    /**
+     * Get number of setups found in the cache.
+     *
+     * @return Hits
+     */
+    public static int getHits() {
+        synchronized (CACHE) {
+            return hits;
+        }
+    }
+
+    /**
+     * Get number of setups parsed.
+     *
+     * @return Misses
+     */
+    public static int getMisses() {
+        synchronized (CACHE) {
+            return misses;
+        }
+    }
+
+    /**
+     * Drop all cached setups. Setups in use are not affected.
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Get Vorbis info.
+     *
+     * @return Shared info
+     */
+    public Info getInfo() {
+        return info;
+    }
+
+    /**
+     * Initialize a DSP state for synthesis, like
+     * {@code DspState.synthesis_init} but with the shared tables. Also
+     * restarts synthesis, reusing the PCM buffers of the state.
+     *
+     * @param vd DSP state
+     */
+    public void synthesisInit(DspState vd) {
+        vd.vi = info;
+        vd.modebits = modebits;
+        vd.transform = transform;
+        vd.window = window;
+        vd.fullbooks = fullbooks;
+        vd.mode = mode;
+
+        if (vd.pcm != null && vd.pcm.length == info.channels &&
+            vd.pcm_storage > 0) {
+            for (int i = 0; i < vd.pcm.length; i++) {
+                Arrays.fill(vd.pcm[i], 0, vd.pcm_storage, 0.f);
+            }
+        } else {
+            vd.pcm_storage = 8192;
+            vd.pcm = new float[info.channels][vd.pcm_storage];
+        }
+
+        vd.lW = 0;
+        vd.W = 0;
+        vd.centerW = info.blocksizes[1] / 2;
+        vd.pcm_current = vd.centerW;
+
+        vd.pcm_returned = vd.centerW;
+        vd.centerW -= info.blocksizes[vd.W] / 4 + info.blocksizes[vd.lW] / 4;
+        vd.granulepos = -1;
+        vd.sequence = -1;
+    }
+
+    /**
+     * Detach a DSP state from its setup, so a reused state does not keep
+     * the setup in memory. PCM buffers are kept.
+     *
+     * @param vd DSP state
+     */
+    public static void release(DspState vd) {
+        vd.vi = null;
+        vd.fullbooks = null;
+        vd.mode = null;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast;
+
+import io.streamics.droidcast.service.StartPolicy;
+import android.media.AudioTrack;
+
+/**
+ * {@code AudioTrack} fed with decoded audio.
+ *
+ * Playback starts once the start threshold of the {@code StartPolicy} is
+ * queued. The sink buffer starts small and grows to its full size once
+ * the stable time has been written.
+ */
+public class AudioSink {
+    /**
+     * Full buffer size as a multiple of the minimum buffer size.
+     */
+    public static final int BUFFER_MULTIPLIER = 8;
+
+    private AudioTrack track;
+    private int rate;
+    private int channels;
+    private int frameSize;
+
+    private volatile long origin;
+    private volatile long written = 0;
+
+    private int startFrames;
+    private int stableFrames;
+    private int capacityFrames;
+
+    private volatile boolean started = false;
+    private boolean paused = false;
+    private boolean grown;
+
+    /**
+     * Constructor for {@code AudioSink}.
+     *
+     * @param rate Sample rate
+     * @param channels Number of channels
+     * @param origin Decoding position of the first sample written
+     * @param policy Start policy
+     */
+    public AudioSink(int rate, int channels, long origin,
+                     StartPolicy policy) {
+        this.rate = rate;
+        this.channels = channels;
+        this.frameSize = 2 * channels;
+        this.origin = origin;
+
+        int minimumFrames =
+                AudioUtils.getMinBufferSize(rate, channels) / frameSize;
+
+        this.startFrames = toFrames(policy.getStartThreshold());
+        this.stableFrames = toFrames(policy.getStableTime());
+
+        // Writes block while the buffer is full, so it must hold the start
+        // threshold before playback starts
+        int initialFrames = Math.max(toFrames(policy.getInitialBuffer()),
+                                     startFrames + minimumFrames);
+
+        this.capacityFrames = Math.max(minimumFrames * BUFFER_MULTIPLIER,
+                                       initialFrames);
+
+        this.track = AudioUtils.create(
+                rate, channels, capacityFrames * frameSize);
+        this.grown = initialFrames >= capacityFrames ||
+                !AudioUtils.setBufferSize(track, initialFrames);
+    }
+
+    /**
+     * Convert duration to frames.
+     *
+     * @param milliseconds Duration
+     * @return Frames
+     */
+    private int toFrames(int milliseconds) {
+        return (int) ((long) milliseconds * rate / 1000);
+    }
+
+    /**
+     * Get whether the sink plays the specified format.
+     *
+     * @param rate Sample rate
+     * @param channels Number of channels
+     * @return Whether audio in the format can be written
+     */
+    public boolean accepts(int rate, int channels) {
+        return rate == this.rate && channels == this.channels;
+    }
+
+    /**
+     * Get whether playback started.
+     *
+     * @return Whether started
+     */
+    public boolean isStarted() {
+        return this.started;
+    }
+
+    /**
+     * Write 16 bit PCM audio.
+     *
+     * @param data Interleaved samples
+     * @param off Offset
+     * @param len Length in bytes
+     * @return Whether playback started with this write
+     */
+    public boolean write(byte[] data, int off, int len) {
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            return false;
+        }
+
+        int frames = len / frameSize;
+        boolean start = startIfReady(written + frames);
+
+        track.write(data, off, len);
+        written += frames;
+
+        if (!grown && written >= startFrames + stableFrames) {
+            AudioUtils.setBufferSize(track, capacityFrames);
+            grown = true;
+        }
+
+        return start;
+    }
+
+    /**
+     * Start playback once enough audio is buffered, unless paused.
+     *
+     * @param frames Frames written, including those about to be written
+     * @return Whether playback started
+     */
+    private synchronized boolean startIfReady(long frames) {
+        if (started || paused || frames < startFrames) {
+            return false;
+        }
+
+        track.play();
+        started = true;
+        return true;
+    }
+
+    /**
+     * Pause playback, also while buffering before playback starts. Writes
+     * block once the buffer is full.
+     */
+    public synchronized void pause() {
+        paused = true;
+        if (started && track.getState() == AudioTrack.STATE_INITIALIZED) {
+            track.pause();
+        }
+    }
+
+    /**
+     * Resume playback after {@link #pause()}.
+     *
+     * @return Whether playback started, as the start threshold was
+     *         reached while paused
+     */
+    public synchronized boolean resume() {
+        paused = false;
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            return false;
+        }
+
+        if (started) {
+            track.play();
+            return false;
+        }
+        return startIfReady(written);
+    }
+
+    /**
+     * Start a new stream on this sink: the sample written next has
+     * decoding position zero.
+     */
+    public void restart() {
+        this.origin = -written;
+    }
+
+    /**
+     * Get number of channels.
+     *
+     * @return Channels
+     */
+    public int getChannels() {
+        return this.channels;
+    }
+
+    /**
+     * Get sample rate.
+     *
+     * @return Samples per second
+     */
+    public int getRate() {
+        return this.rate;
+    }
+
+    /**
+     * Get amount of audio written but not played yet.
+     *
+     * @return Samples per channel
+     */
+    public long getQueuedFrames() {
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            return 0;
+        }
+
+        long head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        return Math.max(0, written - head);
+    }
+
+    /**
+     * Get time until the specified decoding position is audible.
+     *
+     * @param position Sample position
+     * @return Delay in milliseconds
+     */
+    public long getPlaybackDelay(long position) {
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            return 0;
+        }
+
+        long head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        long pending = position - origin - head;
+        if (pending <= 0) {
+            return 0;
+        }
+
+        return pending * 1000 / rate;
+    }
+
+    /**
+     * Release audio track.
+     */
+    public void release() {
+        if (track.getState() == AudioTrack.STATE_INITIALIZED) {
+            track.release();
+        }
+    }
+}
@@ -24,32 +24,79 @@ package io.streamics.droidcast;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Build;
 
-import com.jcraft.jorbis.Info;
+import io.streamics.droidcast.core.decoder.Converter;
 
 public class AudioUtils {
     /**
-     * Initialize an {@code AudioTrack} from Vorbis {@code Info}.
+     * Get channel configuration for a number of channels, downmixed as by
+     * {@link Converter#getOutputChannels(int)}.
      *
-     * @param info Vorbis info
-     * @return Audio track
+     * @param channels Number of channels
+     * @return {@code AudioFormat} channel configuration
      */
-    public static AudioTrack fromVorbisInfo(Info info) {
-        int encoding = AudioFormat.ENCODING_PCM_16BIT;
-        int rate = info.rate;
-
-        int channel;
-        if (info.channels == 2) {
-            channel = AudioFormat.CHANNEL_OUT_STEREO;
+    public static int getChannelConfig(int channels) {
+        if (Converter.getOutputChannels(channels) == 2) {
+            return AudioFormat.CHANNEL_OUT_STEREO;
         } else {
-            channel = AudioFormat.CHANNEL_OUT_MONO;
+            return AudioFormat.CHANNEL_OUT_MONO;
         }
+    }
+
+    /**
+     * Get minimum {@code AudioTrack} buffer size for 16 bit PCM.
+     *
+     * @param rate Sample rate
+     * @param channels Number of channels
+     * @return Buffer size in bytes
+     */
+    public static int getMinBufferSize(int rate, int channels) {
+        return AudioTrack.getMinBufferSize(
+                rate, getChannelConfig(channels),
+                AudioFormat.ENCODING_PCM_16BIT);
+    }
+
+    /**
+     * Get native output sample rate of the music stream.
+     *
+     * @return Sample rate
+     */
+    public static int getNativeRate() {
+        return AudioTrack.getNativeOutputSampleRate(
+                AudioManager.STREAM_MUSIC);
+    }
+
+    /**
+     * Initialize a 16 bit PCM {@code AudioTrack}.
+     *
+     * @param rate Sample rate
+     * @param channels Number of channels
+     * @param bufferSize Buffer size in bytes
+     * @return Audio track
+     */
+    public static AudioTrack create(int rate, int channels, int bufferSize) {
+        int encoding = AudioFormat.ENCODING_PCM_16BIT;
+        int channel = getChannelConfig(channels);
 
-        int bufferSize = AudioTrack.getMinBufferSize(rate, channel, encoding);
-        bufferSize *= 8;
+        bufferSize = Math.max(bufferSize, getMinBufferSize(rate, channels));
 
         return new AudioTrack(AudioManager.STREAM_MUSIC,
                               rate, channel, encoding, bufferSize,
                               AudioTrack.MODE_STREAM);
     }
+
+    /**
+     * Limit the part of the {@code AudioTrack} buffer used for playback.
+     *
+     * @param track Audio track
+     * @param frames Buffer size in frames, up to the allocated size
+     * @return Whether the buffer size was changed, requires Android 7.0
+     */
+    public static boolean setBufferSize(AudioTrack track, int frames) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return false;
+        }
+        return track.setBufferSizeInFrames(frames) > 0;
+    }
 }
\ No newline at end of file
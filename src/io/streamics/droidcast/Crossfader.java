@@ -0,0 +1,384 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast;
+
+import android.os.SystemClock;
+
+import io.streamics.droidcast.core.decoder.Watchdog;
+
+/**
+ * Crossfade between the audio of two decoders sharing an
+ * {@code AudioSink}.
+ *
+ * <ol>
+ *   <li>
+ *     The incoming decoder passes its audio to {@link #fadeIn}, which
+ *     queues it while the crossfade is active.
+ *   </li>
+ *
+ *   <li>
+ *     The outgoing decoder writes to the sink through {@link #fadeOut}.
+ *     Once enough incoming audio is queued, its audio is mixed with the
+ *     queued audio over the crossfade window.
+ *   </li>
+ *
+ *   <li>
+ *     When the window ends, the incoming decoder does not keep up, or the
+ *     outgoing decoder ends or stalls past the deadline, the crossfade
+ *     finishes. The outgoing decoder stops writing and the
+ *     incoming decoder writes the queued audio and its own audio to the
+ *     sink.
+ *   </li>
+ * </ol>
+ *
+ * Buffers are kept between crossfades, so mixing does not allocate.
+ */
+public class Crossfader {
+    /**
+     * Outgoing audio was written unchanged.
+     */
+    public static final int PASS = 0;
+
+    /**
+     * First mixed block was written, the incoming audio starts with it.
+     */
+    public static final int START = 1;
+
+    /**
+     * Mixed block was written.
+     */
+    public static final int MIXED = 2;
+
+    /**
+     * Outgoing audio was dropped, the crossfade is finished.
+     */
+    public static final int CUT = 3;
+
+    private static final int IDLE = 0;
+    private static final int QUEUEING = 1;
+    private static final int FADING = 2;
+    private static final int FINISHED = 3;
+
+    private static final int PREFILL = 200;
+    private static final int CURVE_SIZE = 1024;
+    private static final long WAIT_TIMEOUT = 100;
+
+    private static final float MAX_16BIT = 32767;
+    private static final float MIN_16BIT = -32768;
+
+    // Equal power fade in curve
+    private static final float[] CURVE = new float[CURVE_SIZE + 1];
+    static {
+        for (int i = 0; i <= CURVE_SIZE; i++) {
+            CURVE[i] = (float) Math.sin(Math.PI / 2 * i / CURVE_SIZE);
+        }
+    }
+
+    // Waiting for queue space
+    private final Object lock = new Object();
+
+    // Writing to the sink
+    private final Object writeLock = new Object();
+    private volatile int state = IDLE;
+
+    private int channels;
+    private int prefillFrames;
+    private int fadeFrames;
+    private int faded;
+    private long deadline;
+
+    // Queued incoming audio
+    private short[] queue = new short[0];
+    private int queueFrames;
+    private volatile long queued;
+    private volatile long consumed;
+
+    private byte[] buffer = new byte[0];
+
+    /**
+     * Prepare a crossfade.
+     *
+     * @param rate Sample rate
+     * @param channels Number of channels
+     * @param duration Crossfade window in milliseconds
+     */
+    public void prepare(int rate, int channels, int duration) {
+        this.channels = channels;
+        this.prefillFrames = PREFILL * rate / 1000;
+        this.fadeFrames = Math.max(1, (int) ((long) duration * rate / 1000));
+        this.faded = 0;
+        this.deadline = SystemClock.elapsedRealtime() + duration +
+                Watchdog.MAX_TIMEOUT;
+
+        // Room for the window, the prefill and some slack
+        int frames = Integer.highestOneBit(
+                fadeFrames + 2 * prefillFrames) << 1;
+        if (queue.length < frames * channels) {
+            queue = new short[frames * channels];
+        }
+        queueFrames = queue.length / channels;
+        queued = 0;
+        consumed = 0;
+
+        state = QUEUEING;
+    }
+
+    /**
+     * Get whether a crossfade is prepared or running.
+     *
+     * @return Whether active
+     */
+    public boolean isActive() {
+        int current = state;
+        return current == QUEUEING || current == FADING;
+    }
+
+    /**
+     * Finish the crossfade, cutting to the incoming audio.
+     */
+    public void finish() {
+        if (isActive()) {
+            state = FINISHED;
+        }
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Cancel the crossfade, dropping the queued incoming audio.
+     */
+    public void cancel() {
+        state = IDLE;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Pass incoming audio. Called by the incoming decoder, blocks while
+     * the queue is full, until the deadline of the crossfade.
+     *
+     * Once the crossfade is finished, writes the queued audio to the sink
+     * and returns false: the caller writes its audio to the sink itself.
+     *
+     * @param sink Sink
+     * @param data Interleaved 16 bit samples
+     * @param off Offset
+     * @param len Length in bytes
+     * @return Whether the audio was queued
+     */
+    public boolean fadeIn(AudioSink sink, byte[] data, int off, int len) {
+        if (state == IDLE) {
+            return false;
+        }
+
+        int frames = len / (2 * channels);
+        int frame = 0;
+
+        while (frame < frames) {
+            int current = state;
+            if (current == FINISHED) {
+                drain(sink);
+                if (frame == 0) {
+                    return false;
+                }
+                // Rest of the block follows the queued part
+                sink.write(data, off + frame * 2 * channels,
+                           len - frame * 2 * channels);
+                return true;
+            }
+            if (current == IDLE) {
+                return frame > 0;
+            }
+
+            int space = (int) (queueFrames - (queued - consumed));
+            if (space == 0) {
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    // Outgoing decoder stalled, cut to the queued audio
+                    finish();
+                    continue;
+                }
+                synchronized (lock) {
+                    if (state == current &&
+                        queued - consumed == queueFrames) {
+                        try {
+                            lock.wait(WAIT_TIMEOUT);
+                        } catch (InterruptedException e) {
+                            return true;
+                        }
+                    }
+                }
+                continue;
+            }
+
+            int count = Math.min(space, frames - frame);
+            int ptr = off + frame * 2 * channels;
+            for (int n = 0; n < count; n++) {
+                int index = (int) ((queued + n) % queueFrames) * channels;
+                for (int c = 0; c < channels; c++) {
+                    queue[index + c] = (short)
+                            ((data[ptr] & 0xFF) | (data[ptr + 1] << 8));
+                    ptr += 2;
+                }
+            }
+
+            queued += count;
+            frame += count;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write the queued incoming audio to the sink.
+     *
+     * @param sink Sink
+     */
+    private void drain(AudioSink sink) {
+        synchronized (writeLock) {
+            int frameSize = 2 * channels;
+            if (buffer.length < queueFrames * frameSize) {
+                buffer = new byte[queueFrames * frameSize];
+            }
+
+            int frames = (int) (queued - consumed);
+            int ptr = 0;
+            for (int n = 0; n < frames; n++) {
+                int index = (int) ((consumed + n) % queueFrames) * channels;
+                for (int c = 0; c < channels; c++) {
+                    short sample = queue[index + c];
+                    buffer[ptr] = (byte) sample;
+                    buffer[ptr + 1] = (byte) (sample >>> 8);
+                    ptr += 2;
+                }
+            }
+            consumed = queued;
+            state = IDLE;
+
+            if (ptr > 0) {
+                sink.write(buffer, 0, ptr);
+            }
+        }
+    }
+
+    /**
+     * Write outgoing audio to the sink, mixed with the queued incoming
+     * audio while fading. Called by the outgoing decoder.
+     *
+     * @param sink Sink
+     * @param data Interleaved 16 bit samples
+     * @param off Offset
+     * @param len Length in bytes
+     * @return {@link #PASS}, {@link #START}, {@link #MIXED} or
+     *         {@link #CUT} once the outgoing decoder can be stopped
+     */
+    public int fadeOut(AudioSink sink, byte[] data, int off, int len) {
+        synchronized (writeLock) {
+            int current = state;
+            if (current == FINISHED || current == IDLE) {
+                return CUT;
+            }
+
+            int frames = len / (2 * channels);
+            long available = queued - consumed;
+
+            if (current == QUEUEING && available < prefillFrames) {
+                sink.write(data, off, len);
+                return PASS;
+            }
+
+            if (available < frames) {
+                // Incoming decoder does not keep up
+                finish();
+                return CUT;
+            }
+
+            int result = MIXED;
+            if (current == QUEUEING) {
+                state = FADING;
+                sink.restart();
+                result = START;
+            }
+
+            if (buffer.length < len) {
+                buffer = new byte[len];
+            }
+
+            mix(data, off, frames);
+            sink.write(buffer, 0, frames * 2 * channels);
+
+            synchronized (lock) {
+                consumed += frames;
+                if (faded >= fadeFrames) {
+                    state = FINISHED;
+                }
+                lock.notifyAll();
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Mix outgoing audio with queued incoming audio into the buffer.
+     *
+     * @param data Interleaved 16 bit samples
+     * @param off Offset
+     * @param frames Number of frames
+     */
+    private void mix(byte[] data, int off, int frames) {
+        int ptr = off;
+        int dst = 0;
+
+        for (int n = 0; n < frames; n++) {
+            float in = 1;
+            float out = 0;
+            if (faded < fadeFrames) {
+                int step = (int) ((long) faded * CURVE_SIZE / fadeFrames);
+                in = CURVE[step];
+                out = CURVE[CURVE_SIZE - step];
+                faded++;
+            }
+
+            int index = (int) ((consumed + n) % queueFrames) * channels;
+            for (int c = 0; c < channels; c++) {
+                short sample = (short)
+                        ((data[ptr] & 0xFF) | (data[ptr + 1] << 8));
+                float value = sample * out + queue[index + c] * in;
+
+                if (value > MAX_16BIT) {
+                    value = MAX_16BIT;
+                }
+                if (value < MIN_16BIT) {
+                    value = MIN_16BIT;
+                }
+
+                int val = (int) value;
+                buffer[dst] = (byte) val;
+                buffer[dst + 1] = (byte) (val >>> 8);
+                ptr += 2;
+                dst += 2;
+            }
+        }
+    }
+}
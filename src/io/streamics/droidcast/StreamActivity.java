@@ -22,10 +22,14 @@
 package io.streamics.droidcast;
 
 import io.streamics.droidcast.core.decoder.Meta;
+import io.streamics.droidcast.service.MetaHistory;
 import io.streamics.droidcast.service.StreamServiceClient;
 import io.streamics.droidcast.service.StreamServiceClient.ServiceEventHandler;
 import io.streamics.droidcast.service.StreamServiceClient.StreamEventHandler;
 import io.streamics.droidcast.service.StreamServiceClientException;
+
+import java.util.List;
+
 import android.app.Activity;
 import android.os.Bundle;
 
@@ -138,6 +142,19 @@ public class StreamActivity extends Activity
         // To be overridden by activity
     }
 
+    @Override
+    public void onStreamCoverArtReceived(String uri) {
+        // To be overridden by activity
+    }
+
+    @Override
+    public void onStreamHistoryReceived(
+            String url, int offset, int total,
+            List<MetaHistory.Entry> entries) {
+
+        // To be overridden by activity
+    }
+
     @Override
     public void onStreamError() {
         // To be overridden by activity
@@ -148,8 +165,35 @@ public class StreamActivity extends Activity
         // To be overridden by activity
     }
 
+    @Override
+    public void onStreamPlaying(long timeToFirstAudio) {
+        // To be overridden by activity
+    }
+
+    @Override
+    public void onStreamPause() {
+        // To be overridden by activity
+    }
+
+    @Override
+    public void onStreamResume() {
+        // To be overridden by activity
+    }
+
+    @Override
+    public void onStreamStall(long stallTime, boolean reconnecting) {
+        // To be overridden by activity
+    }
+
     @Override
     public void onStreamStop() {
         // To be overridden by activity
     }
-}
\ No newline at end of file
+
+    @Override
+    public void onStreamLevelsReceived(
+            float[] peak, float[] rms, float[] spectrum) {
+
+        // To be overridden by activity
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+/**
+ * Level meter and spectrum analyzer for visualizations.
+ *
+ * Peak and RMS levels are measured by the {@link Converter} while
+ * converting audio, together with a decimated mono copy of the output.
+ * The decoding thread only hands these over without locking. Spectrum
+ * analysis and publishing are done on a separate low priority thread,
+ * at a bounded rate.
+ */
+public class Analyzer implements Runnable {
+    /**
+     * Analysis listener.
+     */
+    public static interface Listener {
+        /**
+         * Called from the analyzer thread with the levels since the last
+         * call. The arrays are reused and only valid during the call.
+         *
+         * @param peak Peak level per channel, 0 to 1
+         * @param rms RMS level per channel, 0 to 1
+         * @param spectrum Level per band, 0 to 1, or null if disabled
+         */
+        public void onLevels(float[] peak, float[] rms, float[] spectrum);
+    }
+
+    public static final int CHANNELS = 2;
+    public static final int BANDS = 16;
+    public static final int MAX_RATE = 30;
+
+    static final int DECIMATION = 2;
+
+    private static final int FFT_SIZE = 512;
+    private static final int FFT_BITS = 9;
+    private static final int RING_SIZE = 4096;
+    private static final float MIN_FREQUENCY = 40;
+    private static final float DYNAMIC_RANGE = 72;
+
+    private Listener listener;
+    private long interval;
+    private boolean spectrumEnabled;
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    // Written by the decoding thread, guarded by sequence
+    private float[] peak = new float[CHANNELS];
+    private float[] squares = new float[CHANNELS];
+    private int frames = 0;
+    private int channels = CHANNELS;
+    private volatile int rate = 0;
+    private volatile int sequence = 0;
+    private volatile int taken = -1;
+
+    // Decimated mono samples
+    private float[] ring = new float[RING_SIZE];
+    private int ringPosition = 0;
+    private volatile int ringWritten = 0;
+
+    // Analyzer thread state
+    private float[] outPeak = new float[CHANNELS];
+    private float[] outRms = new float[CHANNELS];
+    private float[] outSquares = new float[CHANNELS];
+    private float[] outSpectrum = new float[BANDS];
+    private float[] window = new float[FFT_SIZE];
+    private float[] cos = new float[FFT_SIZE / 2];
+    private float[] sin = new float[FFT_SIZE / 2];
+    private int[] reverse = new int[FFT_SIZE];
+    private float[] real = new float[FFT_SIZE];
+    private float[] imag = new float[FFT_SIZE];
+
+    /**
+     * Constructor.
+     *
+     * @param listener Listener
+     * @param rate Maximum number of updates per second
+     * @param spectrum Whether spectrum is analyzed
+     */
+    public Analyzer(Listener listener, int rate, boolean spectrum) {
+        this.listener = listener;
+        this.interval = 1000 / Math.max(1, Math.min(rate, MAX_RATE));
+        this.spectrumEnabled = spectrum;
+
+        for (int i = 0; i < FFT_SIZE; i++) {
+            // Hann window
+            window[i] = (float) (0.5 - 0.5 * Math.cos(
+                    2 * Math.PI * i / (FFT_SIZE - 1)));
+            reverse[i] = Integer.reverse(i) >>> (32 - FFT_BITS);
+        }
+        for (int i = 0; i < FFT_SIZE / 2; i++) {
+            cos[i] = (float) Math.cos(2 * Math.PI * i / FFT_SIZE);
+            sin[i] = (float) -Math.sin(2 * Math.PI * i / FFT_SIZE);
+        }
+    }
+
+    /**
+     * Start analyzer thread.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(this, "Analyzer");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop analyzer thread.
+     */
+    public synchronized void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Hand over levels of a converted block. Called by the decoding thread.
+     *
+     * @param blockPeak Peak per channel
+     * @param blockSquares Sum of squares per channel
+     * @param blockChannels Number of channels
+     * @param blockFrames Number of frames
+     * @param blockRate Sample rate
+     */
+    void update(float[] blockPeak, float[] blockSquares,
+                int blockChannels, int blockFrames, int blockRate) {
+        int current = sequence;
+        boolean reset = taken == current;
+
+        // Odd sequence while writing
+        sequence = current + 1;
+
+        for (int c = 0; c < CHANNELS; c++) {
+            // Mono is shown on both channels
+            int source = c < blockChannels ? c : 0;
+            if (reset) {
+                peak[c] = 0;
+                squares[c] = 0;
+            }
+            if (blockPeak[source] > peak[c]) {
+                peak[c] = blockPeak[source];
+            }
+            squares[c] += blockSquares[source];
+        }
+        frames = reset ? blockFrames : frames + blockFrames;
+        channels = blockChannels;
+
+        ringWritten = ringPosition;
+        rate = blockRate;
+        sequence = current + 2;
+    }
+
+    /**
+     * Add a decimated mono sample. Called by the decoding thread.
+     *
+     * @param sample Sample
+     */
+    void sample(float sample) {
+        ring[ringPosition & (RING_SIZE - 1)] = sample;
+        ringPosition++;
+    }
+
+    /**
+     * Analyzer loop.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (take()) {
+                float[] spectrum = null;
+                if (spectrumEnabled && rate > 0) {
+                    analyze(ringWritten, rate / DECIMATION);
+                    spectrum = outSpectrum;
+                }
+                listener.onLevels(outPeak, outRms, spectrum);
+            }
+        }
+    }
+
+    /**
+     * Take levels handed over since the last call.
+     *
+     * @return False if no audio was converted
+     */
+    private boolean take() {
+        int count = 0;
+        int current;
+
+        do {
+            current = sequence;
+            if ((current & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            count = frames;
+            for (int c = 0; c < CHANNELS; c++) {
+                outPeak[c] = peak[c];
+                outSquares[c] = squares[c];
+            }
+        } while (current != sequence || (current & 1) != 0);
+
+        if (taken == current) {
+            return false;
+        }
+        taken = current;
+
+        for (int c = 0; c < CHANNELS; c++) {
+            outRms[c] = count > 0
+                    ? (float) Math.sqrt(outSquares[c] / count) : 0;
+        }
+        return true;
+    }
+
+    /**
+     * Compute spectrum of the latest decimated samples.
+     *
+     * @param end Ring position after the latest sample
+     * @param sampleRate Rate of the decimated samples
+     */
+    private void analyze(int end, int sampleRate) {
+        int start = end - FFT_SIZE;
+        for (int i = 0; i < FFT_SIZE; i++) {
+            int j = reverse[i];
+            real[j] = ring[(start + i) & (RING_SIZE - 1)] * window[i];
+            imag[j] = 0;
+        }
+
+        // Iterative radix-2 FFT
+        for (int size = 2; size <= FFT_SIZE; size <<= 1) {
+            int half = size >> 1;
+            int step = FFT_SIZE / size;
+            for (int i = 0; i < FFT_SIZE; i += size) {
+                for (int k = 0; k < half; k++) {
+                    float wr = cos[k * step];
+                    float wi = sin[k * step];
+                    int a = i + k;
+                    int b = a + half;
+                    float tr = real[b] * wr - imag[b] * wi;
+                    float ti = real[b] * wi + imag[b] * wr;
+                    real[b] = real[a] - tr;
+                    imag[b] = imag[a] - ti;
+                    real[a] += tr;
+                    imag[a] += ti;
+                }
+            }
+        }
+
+        // Logarithmically spaced bands
+        float nyquist = sampleRate / 2f;
+        float ratio = (float) Math.pow(nyquist / MIN_FREQUENCY, 1.0 / BANDS);
+        float scale = 4f / FFT_SIZE;
+        float low = MIN_FREQUENCY;
+
+        for (int band = 0; band < BANDS; band++) {
+            float high = low * ratio;
+            int first = (int) (low * FFT_SIZE / sampleRate);
+            int last = Math.max(first,
+                    Math.min((int) (high * FFT_SIZE / sampleRate),
+                             FFT_SIZE / 2 - 1));
+
+            float max = 0;
+            for (int bin = first; bin <= last; bin++) {
+                float magnitude = real[bin] * real[bin] + imag[bin] * imag[bin];
+                if (magnitude > max) {
+                    max = magnitude;
+                }
+            }
+
+            float level = (float) (10 * Math.log10(
+                    Math.max(max * scale * scale, 1e-12)));
+            outSpectrum[band] = Math.max(0,
+                    Math.min(1, 1 + level / DYNAMIC_RANGE));
+            low = high;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+/**
+ * Conversion of decoded Vorbis audio to interleaved 16 bit PCM.
+ *
+ * Streams with more than two channels are downmixed to stereo according
+ * to the Vorbis channel order, and audio is resampled to the output rate
+ * when it differs from the stream rate or a rate correction is set.
+ * Downmixing, resampling, {@link Gain} and conversion are done while
+ * writing the output, so each sample is converted only once. Output
+ * levels are measured in the same pass for an {@link Analyzer}.
+ */
+public class Converter {
+    private static final float C = 0.7071f;
+
+    /**
+     * Stereo downmix coefficients indexed by number of channels, in the
+     * channel order defined by the Vorbis I specification.
+     */
+    private static final float[][][] DOWNMIX = new float[][][] {
+        null, null, null,
+        // L, C, R
+        { { 1, C, 0 }, { 0, C, 1 } },
+        // FL, FR, RL, RR
+        { { 1, 0, C, 0 }, { 0, 1, 0, C } },
+        // FL, C, FR, RL, RR
+        { { 1, C, 0, C, 0 }, { 0, C, 1, 0, C } },
+        // FL, C, FR, RL, RR, LFE
+        { { 1, C, 0, C, 0, 0 }, { 0, C, 1, 0, C, 0 } },
+        // FL, C, FR, SL, SR, RC, LFE
+        { { 1, C, 0, C, 0, 0.5f, 0 }, { 0, C, 1, 0, C, 0.5f, 0 } },
+        // FL, C, FR, SL, SR, RL, RR, LFE
+        { { 1, C, 0, C, 0, C, 0, 0 }, { 0, C, 1, 0, C, 0, C, 0 } }
+    };
+
+    private static final float MAX_16BIT = 32767;
+    private static final float MIN_16BIT = -32768;
+
+    private int channels;
+    private int outputChannels;
+    private float[][] matrix;
+
+    private int outputRate;
+    private double rateRatio;
+    private Resampler resampler = null;
+
+    // Gain envelope
+    private Gain gain;
+    private float replayGain;
+    private int gainVersion;
+    private float gainValue = 1;
+    private float gainTarget = 1;
+    private float gainStep = 0;
+    private int gainRemaining = 0;
+
+    // Levels
+    private Analyzer analyzer = null;
+    private float[] peak = new float[Analyzer.CHANNELS];
+    private float[] squares = new float[Analyzer.CHANNELS];
+    private float frameSum = 0;
+    private float decimationSum = 0;
+    private int decimationCount = 0;
+
+    /**
+     * Get number of output channels for a number of stream channels.
+     *
+     * @param channels Stream channels
+     * @return Output channels
+     */
+    public static int getOutputChannels(int channels) {
+        return channels > 2 ? 2 : channels;
+    }
+
+    /**
+     * Constructor for {@code Converter}.
+     *
+     * @param channels Stream channels
+     * @param rate Stream sample rate
+     * @param outputRate Output sample rate
+     * @param gain Gain
+     * @param replayGain ReplayGain of the track
+     */
+    public Converter(int channels, int rate, int outputRate, Gain gain,
+                     float replayGain) {
+        this.channels = channels;
+        this.outputRate = outputRate;
+        this.gain = gain;
+        this.replayGain = replayGain;
+
+        // Start at the current gain, only later changes ramp
+        this.gainVersion = gain.getVersion();
+        this.gainTarget = gain.getTarget(replayGain);
+        this.gainValue = this.gainTarget;
+
+        this.outputChannels = getOutputChannels(channels);
+        this.matrix = createMatrix(channels);
+
+        this.rateRatio = (double) outputRate / rate;
+        if (outputRate != rate) {
+            this.resampler = new Resampler(outputChannels, rateRatio);
+            this.resampler.setRatio(rateRatio);
+        }
+    }
+
+    /**
+     * Create downmix matrix normalized so that output cannot clip more
+     * than input.
+     *
+     * @param channels Stream channels
+     * @return Matrix or {@code null} when channels are passed through
+     */
+    private static float[][] createMatrix(int channels) {
+        if (channels <= 2) {
+            return null;
+        }
+
+        float[][] matrix = new float[2][channels];
+        if (channels < DOWNMIX.length) {
+            for (int o = 0; o < 2; o++) {
+                float sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += DOWNMIX[channels][o][c];
+                }
+                for (int c = 0; c < channels; c++) {
+                    matrix[o][c] = DOWNMIX[channels][o][c] / sum;
+                }
+            }
+        } else {
+            // Channel order is application defined
+            matrix[0][0] = 1;
+            matrix[1][1] = 1;
+        }
+        return matrix;
+    }
+
+    /**
+     * Get number of output channels.
+     *
+     * @return Channels
+     */
+    public int getOutputChannels() {
+        return this.outputChannels;
+    }
+
+    /**
+     * Set analyzer the output levels are handed over to.
+     *
+     * @param analyzer Analyzer or null
+     */
+    public void setAnalyzer(Analyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Set rate correction, resampling from then on.
+     *
+     * @param ratio Output samples per decoded sample at the output rate
+     */
+    public void setRateCorrection(double ratio) {
+        if (resampler == null) {
+            resampler = new Resampler(outputChannels, 1.0);
+        }
+        resampler.setRatio(rateRatio * ratio);
+    }
+
+    /**
+     * Get the maximum number of output samples for an input block.
+     *
+     * @param samples Input samples per channel
+     * @return Output samples per channel
+     */
+    public int getMaxOutput(int samples) {
+        Resampler current = resampler;
+        if (current == null) {
+            return samples;
+        }
+        return current.getMaxOutput(samples);
+    }
+
+    /**
+     * Convert a block of audio.
+     *
+     * @param pcm Samples per channel
+     * @param index Offset in each channel
+     * @param samples Samples per channel
+     * @param out Output, at least {@link #getMaxOutput(int)} frames long
+     * @return Frames written
+     */
+    public int convert(float[][] pcm, int[] index, int samples, byte[] out) {
+        updateGain();
+
+        int frames;
+        Resampler current = resampler;
+        if (current == null) {
+            frames = convertDirect(pcm, index, samples, out);
+        } else {
+            frames = convertResampled(current, pcm, index, samples, out);
+        }
+
+        if (analyzer != null) {
+            analyzer.update(peak, squares, outputChannels, frames, outputRate);
+        }
+        for (int o = 0; o < outputChannels; o++) {
+            peak[o] = 0;
+            squares[o] = 0;
+        }
+
+        return frames;
+    }
+
+    /**
+     * Downmix and convert.
+     */
+    private int convertDirect(float[][] pcm, int[] index, int samples,
+                              byte[] out) {
+        int ptr = 0;
+
+        if (matrix == null) {
+            for (int n = 0; n < samples; n++) {
+                float g = nextGain();
+                for (int o = 0; o < outputChannels; o++) {
+                    ptr = store(out, ptr, o, g * pcm[o][index[o] + n]);
+                }
+                endFrame();
+            }
+        } else {
+            for (int n = 0; n < samples; n++) {
+                float g = nextGain();
+                for (int o = 0; o < outputChannels; o++) {
+                    ptr = store(out, ptr, o,
+                                g * mix(matrix[o], pcm, index, n));
+                }
+                endFrame();
+            }
+        }
+
+        return samples;
+    }
+
+    /**
+     * Downmix into the resampler, then resample and convert.
+     */
+    private int convertResampled(Resampler resampler, float[][] pcm,
+                                 int[] index, int samples, byte[] out) {
+        int offset = resampler.buffer(samples);
+        float[][] data = resampler.getData();
+
+        for (int o = 0; o < outputChannels; o++) {
+            float[] buffer = data[o];
+            if (matrix == null) {
+                System.arraycopy(pcm[o], index[o], buffer, offset, samples);
+            } else {
+                for (int n = 0; n < samples; n++) {
+                    buffer[offset + n] = mix(matrix[o], pcm, index, n);
+                }
+            }
+        }
+
+        resampler.wrote(samples);
+
+        int frames = 0;
+        int ptr = 0;
+        while (resampler.next()) {
+            float g = nextGain();
+            for (int o = 0; o < outputChannels; o++) {
+                ptr = store(out, ptr, o, g * resampler.sample(o));
+            }
+            endFrame();
+            frames++;
+        }
+
+        return frames;
+    }
+
+    /**
+     * Pick up gain changes, starting a ramp to the new gain.
+     */
+    private void updateGain() {
+        int version = gain.getVersion();
+        if (version == gainVersion) {
+            return;
+        }
+
+        gainVersion = version;
+        gainTarget = gain.getTarget(replayGain);
+        gainRemaining = (int) ((long) gain.getRamp() * outputRate / 1000);
+
+        if (gainRemaining > 0) {
+            gainStep = (gainTarget - gainValue) / gainRemaining;
+        } else {
+            gainValue = gainTarget;
+        }
+    }
+
+    /**
+     * Get gain of the next output frame.
+     *
+     * @return Linear gain
+     */
+    private float nextGain() {
+        if (gainRemaining > 0) {
+            gainRemaining--;
+            if (gainRemaining == 0) {
+                gainValue = gainTarget;
+            } else {
+                gainValue += gainStep;
+            }
+        }
+        return gainValue;
+    }
+
+    /**
+     * Compute a downmixed sample.
+     *
+     * @param row Coefficients of the output channel
+     * @param pcm Samples per channel
+     * @param index Offset in each channel
+     * @param n Sample
+     * @return Mixed sample
+     */
+    private float mix(float[] row, float[][] pcm, int[] index, int n) {
+        float sum = 0;
+        for (int c = 0; c < channels; c++) {
+            sum += row[c] * pcm[c][index[c] + n];
+        }
+        return sum;
+    }
+
+    /**
+     * Hand over a decimated mono sample to the analyzer after all channels
+     * of a frame are stored.
+     */
+    private void endFrame() {
+        decimationSum += frameSum;
+        frameSum = 0;
+
+        if (++decimationCount == Analyzer.DECIMATION) {
+            if (analyzer != null) {
+                analyzer.sample(decimationSum
+                        / (Analyzer.DECIMATION * outputChannels));
+            }
+            decimationSum = 0;
+            decimationCount = 0;
+        }
+    }
+
+    /**
+     * Store a sample as 16 bit signed integer (little endian), measuring
+     * its level.
+     *
+     * @param out Output
+     * @param ptr Position
+     * @param channel Output channel
+     * @param sample Sample
+     * @return Next position
+     */
+    private int store(byte[] out, int ptr, int channel, float sample) {
+        float abs = sample < 0 ? -sample : sample;
+        if (abs > peak[channel]) {
+            peak[channel] = abs;
+        }
+        squares[channel] += sample * sample;
+        frameSum += sample;
+
+        float value = sample * MAX_16BIT;
+
+        if (value > MAX_16BIT) {
+            value = MAX_16BIT;
+        }
+
+        if (value < MIN_16BIT) {
+            value = MIN_16BIT;
+        }
+
+        int val = (int) value;
+        out[ptr] = (byte) val;
+        out[ptr + 1] = (byte) (val >>> 8);
+        return ptr + 2;
+    }
+}
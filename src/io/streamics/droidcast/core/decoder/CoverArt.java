@@ -0,0 +1,133 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.util.Base64;
+
+/**
+ * Cover art embedded in Vorbis comments.
+ *
+ * Holds a reference to the base64 encoded comment value, which is only
+ * decoded when calling {@link #decode()}. Both {@code COVERART} (plain
+ * base64 image) and {@code METADATA_BLOCK_PICTURE} (base64 FLAC picture
+ * block) comments are supported.
+ */
+public class CoverArt {
+    public static final String KEY_COVER_ART = "COVERART";
+    public static final String KEY_PICTURE = "METADATA_BLOCK_PICTURE";
+
+    private byte[] data;
+    private int offset;
+    private int length;
+    private boolean picture;
+
+    /**
+     * Constructor for {@code CoverArt}.
+     *
+     * @param data Comment
+     * @param offset Offset of base64 value
+     * @param length Length of base64 value
+     * @param picture Whether the value is a FLAC picture block
+     */
+    public CoverArt(byte[] data, int offset, int length, boolean picture) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.picture = picture;
+    }
+
+    /**
+     * Get hash of the encoded value.
+     *
+     * @return Hexadecimal SHA-1 digest
+     */
+    public String getHash() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(data, offset, length);
+
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get encoded size.
+     *
+     * @return Length of the base64 value in bytes
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Decode image data.
+     *
+     * @return Buffer positioned at the encoded image (JPEG, PNG...)
+     * @throws IllegalArgumentException if the value is malformed
+     */
+    public ByteBuffer decode() {
+        byte[] decoded = Base64.decode(data, offset, length, Base64.DEFAULT);
+        ByteBuffer buffer = ByteBuffer.wrap(decoded);
+
+        if (picture) {
+            try {
+                // Picture type, MIME type, description, width, height,
+                // color depth and number of colors precede the image
+                buffer.getInt();
+                skip(buffer, buffer.getInt());
+                skip(buffer, buffer.getInt());
+                skip(buffer, 16);
+
+                int size = buffer.getInt();
+                buffer.limit(buffer.position() + size);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(
+                        "Malformed picture block", e);
+            }
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Advance buffer position.
+     *
+     * @param buffer Buffer
+     * @param count Number of bytes
+     */
+    private static void skip(ByteBuffer buffer, int count) {
+        buffer.position(buffer.position() + count);
+    }
+}
@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.jcraft.jogg.Packet;
 import com.jcraft.jogg.Page;
@@ -33,7 +34,11 @@ import com.jcraft.jogg.SyncState;
 import com.jcraft.jorbis.Block;
 import com.jcraft.jorbis.Comment;
 import com.jcraft.jorbis.DspState;
+import com.jcraft.jorbis.FastMapping0;
 import com.jcraft.jorbis.Info;
+import com.jcraft.jorbis.Setup;
+
+import android.os.Debug;
 
 /**
  * OGG Vorbis decoder using JOrbis
@@ -69,6 +74,9 @@ public class Decoder {
         /**
          * Read PCM audio.
          *
+         * Audio is interleaved 16 bit PCM at the output rate, downmixed to
+         * stereo for streams with more than two channels.
+         *
          * @param data
          * @param off
          * @param len
@@ -81,9 +89,75 @@ public class Decoder {
         void onFinish();
     }
 
+    /**
+     * Compressed stream consumer interface.
+     */
+    public static interface PageConsumer {
+        /**
+         * Handle OGG page as received from the stream, before decoding.
+         *
+         * The page data is only valid during the call.
+         *
+         * @param page Page
+         */
+        void onPage(Page page);
+    }
+
     private InputStream stream;
-    private List<Consumer> consumers = new ArrayList<Consumer>();
-    private boolean working;
+    private List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+    private List<PageConsumer> pageConsumers =
+            new CopyOnWriteArrayList<PageConsumer>();
+    private List<PageConsumer> joiningConsumers =
+            new CopyOnWriteArrayList<PageConsumer>();
+
+    // Header pages of the current chain, for page consumers added later
+    private List<byte[]> headerPages = new ArrayList<byte[]>();
+    private Page headerPage = new Page();
+    private volatile boolean working;
+    private volatile boolean paused = false;
+    private volatile boolean skipped = false;
+    private boolean skipping = false;
+    private final Object pauseLock = new Object();
+    private volatile long position;
+    private volatile long bytesReceived;
+    private volatile long cpuTime;
+
+    // Read sizing
+    private int readSize = BUFFER_SIZE;
+    private int pageSize = 0;
+    private volatile int positionRate = 0;
+
+    // Pipelining
+    private boolean pipelined = false;
+    private volatile Pipeline pipeline = null;
+
+    // Conversion
+    private int outputRate = 0;
+    private Converter converter;
+    private Gain gain = new Gain();
+    private volatile Analyzer analyzer = null;
+    private byte[] conv_buffer;
+    private volatile boolean resampling = false;
+    private volatile double rateCorrection = 1.0;
+
+    // Recovery
+    private DecoderStats stats = new DecoderStats();
+    private float[][] silence;
+    private int[] silenceIndex;
+
+    // Synthesis of the current chain
+    private Setup synthesis_setup;
+    private Info synthesis_info;
+    private float[][][] _pcmf = new float[1][][];
+    private int[] _index;
+    private long granule;
+    private long decoded;
+    private long decodedAtGranule;
+    private long pageSamples;
+    private boolean reconcile;
+
+    // Pooled states
+    private DecoderState state;
 
     // OGG
     SyncState ogg_sync_state;
@@ -97,10 +171,36 @@ public class Decoder {
     DspState vorbis_dsp_state;
     Block vorbis_block;
 
+    /**
+     * Initial number of bytes read from the stream at once, and maximum
+     * samples per channel converted at once.
+     */
     public static final int BUFFER_SIZE = 2048;
 
-    private static int MAX_16BIT = 32767;
-    private static int MIN_16BIT = -32768;
+    /**
+     * Minimum number of bytes read from the stream at once.
+     */
+    public static final int MIN_READ_SIZE = 512;
+
+    /**
+     * Maximum number of bytes read from the stream at once.
+     */
+    public static final int MAX_READ_SIZE = 32768;
+
+    /**
+     * Milliseconds of audio read from the stream at once at the observed
+     * bitrate.
+     */
+    public static final int READ_TIME = 250;
+
+    /**
+     * Maximum seconds of silence inserted for lost audio at once.
+     */
+    public static final int MAX_CONCEAL = 5;
+
+    static {
+        FastMapping0.install();
+    }
 
     /**
      * Constructor for {@code Decoder} fed with an {@code InputStream}.
@@ -112,7 +212,7 @@ public class Decoder {
     }
 
     /**
-     * Add stream consumer.
+     * Add stream consumer. May be called while decoding.
      *
      * @param consumer Consumer
      */
@@ -121,39 +221,648 @@ public class Decoder {
     }
 
     /**
-     * Initialize states.
+     * Remove stream consumer. May be called while decoding.
+     *
+     * @param consumer Consumer
+     */
+    public void removeConsumer(Consumer consumer) {
+        this.consumers.remove(consumer);
+    }
+
+    /**
+     * Add compressed stream consumer. May be called while decoding, in
+     * which case the consumer first receives the header pages of the
+     * current chain, so it can start with it.
+     *
+     * @param consumer Page consumer
+     */
+    public void addPageConsumer(PageConsumer consumer) {
+        synchronized (joiningConsumers) {
+            this.joiningConsumers.add(consumer);
+        }
+    }
+
+    /**
+     * Remove compressed stream consumer. May be called while decoding.
+     *
+     * @param consumer Page consumer
+     */
+    public void removePageConsumer(PageConsumer consumer) {
+        synchronized (joiningConsumers) {
+            this.joiningConsumers.remove(consumer);
+            this.pageConsumers.remove(consumer);
+        }
+    }
+
+    /**
+     * Park the decoder before it reads from the stream next. May be called
+     * while decoding.
+     */
+    public void pause() {
+        this.paused = true;
+    }
+
+    /**
+     * Mark that stream data was skipped on purpose, such as to rejoin a
+     * live stream after pause. The pages missing from the data read next
+     * are not concealed with silence, synthesis restarts after them.
+     */
+    public void markSkipped() {
+        this.skipped = true;
+    }
+
+    /**
+     * Continue decoding after {@link #pause()}.
+     */
+    public void resume() {
+        synchronized (pauseLock) {
+            this.paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Get counters of recoveries from stream errors.
+     *
+     * @return Counters, updated while decoding
+     */
+    public DecoderStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Get CPU time used by decoding, summed over the decoder thread and
+     * the synthesis and output stages when pipelined.
+     *
+     * @return Nanoseconds since start, or {@code 0} if not measurable
+     */
+    public long getCpuTime() {
+        Pipeline stages = pipeline;
+        return cpuTime + (stages != null ? stages.getCpuTime() : 0);
+    }
+
+    /**
+     * Get CPU time used by the calling thread.
+     *
+     * @return Nanoseconds, or {@code 0} if not measurable
+     */
+    static long threadCpuTime() {
+        long time = Debug.threadCpuTimeNanos();
+        return time > 0 ? time : 0;
+    }
+
+    /**
+     * Get decoding position.
+     *
+     * @return Number of samples per channel delivered to consumers
+     */
+    public long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Get amount of compressed data read from the stream.
+     *
+     * @return Bytes
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    /**
+     * Get amount of audio received from the stream but not decoded yet,
+     * estimated from the average compressed size of decoded audio.
+     *
+     * @return Samples per channel
+     */
+    public long getBacklog() {
+        if (position == 0 || bytesReceived == 0) {
+            return 0;
+        }
+
+        int available;
+        try {
+            available = stream.available();
+        } catch (IOException e) {
+            return 0;
+        }
+
+        return available * position / bytesReceived;
+    }
+
+    /**
+     * Set sample rate of the audio passed to consumers, audio is resampled
+     * when the stream has a different rate. Applies from the next chain.
+     *
+     * @param rate Sample rate or {@code 0} for the stream rate
+     */
+    public void setOutputRate(int rate) {
+        this.outputRate = rate;
+    }
+
+    /**
+     * Set gain applied to the audio passed to consumers, which may be
+     * shared between decoders. Applies from the next chain.
+     *
+     * @param gain Gain
+     */
+    public void setGain(Gain gain) {
+        this.gain = gain;
+    }
+
+    /**
+     * Get gain applied to the audio passed to consumers.
+     *
+     * @return Gain
+     */
+    public Gain getGain() {
+        return this.gain;
+    }
+
+    /**
+     * Set analyzer the levels of the audio passed to consumers are handed
+     * over to. May be called while decoding.
+     *
+     * @param analyzer Analyzer or null
+     */
+    public void setAnalyzer(Analyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Set rate correction applied by resampling the decoded audio. Once set,
+     * all audio of the stream is resampled. May be called while decoding.
+     *
+     * @param ratio Output samples per decoded sample
+     */
+    public void setRateCorrection(double ratio) {
+        this.rateCorrection = ratio;
+        this.resampling = true;
+    }
+
+    /**
+     * Set whether to run synthesis and output on separate threads, so
+     * decoding a stream is spread over three cores. Applies from the next
+     * start.
+     *
+     * @param pipelined Whether pipelined
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Initialize states, reusing pooled ones.
      */
     private void init() {
-        ogg_sync_state = new SyncState();
-        ogg_stream_state = new StreamState();
-        ogg_page = new Page();
-        ogg_packet = new Packet();
+        state = DecoderState.obtain();
+
+        ogg_sync_state = state.sync;
+        ogg_stream_state = state.stream;
+        ogg_page = state.page;
+        ogg_packet = state.packet;
+
+        vorbis_dsp_state = state.dsp;
+        vorbis_block = state.block;
+    }
+
+    /**
+     * Return states to the pool once no stage uses them.
+     */
+    private void recycle() {
+        ogg_sync_state = null;
+        ogg_stream_state = null;
+        ogg_page = null;
+        ogg_packet = null;
+
+        vorbis_info = null;
+        vorbis_comment = null;
+        vorbis_dsp_state = null;
+        vorbis_block = null;
+
+        state.recycle();
+        state = null;
+    }
+
+    /**
+     * Get next page from the sync state and pass it to page consumers.
+     *
+     * @return Result of {@code SyncState.pageout}
+     */
+    private int pageout() {
+        int result = ogg_sync_state.pageout(ogg_page);
+
+        if (result == 1) {
+            int size = ogg_page.header_len + ogg_page.body_len;
+            pageSize += pageSize == 0 ? size : (size - pageSize) / 8;
+
+            if (!joiningConsumers.isEmpty()) {
+                // Headers of the previous chain are of no use at a new one
+                join(ogg_page.bos() == 0);
+            }
+
+            // Header pages are the ones preceding the first audio granule
+            if (ogg_page.bos() != 0) {
+                headerPages.clear();
+            }
+            if (ogg_page.granulepos() == 0) {
+                byte[] data = new byte[size];
+                System.arraycopy(ogg_page.header_base, ogg_page.header,
+                                 data, 0, ogg_page.header_len);
+                System.arraycopy(ogg_page.body_base, ogg_page.body,
+                                 data, ogg_page.header_len,
+                                 ogg_page.body_len);
+                headerPages.add(data);
+            }
+
+            for (PageConsumer consumer : this.pageConsumers) {
+                consumer.onPage(ogg_page);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Start passing pages to the consumers added since the last page.
+     *
+     * @param replay Whether to pass the cached header pages first
+     */
+    private void join(boolean replay) {
+        // Locked so consumers are not removed while joining
+        synchronized (joiningConsumers) {
+            for (PageConsumer consumer : this.joiningConsumers) {
+                if (replay) {
+                    for (byte[] data : headerPages) {
+                        // Header length from the segment count at byte 26
+                        int length = 27 + (data[26] & 0xFF);
+                        headerPage.header_base = data;
+                        headerPage.header = 0;
+                        headerPage.header_len = length;
+                        headerPage.body_base = data;
+                        headerPage.body = length;
+                        headerPage.body_len = data.length - length;
+                        consumer.onPage(headerPage);
+                    }
+                }
+                pageConsumers.add(consumer);
+            }
+            joiningConsumers.clear();
+        }
+    }
+
+    /**
+     * Read from stream into the sync buffer.
+     *
+     * Reads may return less than requested whenever less data is
+     * available, which is not the end of the stream.
+     *
+     * @return Bytes read or {@code -1} at end of stream
+     * @throws IOException
+     */
+    private int fill() throws IOException {
+        if (paused) {
+            synchronized (pauseLock) {
+                while (paused && working) {
+                    try {
+                        pauseLock.wait();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+
+            if (!working) {
+                return -1;
+            }
+        }
+
+        if (skipped) {
+            skipped = false;
+            skipping = true;
+        }
+
+        int index = ogg_sync_state.buffer(readSize);
+        int bytes;
+        try {
+            bytes = stream.read(ogg_sync_state.data, index, readSize);
+        } catch (IOException e) {
+            if (!working) {
+                // Connection closed to stop
+                return -1;
+            }
+            throw e;
+        }
+        cpuTime = threadCpuTime();
+        if (bytes > 0) {
+            ogg_sync_state.wrote(bytes);
+            bytesReceived += bytes;
+
+            if (bytes == readSize) {
+                // More data is likely waiting, catch up in fewer reads
+                readSize = Math.min(2 * readSize, MAX_READ_SIZE);
+            } else {
+                readSize = getReadSize();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get read size fitting the stream, the amount of data received for
+     * {@link #READ_TIME} of audio at the observed bitrate, and at least
+     * an average page.
+     *
+     * @return Bytes
+     */
+    private int getReadSize() {
+        long size = pageSize;
+
+        long decoded = position;
+        if (decoded > 0 && positionRate > 0) {
+            long bytesPerSecond = bytesReceived * positionRate / decoded;
+            size = Math.max(size, bytesPerSecond * READ_TIME / 1000);
+        }
+
+        return (int) Math.min(Math.max(size, MIN_READ_SIZE), MAX_READ_SIZE);
+    }
+
+    /**
+     * Convert PCM audio and pass it to consumers.
+     *
+     * @param pcm Samples per channel
+     * @param index Offset in each channel
+     * @param samples Samples per channel
+     */
+    void output(float[][] pcm, int[] index, int samples) {
+        // Consumers were told of the end already
+        if (!working) {
+            return;
+        }
+
+        if (pipeline == null) {
+            // Synthesis and output run on the decoder thread
+            cpuTime = threadCpuTime();
+        }
+
+        if (resampling) {
+            converter.setRateCorrection(rateCorrection);
+        }
+
+        int frameSize = 2 * converter.getOutputChannels();
+        int size = frameSize * converter.getMaxOutput(samples);
+        if (conv_buffer == null || conv_buffer.length < size) {
+            conv_buffer = new byte[size];
+        }
+
+        converter.setAnalyzer(analyzer);
+        int frames = converter.convert(pcm, index, samples, conv_buffer);
+
+        // Write to consumer
+        for (Consumer consumer : this.consumers) {
+            if (!working) {
+                return;
+            }
+            consumer.onRead(conv_buffer, 0, frameSize * frames);
+        }
+
+        position += frames;
+    }
+
+    /**
+     * Start output of a chain, passing its info and meta data to
+     * consumers.
+     *
+     * @param info Vorbis info
+     * @param comment Vorbis comment
+     */
+    void outputChain(Info info, Comment comment) {
+        if (!working) {
+            return;
+        }
+
+        for (Consumer consumer : this.consumers) {
+            consumer.onInfo(info);
+        }
+
+        Meta meta = new Meta(comment.user_comments, position);
+        for (Consumer consumer : this.consumers) {
+            consumer.onMeta(meta);
+        }
+
+        positionRate = outputRate > 0 ? outputRate : info.rate;
+        converter = new Converter(info.channels, info.rate, positionRate,
+                                  gain, Gain.getReplayGain(comment));
+    }
+
+    /*
+     * Synthesis
+     */
+
+    /**
+     * Start synthesis of a chain.
+     *
+     * @param setup Vorbis setup
+     * @param comment Vorbis comment
+     */
+    void synthesisChain(Setup setup, Comment comment) {
+        Info info = setup.getInfo();
+        synthesis_setup = setup;
+        synthesis_info = info;
+        setup.synthesisInit(vorbis_dsp_state);
+        vorbis_block.init(vorbis_dsp_state);
+        _index = new int[info.channels];
+
+        granule = -1;
+        decoded = 0;
+        decodedAtGranule = 0;
+        pageSamples = 0;
+        reconcile = false;
+
+        emitChain(info, comment);
+    }
+
+    /**
+     * Handle audio lost before a page, restarting synthesis as the overlap
+     * is lost, and inserting silence of the estimated length.
+     *
+     * @param pageGranule Granule position of the page
+     */
+    void synthesisLoss(long pageGranule) {
+        synthesis_setup.synthesisInit(vorbis_dsp_state);
+        vorbis_block.init(vorbis_dsp_state);
+
+        if (granule >= 0) {
+            long missing = pageGranule - granule -
+                    (decoded - decodedAtGranule) - pageSamples;
+            long concealed = conceal(missing);
+            decoded += concealed;
+
+            // Complete the estimate at the granule, unless at the limit
+            reconcile = concealed >= missing;
+        }
+    }
+
+    /**
+     * Restart synthesis after skipped audio, without inserting silence.
+     */
+    void synthesisRestart() {
+        synthesis_setup.synthesisInit(vorbis_dsp_state);
+        vorbis_block.init(vorbis_dsp_state);
+
+        granule = -1;
+        pageSamples = 0;
+        reconcile = false;
+    }
+
+    /**
+     * Decode a packet.
+     *
+     * @param packet Packet
+     */
+    void synthesize(Packet packet) {
+        if (vorbis_block.synthesis(packet) == 0) {
+            vorbis_dsp_state.synthesis_blockin(vorbis_block);
+        }
+
+        while (true) {
+            int samples = vorbis_dsp_state.synthesis_pcmout(_pcmf, _index);
+            if (!(samples > 0)) {
+                break;
+            }
+
+            int frames;
+            if (samples < BUFFER_SIZE) {
+                frames = samples;
+            } else {
+                frames = BUFFER_SIZE;
+            }
+
+            emitPcm(_pcmf[0], _index, frames);
+            decoded += frames;
+
+            // Finish
+            vorbis_dsp_state.synthesis_read(frames);
+        }
+    }
 
-        vorbis_info = new Info();
-        vorbis_comment = new Comment();
-        vorbis_dsp_state = new DspState();
-        vorbis_block = new Block(vorbis_dsp_state);
+    /**
+     * Handle end of a page with a granule position.
+     *
+     * @param pageGranule Granule position of the page
+     */
+    void synthesisGranule(long pageGranule) {
+        if (reconcile) {
+            // Complete the estimated silence
+            decoded += conceal(pageGranule - granule -
+                    (decoded - decodedAtGranule));
+            reconcile = false;
+        } else if (granule >= 0) {
+            pageSamples = pageGranule - granule;
+        }
 
-        ogg_sync_state.init();
+        granule = pageGranule;
+        decodedAtGranule = decoded;
     }
 
     /**
-     * Clear states.
+     * Finish synthesis of a chain.
      */
-    private void clear() {
-        ogg_stream_state.clear();
+    void synthesisEndChain() {
         vorbis_block.clear();
         vorbis_dsp_state.clear();
-        vorbis_info.clear();
+    }
+
+    /*
+     * Handoff between stages, direct unless pipelined
+     */
+
+    private void chain(Setup setup, Comment comment) {
+        if (pipeline != null) {
+            pipeline.chain(setup, comment);
+        } else {
+            synthesisChain(setup, comment);
+        }
+    }
+
+    private void loss(long pageGranule) {
+        if (pipeline != null) {
+            pipeline.loss(pageGranule);
+        } else {
+            synthesisLoss(pageGranule);
+        }
+    }
+
+    private void restart() {
+        if (pipeline != null) {
+            pipeline.restart();
+        } else {
+            synthesisRestart();
+        }
+    }
+
+    private void packet(Packet packet) {
+        if (pipeline != null) {
+            pipeline.packet(packet);
+        } else {
+            synthesize(packet);
+        }
+    }
+
+    private void granule(long pageGranule) {
+        if (pipeline != null) {
+            pipeline.granule(pageGranule);
+        } else {
+            synthesisGranule(pageGranule);
+        }
+    }
+
+    private void endChain() {
+        if (pipeline != null) {
+            pipeline.endChain();
+        } else {
+            synthesisEndChain();
+        }
+    }
+
+    private void emitChain(Info info, Comment comment) {
+        if (pipeline != null) {
+            pipeline.outputChain(info, comment);
+        } else {
+            outputChain(info, comment);
+        }
+    }
+
+    private void emitPcm(float[][] pcm, int[] index, int frames) {
+        if (pipeline != null) {
+            pipeline.pcm(pcm, index, frames);
+        } else {
+            output(pcm, index, frames);
+        }
+    }
+
+    /**
+     * Get whether decoding continues.
+     *
+     * @return False once stopped
+     */
+    private boolean isWorking() {
+        return working && (pipeline == null || !pipeline.isClosed());
     }
 
     /**
      * Decoder loop.
+     *
+     * Corrupt data is skipped up to the next page, as found by the sync
+     * state. Headers are searched for again when they cannot be parsed.
+     * Pages of other logical streams are dropped, and audio lost with
+     * missing pages is replaced with silence of the length derived from
+     * the granule positions.
      */
     private void work() {
         boolean chained = false;
 
-        worker: while (this.working) {
+        worker: while (isWorking()) {
             if (stream == null) {
                 break;
             }
@@ -162,61 +871,76 @@ public class Decoder {
              * Begin decoding
              */
 
-            int bytes = 0;
-            int index = ogg_sync_state.buffer(BUFFER_SIZE);
-            byte buffer[] = ogg_sync_state.data;
-
-            try {
-                bytes = stream.read(buffer, index, BUFFER_SIZE);
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
-            }
-
-            ogg_sync_state.wrote(bytes);
-
             if (chained) {
                 chained = false;
             } else {
-                if (ogg_sync_state.pageout(ogg_page) != 1) {
-                    if (bytes < BUFFER_SIZE) {
-                        break;
+                // Wait for the first page, short reads are no end of stream
+                int result;
+                while ((result = pageout()) != 1) {
+                    if (!isWorking()) {
+                        break worker;
+                    }
+                    if (result == -1) {
+                        stats.resyncs++;
+                    }
+
+                    int bytes;
+                    try {
+                        bytes = fill();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        break worker;
+                    }
+
+                    if (bytes < 0) {
+                        break worker;
                     }
                 }
             }
 
-            ogg_stream_state.init(ogg_page.serialno());
+            int serial = ogg_page.serialno();
+            ogg_stream_state.init(serial);
             ogg_stream_state.reset();
 
+            // Handed over with the chain, so new for each
+            vorbis_info = new Info();
+            vorbis_comment = new Comment();
             vorbis_info.init();
             vorbis_comment.init();
 
-            if (ogg_stream_state.pagein(ogg_page) < 0) {
-                break;
-            }
+            // Not the first header of a stream, try the next page
+            if (ogg_stream_state.pagein(ogg_page) < 0 ||
+                ogg_stream_state.packetout(ogg_packet) != 1 ||
+                vorbis_info.synthesis_headerin(
+                        vorbis_comment, ogg_packet) < 0) {
 
-            if (ogg_stream_state.packetout(ogg_packet) !=1 ) {
-                break;
+                stats.headerResyncs++;
+                continue;
             }
 
-            if (vorbis_info.synthesis_headerin(
-                    vorbis_comment, ogg_packet) < 0) {
-                break;
-            }
-
-            for (Consumer consumer : this.consumers) {
-                consumer.onInfo(vorbis_info);
-            }
+            byte[] identification = new byte[ogg_packet.bytes];
+            System.arraycopy(ogg_packet.packet_base, ogg_packet.packet,
+                             identification, 0, ogg_packet.bytes);
+            Setup setup = null;
 
             int i = 0;
 
             while (i < 2) {
                 while (i < 2) {
-                    int result = ogg_sync_state.pageout(ogg_page);
+                    if (!isWorking()) {
+                        break worker;
+                    }
+
+                    int result = pageout();
 
                     if (result == 0) {
                         break;
                     } else if (result == 1) {
+                        if (ogg_page.serialno() != serial) {
+                            stats.foreignPages++;
+                            continue;
+                        }
+
                         ogg_stream_state.pagein(ogg_page);
 
                         while (i < 2) {
@@ -225,58 +949,82 @@ public class Decoder {
                             if (result == 0) {
                                 break;
                             } else if (result == -1) {
-                                break worker;
+                                // Headers incomplete, start over
+                                stats.headerResyncs++;
+                                continue worker;
                             }
 
-                            vorbis_info.synthesis_headerin(
-                                    vorbis_comment, ogg_packet);
+                            if (i == 0) {
+                                vorbis_info.synthesis_headerin(
+                                        vorbis_comment, ogg_packet);
+                            } else {
+                                // Shared with decoders of the same setup
+                                setup = Setup.headerin(
+                                        vorbis_info, vorbis_comment,
+                                        identification, ogg_packet);
+                                if (setup == null) {
+                                    stats.headerResyncs++;
+                                    continue worker;
+                                }
+                                vorbis_info = setup.getInfo();
+                            }
 
                             i++;
                         }
+                    } else {
+                        stats.resyncs++;
                     }
                 }
 
-                index = ogg_sync_state.buffer(BUFFER_SIZE);
-                buffer = ogg_sync_state.data;
+                if (i == 2) {
+                    // Audio may follow in the buffered data
+                    break;
+                }
 
+                int bytes;
                 try {
-                    bytes = stream.read(buffer, index, BUFFER_SIZE);
+                    bytes = fill();
                 } catch (IOException e) {
                     e.printStackTrace();
                     break worker;
                 }
 
-                if (bytes == 0 && i < 2) {
+                if (bytes < 0) {
                     break worker;
                 }
-
-                ogg_sync_state.wrote(bytes);
-            }
-
-            Meta meta = new Meta(vorbis_comment.user_comments);
-            for (Consumer consumer : this.consumers) {
-                consumer.onMeta(meta);
             }
 
-            int conv_size = BUFFER_SIZE * vorbis_info.channels;
-            byte conv_buffer[] = new byte[conv_size];
-
-            vorbis_dsp_state.synthesis_init(vorbis_info);
-            vorbis_block.init(vorbis_dsp_state);
+            chain(setup, vorbis_comment);
 
-            float[][][] _pcmf = new float[1][][];
-            int[] _index = new int[vorbis_info.channels];
+            // Continuity
+            long sequence = -1;
+            boolean lost = false;
 
             int eos = 0;
             while (eos == 0) {
                 while (eos == 0) {
-                    int result = ogg_sync_state.pageout(ogg_page);
+                    // Buffered pages are not decoded once stopped
+                    if (!isWorking()) {
+                        break worker;
+                    }
+
+                    int result = pageout();
 
                     if (result == 0) {
                         break;
                     } else if (result == -1) {
+                        stats.resyncs++;
                     } else {
-                        ogg_stream_state.pagein(ogg_page);
+                        if (ogg_page.serialno() != serial) {
+                            if (ogg_page.bos() != 0) {
+                                // Next chain
+                                chained = true;
+                                eos = 1;
+                                break;
+                            }
+                            stats.foreignPages++;
+                            continue;
+                        }
 
                         if (ogg_page.granulepos() == 0) {
                             chained = true;
@@ -284,76 +1032,50 @@ public class Decoder {
                             break;
                         }
 
+                        long pageno = getPageNumber(ogg_page);
+                        boolean gap = sequence >= 0 && pageno != sequence;
+                        boolean restarted = false;
+                        if (skipping) {
+                            // Skipped on purpose, start over
+                            skipping = false;
+                            if (gap) {
+                                restarted = true;
+                                lost = false;
+                                restart();
+                            }
+                        }
+                        if (gap && !restarted) {
+                            stats.lostPages += Math.max(1, pageno - sequence);
+                            lost = true;
+                        }
+                        sequence = pageno + 1;
+
+                        ogg_stream_state.pagein(ogg_page);
+
+                        long pageGranule = ogg_page.granulepos();
+
+                        if (lost && pageGranule >= 0) {
+                            loss(pageGranule);
+                            lost = false;
+                        }
+
                         while (true) {
                             result = ogg_stream_state.packetout(ogg_packet);
 
                             if (result == 0) {
                                 break;
                             } else if (result == -1) {
+                                // Missing data, unless already known
+                                lost |= !gap;
                             } else {
-                                int samples;
-
-                                if (vorbis_block.synthesis(ogg_packet) == 0) {
-                                    vorbis_dsp_state.synthesis_blockin(
-                                            vorbis_block);
-                                }
-
-                                while (true) {
-                                    samples = vorbis_dsp_state.synthesis_pcmout(
-                                            _pcmf, _index);
-                                    if (!(samples > 0)) {
-                                        break;
-                                    }
-
-                                    float[][] pcmf = _pcmf[0];
-                                    int bytes_out;
-                                    if (samples < conv_size) {
-                                        bytes_out = samples;
-                                    } else {
-                                        bytes_out = conv_size;
-                                    }
-
-                                    // Convert doubles to 16 bit signed integers
-                                    // (host order) and interleave
-                                    for (i = 0; i < vorbis_info.channels; i++) {
-                                        int mono = _index[i];
-                                        int ptr = i * 2;
-                                        for (int n = 0; n < bytes_out; n++) {
-                                            int val = (int)(pcmf[i][mono + n] *
-                                                            32767.);
-
-                                            if (val > MAX_16BIT) {
-                                                val = MAX_16BIT;
-                                            }
-
-                                            if (val < MIN_16BIT) {
-                                                val = MIN_16BIT;
-                                            }
-
-                                            if (val < 0) {
-                                                val = val | 0x8000;
-                                            }
-
-                                            conv_buffer[ptr] = (byte)(val);
-                                            conv_buffer[ptr + 1] = (byte)
-                                                                   (val >>> 8);
-                                            ptr += 2 * (vorbis_info.channels);
-                                        }
-                                    }
-
-                                    // Write to consumer
-                                    for (Consumer consumer : this.consumers) {
-                                        consumer.onRead(conv_buffer, 0,
-                                            2 * vorbis_info.channels *
-                                            bytes_out);
-                                    }
-
-                                    // Finish
-                                    vorbis_dsp_state.synthesis_read(bytes_out);
-                                }
+                                packet(ogg_packet);
                             }
                         }
 
+                        if (pageGranule >= 0) {
+                            granule(pageGranule);
+                        }
+
                         if (ogg_page.eos() != 0) {
                             eos = 1;
                         }
@@ -361,29 +1083,25 @@ public class Decoder {
                 }
 
                 if (eos == 0) {
-                    index = ogg_sync_state.buffer(BUFFER_SIZE);
-                    buffer = ogg_sync_state.data;
+                    if (!isWorking()) {
+                        break worker;
+                    }
 
+                    int bytes;
                     try {
-                        bytes = stream.read(buffer, index, BUFFER_SIZE);
+                        bytes = fill();
                     } catch (IOException e) {
                         e.printStackTrace();
                         break worker;
                     }
 
-                    if (bytes == -1) {
+                    if (bytes < 0) {
                         break;
                     }
-
-                    ogg_sync_state.wrote(bytes);
-
-                    if (bytes == 0) {
-                        eos = 1;
-                    }
                 }
             }
 
-            clear();
+            endChain();
 
             /*
              * End decoding
@@ -391,19 +1109,84 @@ public class Decoder {
         }
     }
 
+    /**
+     * Get page sequence number from the page header.
+     *
+     * @param page Page
+     * @return Sequence number
+     */
+    private static long getPageNumber(Page page) {
+        byte[] header = page.header_base;
+        int offset = page.header + 18;
+        return (header[offset] & 0xFFL) |
+               ((header[offset + 1] & 0xFFL) << 8) |
+               ((header[offset + 2] & 0xFFL) << 16) |
+               ((header[offset + 3] & 0xFFL) << 24);
+    }
+
+    /**
+     * Pass silence to consumers in place of lost audio.
+     *
+     * @param samples Samples per channel at the stream rate
+     * @return Samples passed
+     */
+    private long conceal(long samples) {
+        if (samples <= 0) {
+            return 0;
+        }
+
+        // Limit to a few seconds in case of a granule position jump
+        int channels = synthesis_info.channels;
+        long total = Math.min(samples, MAX_CONCEAL * synthesis_info.rate);
+
+        if (silence == null || silence.length < channels) {
+            silence = new float[channels][BUFFER_SIZE];
+        }
+        if (silenceIndex == null || silenceIndex.length != channels) {
+            silenceIndex = new int[channels];
+        }
+
+        long remaining = total;
+        while (remaining > 0) {
+            int frames = (int) Math.min(remaining, BUFFER_SIZE);
+            emitPcm(silence, silenceIndex, frames);
+            remaining -= frames;
+        }
+
+        stats.concealedSamples += total;
+        return total;
+    }
+
     /**
      * Run decoder.
      */
     public void start() {
         // Initialize
         this.working = true;
+        this.position = 0;
+        this.bytesReceived = 0;
+        this.cpuTime = 0;
+        this.headerPages.clear();
         this.init();
 
+        // Start synthesis and output stages
+        if (pipelined) {
+            pipeline = new Pipeline(this);
+            pipeline.start();
+        } else {
+            pipeline = null;
+        }
+
         // Start decoder loop
         try {
             this.work();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+            recycle();
         }
     }
 
@@ -412,10 +1195,14 @@ public class Decoder {
      */
     public void stop() {
         if (this.working) {
-            ogg_sync_state.clear();
-
             // Update status
             this.working = false;
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            synchronized (pauseLock) {
+                pauseLock.notifyAll();
+            }
 
             // Callback
             for (Consumer consumer : this.consumers) {
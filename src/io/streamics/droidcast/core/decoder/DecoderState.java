@@ -0,0 +1,187 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package io.streamics.droidcast.core.decoder;
+
+import com.jcraft.jogg.Packet;
+import com.jcraft.jogg.Page;
+import com.jcraft.jogg.StreamState;
+import com.jcraft.jogg.SyncState;
+import com.jcraft.jorbis.Block;
+import com.jcraft.jorbis.DspState;
+import com.jcraft.jorbis.Setup;
+
+/**
+ * Ogg and Vorbis states used to decode a stream, pooled so restarts and
+ * station switches reuse their buffers instead of allocating new ones.
+ *
+ * A state obtained with {@link #obtain()} is ready for a new stream:
+ * <ul>
+ *   <li>The sync state is empty, keeping its buffer.</li>
+ *   <li>The stream state is reset, and initialized for each chain.</li>
+ *   <li>
+ *     The DSP state is detached from any setup, keeping its PCM buffers.
+ *     It is initialized for each chain with
+ *     {@link Setup#synthesisInit(DspState)}, then the block with
+ *     {@code Block.init}.
+ *   </li>
+ * </ul>
+ *
+ * Vorbis info and comments are not part of the state, as they are handed
+ * over to consumers with each chain. A state is recycled with
+ * {@link #recycle()} once no thread uses it, and must not be used
+ * afterwards.
+ */
+public class DecoderState {
+    /**
+     * Maximum number of states kept for reuse.
+     */
+    public static final int MAX_POOLED = 4;
+
+    private static final Object POOL_LOCK = new Object();
+    private static DecoderState pool = null;
+    private static int pooled = 0;
+
+    private DecoderState next = null;
+    private boolean recycled = false;
+
+    final SyncState sync = new SyncState();
+    final StreamState stream = new StreamState();
+    final Page page = new Page();
+    final Packet packet = new Packet();
+    final DspState dsp = new DspState();
+    final Block block = new Block(dsp);
+
+    private DecoderState() {
+        sync.init();
+    }
+
+    /**
+     * Get a state from the pool, or a new one when the pool is empty.
+     *
+     * @return State ready for a new stream
+     */
+    public static DecoderState obtain() {
+        synchronized (POOL_LOCK) {
+            if (pool != null) {
+                DecoderState state = pool;
+                pool = state.next;
+                state.next = null;
+                state.recycled = false;
+                pooled--;
+                return state;
+            }
+        }
+        return new DecoderState();
+    }
+
+    /**
+     * Get number of states in the pool.
+     *
+     * @return Count
+     */
+    public static int getPooled() {
+        synchronized (POOL_LOCK) {
+            return pooled;
+        }
+    }
+
+    /**
+     * Reset the state and return it to the pool. Dropped when the pool is
+     * full.
+     */
+    public void recycle() {
+        if (recycled) {
+            return;
+        }
+        recycled = true;
+
+        sync.reset();
+        stream.reset();
+        Setup.release(dsp);
+        packet.packet_base = null;
+        page.header_base = null;
+        page.body_base = null;
+
+        synchronized (POOL_LOCK) {
+            if (pooled < MAX_POOLED) {
+                next = pool;
+                pool = this;
+                pooled++;
+            }
+        }
+    }
+
+    /**
+     * Get Ogg sync state.
+     *
+     * @return Sync state
+     */
+    public SyncState getSyncState() {
+        return sync;
+    }
+
+    /**
+     * Get Ogg stream state.
+     *
+     * @return Stream state
+     */
+    public StreamState getStreamState() {
+        return stream;
+    }
+
+    /**
+     * Get Ogg page.
+     *
+     * @return Page
+     */
+    public Page getPage() {
+        return page;
+    }
+
+    /**
+     * Get Ogg packet.
+     *
+     * @return Packet
+     */
+    public Packet getPacket() {
+        return packet;
+    }
+
+    /**
+     * Get Vorbis DSP state.
+     *
+     * @return DSP state
+     */
+    public DspState getDspState() {
+        return dsp;
+    }
+
+    /**
+     * Get Vorbis block.
+     *
+     * @return Block
+     */
+    public Block getBlock() {
+        return block;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+/**
+ * Counters of stream errors of a {@link Decoder}.
+ */
+public class DecoderStats {
+    volatile long resyncs = 0;
+    volatile long headerResyncs = 0;
+    volatile long lostPages = 0;
+    volatile long foreignPages = 0;
+    volatile long concealedSamples = 0;
+    volatile long receiveStalls = 0;
+    volatile long decodeStalls = 0;
+
+    /**
+     * Get number of times corrupt data was skipped up to the next page.
+     *
+     * @return Count
+     */
+    public long getResyncs() {
+        return this.resyncs;
+    }
+
+    /**
+     * Get number of pages skipped while searching for stream headers.
+     *
+     * @return Count
+     */
+    public long getHeaderResyncs() {
+        return this.headerResyncs;
+    }
+
+    /**
+     * Get number of pages missing from the page sequence.
+     *
+     * @return Count
+     */
+    public long getLostPages() {
+        return this.lostPages;
+    }
+
+    /**
+     * Get number of dropped pages of other logical streams.
+     *
+     * @return Count
+     */
+    public long getForeignPages() {
+        return this.foreignPages;
+    }
+
+    /**
+     * Get amount of silence inserted for lost audio.
+     *
+     * @return Samples per channel at the stream rate
+     */
+    public long getConcealedSamples() {
+        return this.concealedSamples;
+    }
+
+    /**
+     * Get number of times no data was received for too long, as detected
+     * by a {@link Watchdog}.
+     *
+     * @return Count
+     */
+    public long getReceiveStalls() {
+        return this.receiveStalls;
+    }
+
+    /**
+     * Get number of times data was received but no audio decoded for too
+     * long, as detected by a {@link Watchdog}.
+     *
+     * @return Count
+     */
+    public long getDecodeStalls() {
+        return this.decodeStalls;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+/**
+ * Control loop compensating the clock drift between a live stream and the
+ * audio output.
+ *
+ * Fed with the amount of audio buffered between the network and the
+ * output, it returns a resampling ratio that slowly steers the buffered
+ * amount back to the level observed once the stream settled. The
+ * correction is bounded by {@link #MAX_CORRECTION} and changes by at most
+ * {@link #MAX_STEP} per update, so pitch changes stay inaudible.
+ */
+public class DriftController {
+    /**
+     * Maximum relative rate correction.
+     */
+    public static final double MAX_CORRECTION = 0.001;
+
+    /**
+     * Maximum change of the rate correction per update.
+     */
+    public static final double MAX_STEP = 0.00002;
+
+    /**
+     * Number of updates used to measure the target level.
+     */
+    public static final int WARMUP = 20;
+
+    private static final double SMOOTHING = 0.05;
+    private static final double PROPORTIONAL = 0.01;
+    private static final double INTEGRAL = 0.00001;
+
+    private int updates = 0;
+    private double level = 0;
+    private double target = 0;
+    private double integral = 0;
+    private double correction = 0;
+
+    /**
+     * Update with a new measurement.
+     *
+     * @param buffered Buffered samples per channel
+     * @return Resampling ratio (output samples per input sample)
+     */
+    public double update(long buffered) {
+        if (updates < WARMUP) {
+            level += (buffered - level) / (updates + 1);
+            updates++;
+
+            if (updates == WARMUP) {
+                target = Math.max(level, 1);
+            }
+            return 1.0;
+        }
+
+        level += SMOOTHING * (buffered - level);
+
+        // Positive when audio accumulates, which requires playing it
+        // faster, that is producing fewer output samples
+        double error = (level - target) / target;
+
+        integral = clamp(integral + INTEGRAL * error, MAX_CORRECTION);
+
+        double desired = clamp(
+                -(PROPORTIONAL * error + integral), MAX_CORRECTION);
+        correction += clamp(desired - correction, MAX_STEP);
+
+        return 1.0 + correction;
+    }
+
+    /**
+     * Get current rate correction.
+     *
+     * @return Relative correction, negative when playing faster
+     */
+    public double getCorrection() {
+        return this.correction;
+    }
+
+    /**
+     * Clamp value to a symmetric range.
+     */
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+}
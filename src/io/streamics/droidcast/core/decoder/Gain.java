@@ -0,0 +1,141 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jcraft.jorbis.Comment;
+
+/**
+ * Gain applied by the {@link Converter} while converting audio.
+ *
+ * Holds the user volume and whether ReplayGain is applied, shared by all
+ * decoders of a player. The ReplayGain of a track is kept by the
+ * converter of its chain. Changes are published without locking and
+ * picked up by the decoding thread at the start of the next converted
+ * block, from where the gain ramps linearly, sample by sample, to the new
+ * value.
+ */
+public class Gain {
+    public static final String REPLAYGAIN_TRACK_GAIN = "REPLAYGAIN_TRACK_GAIN";
+    public static final String REPLAYGAIN_TRACK_PEAK = "REPLAYGAIN_TRACK_PEAK";
+
+    private volatile float volume = 1;
+    private volatile boolean replayGainEnabled = true;
+    private volatile int ramp = 0;
+
+    private AtomicInteger version = new AtomicInteger();
+
+    /**
+     * Set user volume.
+     *
+     * @param volume Linear volume, {@code 1} for unity gain
+     * @param ramp Duration in milliseconds of the change
+     */
+    public void setVolume(float volume, int ramp) {
+        this.volume = volume;
+        this.ramp = ramp;
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Get user volume.
+     *
+     * @return Linear volume
+     */
+    public float getVolume() {
+        return this.volume;
+    }
+
+    /**
+     * Enable or disable ReplayGain. The change takes the duration of the
+     * last volume ramp, so a ramp in progress is not cut short.
+     *
+     * @param enabled Whether track gain tags are applied
+     */
+    public void setReplayGainEnabled(boolean enabled) {
+        this.replayGainEnabled = enabled;
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Get ReplayGain of a track from its track gain and peak tags.
+     *
+     * @param comment Vorbis comment of the track
+     * @return Linear gain, {@code 1} without tags
+     */
+    public static float getReplayGain(Comment comment) {
+        String value = comment.query(REPLAYGAIN_TRACK_GAIN);
+        if (value == null) {
+            return 1;
+        }
+
+        try {
+            float decibels = Float.parseFloat(
+                    value.replace("dB", "").trim());
+            float gain = (float) Math.pow(10, decibels / 20);
+
+            // Prevent clipping
+            String peak = comment.query(REPLAYGAIN_TRACK_PEAK);
+            if (peak != null) {
+                float limit = Float.parseFloat(peak.trim());
+                if (limit > 0 && gain * limit > 1) {
+                    gain = 1 / limit;
+                }
+            }
+            return gain;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Get version, incremented on each change.
+     *
+     * @return Version
+     */
+    int getVersion() {
+        return this.version.get();
+    }
+
+    /**
+     * Get gain to ramp to.
+     *
+     * @param replayGain ReplayGain of the current track
+     * @return Linear gain
+     */
+    float getTarget(float replayGain) {
+        if (replayGainEnabled) {
+            return volume * replayGain;
+        }
+        return volume;
+    }
+
+    /**
+     * Get duration of the ramp to the target.
+     *
+     * @return Milliseconds
+     */
+    int getRamp() {
+        return this.ramp;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue handing items from one producer thread to one consumer
+ * thread without locking.
+ *
+ * The items are allocated once and reused: the producer fills the slot
+ * returned by {@link #claim()} and publishes it, the consumer processes
+ * the slot returned by {@link #take()} and releases it.
+ *
+ * @param <T> Item type
+ */
+class Handoff<T> {
+    // Time in nanoseconds a waiting thread parks before checking again
+    private static final long PARK_TIME = 1000000;
+
+    private final T[] slots;
+    private final int mask;
+
+    // Next slot to take and next slot to publish
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile boolean closed = false;
+    private volatile Thread waitingProducer = null;
+    private volatile Thread waitingConsumer = null;
+
+    /**
+     * Constructor for {@code Handoff}.
+     *
+     * @param slots Items, a power of two in number
+     */
+    public Handoff(T[] slots) {
+        this.slots = slots;
+        this.mask = slots.length - 1;
+    }
+
+    /**
+     * Get a free slot to fill, waiting while all slots are in use.
+     *
+     * @return Slot or {@code null} if closed
+     */
+    public T claim() {
+        long position = tail.get();
+        while (position - head.get() == slots.length) {
+            if (closed) {
+                return null;
+            }
+
+            waitingProducer = Thread.currentThread();
+            if (position - head.get() == slots.length && !closed) {
+                LockSupport.parkNanos(this, PARK_TIME);
+            }
+            waitingProducer = null;
+        }
+
+        return closed ? null : slots[(int) (position & mask)];
+    }
+
+    /**
+     * Hand the claimed slot over to the consumer.
+     */
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+
+        Thread waiting = waitingConsumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Get the next published slot, waiting while there is none.
+     *
+     * @return Slot or {@code null} if closed
+     */
+    public T take() {
+        long position = head.get();
+        while (position == tail.get()) {
+            if (closed) {
+                return null;
+            }
+
+            waitingConsumer = Thread.currentThread();
+            if (position == tail.get() && !closed) {
+                LockSupport.parkNanos(this, PARK_TIME);
+            }
+            waitingConsumer = null;
+        }
+
+        return closed ? null : slots[(int) (position & mask)];
+    }
+
+    /**
+     * Give the taken slot back to the producer.
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+
+        Thread waiting = waitingProducer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Stop handing over, making waiting and later calls to
+     * {@link #claim()} and {@link #take()} return {@code null}.
+     */
+    public void close() {
+        closed = true;
+
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Get whether closed.
+     *
+     * @return Whether closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -21,25 +21,73 @@
 
 package io.streamics.droidcast.core.decoder;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.os.Parcel;
 import android.os.Parcelable;
 
 /**
  * {@code Parcelable} class for stream meta data.
+ *
+ * Vorbis user comments are kept as raw bytes and only parsed when a value
+ * is first accessed, so creating a {@code Meta} on the decoding thread
+ * does not allocate per comment. As mandated by the Vorbis specification,
+ * keys are case-insensitive, values are UTF-8 and a key may appear more
+ * than once.
+ *
+ * A {@code Meta} can also be a delta obtained with {@link #diff(Meta)}
+ * holding only the keys that changed, to be applied with
+ * {@link #merge(Meta)}.
  */
 public class Meta implements Parcelable {
     public static String SEPARATOR = "=";
 
-    private Map<String, String> values = new HashMap<String, String>();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Common keys written to parcels as an index instead of a string.
+     * New keys may only be appended.
+     */
+    private static final String[] KEYS = new String[] {
+        "TITLE", "ARTIST", "ALBUM", "TRACKNUMBER", "GENRE", "DATE",
+        "COMMENT", "DESCRIPTION", "ORGANIZATION", "PERFORMER", "COPYRIGHT",
+        "LICENSE", "LOCATION", "CONTACT", "VERSION", "ISRC", "ENCODER",
+        "ALBUMARTIST", "DISCNUMBER", "LYRICS",
+        "REPLAYGAIN_TRACK_GAIN", "REPLAYGAIN_TRACK_PEAK",
+        "REPLAYGAIN_ALBUM_GAIN", "REPLAYGAIN_ALBUM_PEAK"
+    };
+
+    private static final Map<String, Integer> KEY_INDEXES =
+            new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEY_INDEXES.put(KEYS[i], i);
+        }
+    }
+
+    private static final int KEY_CUSTOM = -1;
+
+    private byte[][] comments;
+    private Map<String, List<String>> values;
+    private List<String> removed;
+    private CoverArt coverArt;
+    private long position;
 
     /**
      * Constructor for {@code Meta}.
      */
-    public Meta() {}
+    public Meta() {
+        this.values = new LinkedHashMap<String, List<String>>();
+    }
 
     /**
      * Constructor for {@code Meta} with Vorbis user comments.
@@ -47,16 +95,154 @@ public class Meta implements Parcelable {
      * @param comments User comments
      */
     public Meta(byte[][] comments) {
-        for (int n = 0; n < comments.length; n++) {
-            if (comments[n] == null) {
-                break;
+        this(comments, 0);
+    }
+
+    /**
+     * Constructor for {@code Meta} with Vorbis user comments taking effect
+     * at the specified decoding position.
+     *
+     * The comment arrays are referenced, not copied, and must not be
+     * modified afterwards.
+     *
+     * @param comments User comments
+     * @param position Sample position
+     */
+    public Meta(byte[][] comments, long position) {
+        this.comments = comments;
+        this.position = position;
+    }
+
+    /**
+     * Parse user comments if not parsed yet.
+     *
+     * @return Values by upper case key
+     */
+    private synchronized Map<String, List<String>> getValues() {
+        if (values == null) {
+            values = new LinkedHashMap<String, List<String>>();
+
+            byte separator = (byte) SEPARATOR.charAt(0);
+
+            for (int n = 0; comments != null && n < comments.length; n++) {
+                byte[] comment = comments[n];
+                if (comment == null) {
+                    break;
+                }
+
+                // JOrbis stores comments with a trailing null byte
+                int length = comment.length - 1;
+
+                int split = 0;
+                while (split < length && comment[split] != separator) {
+                    split++;
+                }
+
+                if (split == 0 || split == length) {
+                    continue;
+                }
+
+                String key = normalize(comment, split);
+
+                // Keep cover art out of the values sent to clients
+                if (key.equals(CoverArt.KEY_PICTURE) ||
+                    key.equals(CoverArt.KEY_COVER_ART)) {
+                    if (coverArt == null) {
+                        coverArt = new CoverArt(
+                                comment, split + 1, length - split - 1,
+                                key.equals(CoverArt.KEY_PICTURE));
+                    }
+                    continue;
+                }
+
+                addValue(key, new String(comment, split + 1,
+                                         length - split - 1, UTF8));
             }
 
-            String[] comment = new String(
-                    comments[n], 0,
-                    comments[n].length - 1).split(SEPARATOR);
+            comments = null;
+        }
+
+        return values;
+    }
 
-            values.put(comment[0], comment[1]);
+    /**
+     * Normalize key from raw ASCII bytes.
+     *
+     * @param data Comment
+     * @param length Key length
+     * @return Upper case key
+     */
+    private static String normalize(byte[] data, int length) {
+        char[] key = new char[length];
+        for (int i = 0; i < length; i++) {
+            char c = (char) (data[i] & 0xFF);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            key[i] = c;
+        }
+        return new String(key);
+    }
+
+    /**
+     * Normalize key.
+     *
+     * @param key Key
+     * @return Upper case key
+     */
+    private static String normalize(String key) {
+        char[] chars = key.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c >= 'a' && c <= 'z') {
+                chars[i] = (char) (c - ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Add value to parsed values.
+     *
+     * @param key Upper case key
+     * @param value Value
+     */
+    private void addValue(String key, String value) {
+        List<String> list = values.get(key);
+        if (list == null) {
+            list = new ArrayList<String>(1);
+            values.put(key, list);
+        }
+        list.add(value);
+    }
+
+    /**
+     * Read key from parcel.
+     *
+     * @param in Parcel
+     * @return Key
+     */
+    private static String readKey(Parcel in) {
+        int index = in.readInt();
+        if (index == KEY_CUSTOM) {
+            return in.readString();
+        }
+        return KEYS[index];
+    }
+
+    /**
+     * Write key to parcel.
+     *
+     * @param dest Parcel
+     * @param key Key
+     */
+    private static void writeKey(Parcel dest, String key) {
+        Integer index = KEY_INDEXES.get(key);
+        if (index == null) {
+            dest.writeInt(KEY_CUSTOM);
+            dest.writeString(key);
+        } else {
+            dest.writeInt(index);
         }
     }
 
@@ -64,38 +250,181 @@ public class Meta implements Parcelable {
      * Read contents from parcel.
      */
     public void readFromParcel(Parcel in) {
+        position = in.readLong();
+
         int count = in.readInt();
         for (int i = 0; i < count; i++) {
-            String[] comment = new String[2];
-            in.readStringArray(comment);
-            values.put(comment[0], comment[1]);
+            String key = readKey(in);
+            int size = in.readInt();
+
+            List<String> list = new ArrayList<String>(size);
+            for (int j = 0; j < size; j++) {
+                list.add(in.readString());
+            }
+            values.put(key, list);
+        }
+
+        int removedCount = in.readInt();
+        if (removedCount >= 0) {
+            removed = new ArrayList<String>(removedCount);
+            for (int i = 0; i < removedCount; i++) {
+                removed.add(readKey(in));
+            }
         }
     }
 
     /**
      * Write contents to parcel.
+     *
+     * Each key is followed by the number of values and the values. Delta
+     * instances end with the removed keys, full instances with {@code -1}.
      */
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeInt(this.values.keySet().size());
-        Iterator<Map.Entry<String, String>> iterator =
-                this.values.entrySet().iterator();
+        Map<String, List<String>> values = getValues();
+
+        dest.writeLong(this.position);
+
+        dest.writeInt(values.size());
+        Iterator<Map.Entry<String, List<String>>> iterator =
+                values.entrySet().iterator();
         while (iterator.hasNext()) {
-            Map.Entry<String, String> pair = iterator.next();
-            dest.writeStringArray(new String[] {
-                pair.getKey(), pair.getValue()
-            });
+            Map.Entry<String, List<String>> pair = iterator.next();
+            List<String> list = pair.getValue();
+
+            writeKey(dest, pair.getKey());
+            dest.writeInt(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                dest.writeString(list.get(i));
+            }
+        }
+
+        if (removed == null) {
+            dest.writeInt(-1);
+        } else {
+            dest.writeInt(removed.size());
+            for (int i = 0; i < removed.size(); i++) {
+                writeKey(dest, removed.get(i));
+            }
+        }
+    }
+
+    /**
+     * Get changes from previous meta data.
+     *
+     * @param previous Previous meta data
+     * @return Delta holding changed keys and removed keys
+     */
+    public Meta diff(Meta previous) {
+        Map<String, List<String>> current = getValues();
+        Map<String, List<String>> old = previous.getValues();
+
+        Meta delta = new Meta();
+        delta.position = this.position;
+        delta.removed = new ArrayList<String>();
+
+        for (Map.Entry<String, List<String>> pair : current.entrySet()) {
+            if (!pair.getValue().equals(old.get(pair.getKey()))) {
+                delta.values.put(pair.getKey(), pair.getValue());
+            }
+        }
+
+        for (String key : old.keySet()) {
+            if (!current.containsKey(key)) {
+                delta.removed.add(key);
+            }
+        }
+
+        return delta;
+    }
+
+    /**
+     * Apply delta to this meta data.
+     *
+     * @param delta Delta obtained with {@link #diff(Meta)}
+     * @return New meta data
+     */
+    public Meta merge(Meta delta) {
+        Meta meta = new Meta();
+        meta.position = delta.position;
+        meta.values.putAll(getValues());
+
+        if (delta.removed != null) {
+            for (String key : delta.removed) {
+                meta.values.remove(key);
+            }
         }
+
+        meta.values.putAll(delta.getValues());
+        return meta;
+    }
+
+    /**
+     * Get whether this is a delta obtained with {@link #diff(Meta)}.
+     *
+     * @return Whether only changes are held
+     */
+    public boolean isDelta() {
+        return this.removed != null;
     }
 
     /**
      * Get value.
      *
-     * @param key Key
-     * @return Value
+     * @param key Key (case-insensitive)
+     * @return First value or {@code null}
      */
     public String getValue(String key) {
-        return this.values.get(key);
+        List<String> list = getValues().get(normalize(key));
+        if (list == null) {
+            return null;
+        }
+        return list.get(0);
+    }
+
+    /**
+     * Get all values of a key.
+     *
+     * @param key Key (case-insensitive)
+     * @return Values in stream order, empty if there are none
+     */
+    public List<String> getValues(String key) {
+        List<String> list = getValues().get(normalize(key));
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Get keys.
+     *
+     * @return Upper case keys in stream order
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(getValues().keySet());
+    }
+
+    /**
+     * Get embedded cover art.
+     *
+     * Cover art is not written to parcels and is only available where the
+     * meta data was decoded.
+     *
+     * @return Cover art or {@code null}
+     */
+    public CoverArt getCoverArt() {
+        getValues();
+        return this.coverArt;
+    }
+
+    /**
+     * Get decoding position at which this meta data takes effect.
+     *
+     * @return Number of samples per channel decoded before this meta data
+     */
+    public long getPosition() {
+        return this.position;
     }
 
     @Override
@@ -117,4 +446,4 @@ public class Meta implements Parcelable {
             return new Meta[size];
         }
     };
-}
\ No newline at end of file
+}
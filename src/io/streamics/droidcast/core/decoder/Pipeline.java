@@ -0,0 +1,434 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+import com.jcraft.jogg.Packet;
+import com.jcraft.jorbis.Comment;
+import com.jcraft.jorbis.Info;
+import com.jcraft.jorbis.Setup;
+
+/**
+ * Stages of a pipelined {@link Decoder}.
+ *
+ * The decoder thread reads the stream and extracts packets, which are
+ * handed over to a synthesis thread. The decoded audio is handed over to
+ * an output thread converting it and passing it to consumers. Packets and
+ * audio are copied into pooled items, so the handoff allocates nothing
+ * once the pools are sized for the stream.
+ *
+ * Chain boundaries and page positions travel through the same queues as
+ * the data, so every stage sees them in stream order.
+ */
+class Pipeline {
+    /**
+     * Number of packets queued for synthesis.
+     */
+    public static final int PACKET_QUEUE = 256;
+
+    /**
+     * Number of blocks of audio queued for output.
+     */
+    public static final int PCM_QUEUE = 8;
+
+    // Item types
+    private static final int CHAIN = 0;
+    private static final int LOSS = 1;
+    private static final int PACKET = 2;
+    private static final int GRANULE = 3;
+    private static final int END_CHAIN = 4;
+    private static final int PCM = 5;
+    private static final int END = 6;
+    private static final int RESTART = 7;
+
+    /**
+     * Queued item.
+     */
+    private static class Item {
+        private int type;
+        private long granule;
+        private Setup setup;
+        private Info info;
+        private Comment comment;
+
+        // Packet
+        private Packet packet = new Packet();
+        private byte[] data = new byte[0];
+
+        // Audio
+        private float[][] pcm = new float[0][];
+        private int[] index = new int[0];
+        private int frames;
+    }
+
+    private Decoder decoder;
+    private Handoff<Item> packets;
+    private Handoff<Item> blocks;
+    private Thread synthesis;
+    private Thread output;
+    private volatile long synthesisCpuTime = 0;
+    private volatile long outputCpuTime = 0;
+
+    /**
+     * Constructor for {@code Pipeline}.
+     *
+     * @param decoder Decoder
+     */
+    public Pipeline(Decoder decoder) {
+        this.decoder = decoder;
+        this.packets = new Handoff<Item>(createItems(PACKET_QUEUE));
+        this.blocks = new Handoff<Item>(createItems(PCM_QUEUE));
+    }
+
+    /**
+     * Create items of a queue.
+     *
+     * @param count Number of items
+     * @return Items
+     */
+    private static Item[] createItems(int count) {
+        Item[] items = new Item[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = new Item();
+        }
+        return items;
+    }
+
+    /**
+     * Get CPU time used by the synthesis and output threads.
+     *
+     * @return Nanoseconds since start
+     */
+    public long getCpuTime() {
+        return synthesisCpuTime + outputCpuTime;
+    }
+
+    /**
+     * Start the synthesis and output threads.
+     */
+    public void start() {
+        synthesis = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synthesize();
+            }
+        }, "Decoder synthesis");
+
+        output = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                output();
+            }
+        }, "Decoder output");
+
+        synthesis.start();
+        output.start();
+    }
+
+    /**
+     * Wait until the queued packets are decoded and output, then stop.
+     */
+    public void finish() {
+        Item item = packets.claim();
+        if (item != null) {
+            item.type = END;
+            packets.publish();
+        }
+
+        try {
+            synthesis.join();
+            output.join();
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+
+    /**
+     * Stop without processing the queued data.
+     */
+    public void close() {
+        packets.close();
+        blocks.close();
+    }
+
+    /**
+     * Get whether stopped.
+     *
+     * @return Whether stopped
+     */
+    public boolean isClosed() {
+        return packets.isClosed();
+    }
+
+    /*
+     * Decoder thread
+     */
+
+    /**
+     * Queue start of a chain.
+     *
+     * @param setup Vorbis setup
+     * @param comment Vorbis comment, not modified afterwards
+     */
+    public void chain(Setup setup, Comment comment) {
+        Item item = packets.claim();
+        if (item != null) {
+            item.type = CHAIN;
+            item.setup = setup;
+            item.comment = comment;
+            packets.publish();
+        }
+    }
+
+    /**
+     * Queue loss of audio before a page.
+     *
+     * @param granule Granule position of the page
+     */
+    public void loss(long granule) {
+        queueGranule(LOSS, granule);
+    }
+
+    /**
+     * Queue restart of synthesis after skipped audio.
+     */
+    public void restart() {
+        Item item = packets.claim();
+        if (item != null) {
+            item.type = RESTART;
+            packets.publish();
+        }
+    }
+
+    /**
+     * Queue a packet, copying its data.
+     *
+     * @param packet Packet
+     */
+    public void packet(Packet packet) {
+        Item item = packets.claim();
+        if (item == null) {
+            return;
+        }
+
+        if (item.data.length < packet.bytes) {
+            item.data = new byte[packet.bytes];
+        }
+        System.arraycopy(packet.packet_base, packet.packet,
+                         item.data, 0, packet.bytes);
+
+        Packet copy = item.packet;
+        copy.packet_base = item.data;
+        copy.packet = 0;
+        copy.bytes = packet.bytes;
+        copy.b_o_s = packet.b_o_s;
+        copy.e_o_s = packet.e_o_s;
+        copy.granulepos = packet.granulepos;
+        copy.packetno = packet.packetno;
+
+        item.type = PACKET;
+        packets.publish();
+    }
+
+    /**
+     * Queue end of a page with a granule position.
+     *
+     * @param granule Granule position of the page
+     */
+    public void granule(long granule) {
+        queueGranule(GRANULE, granule);
+    }
+
+    /**
+     * Queue end of a chain.
+     */
+    public void endChain() {
+        Item item = packets.claim();
+        if (item != null) {
+            item.type = END_CHAIN;
+            packets.publish();
+        }
+    }
+
+    /**
+     * Queue an item carrying a granule position.
+     *
+     * @param type Item type
+     * @param granule Granule position
+     */
+    private void queueGranule(int type, long granule) {
+        Item item = packets.claim();
+        if (item != null) {
+            item.type = type;
+            item.granule = granule;
+            packets.publish();
+        }
+    }
+
+    /*
+     * Synthesis thread
+     */
+
+    /**
+     * Synthesis loop.
+     */
+    private void synthesize() {
+        try {
+            while (true) {
+                Item item = packets.take();
+                if (item == null) {
+                    return;
+                }
+
+                switch (item.type) {
+                case CHAIN:
+                    decoder.synthesisChain(item.setup, item.comment);
+                    item.setup = null;
+                    item.comment = null;
+                    break;
+
+                case LOSS:
+                    decoder.synthesisLoss(item.granule);
+                    break;
+
+                case RESTART:
+                    decoder.synthesisRestart();
+                    break;
+
+                case PACKET:
+                    decoder.synthesize(item.packet);
+                    synthesisCpuTime = Decoder.threadCpuTime();
+                    break;
+
+                case GRANULE:
+                    decoder.synthesisGranule(item.granule);
+                    break;
+
+                case END_CHAIN:
+                    decoder.synthesisEndChain();
+                    break;
+
+                case END:
+                    packets.release();
+
+                    Item end = blocks.claim();
+                    if (end != null) {
+                        end.type = END;
+                        blocks.publish();
+                    }
+                    return;
+                }
+
+                packets.release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Queue start of the output of a chain.
+     *
+     * @param info Vorbis info
+     * @param comment Vorbis comment
+     */
+    public void outputChain(Info info, Comment comment) {
+        Item item = blocks.claim();
+        if (item != null) {
+            item.type = CHAIN;
+            item.info = info;
+            item.comment = comment;
+            blocks.publish();
+        }
+    }
+
+    /**
+     * Queue audio, copying it.
+     *
+     * @param pcm Samples per channel
+     * @param index Offset in each channel, one per channel
+     * @param frames Samples per channel
+     */
+    public void pcm(float[][] pcm, int[] index, int frames) {
+        Item item = blocks.claim();
+        if (item == null) {
+            return;
+        }
+
+        int channels = index.length;
+        if (item.pcm.length < channels ||
+            (channels > 0 && item.pcm[0].length < frames)) {
+            int length = Math.max(frames, Decoder.BUFFER_SIZE);
+            item.pcm = new float[channels][length];
+            item.index = new int[channels];
+        }
+
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(pcm[c], index[c], item.pcm[c], 0, frames);
+        }
+
+        item.type = PCM;
+        item.frames = frames;
+        blocks.publish();
+    }
+
+    /*
+     * Output thread
+     */
+
+    /**
+     * Output loop.
+     */
+    private void output() {
+        try {
+            while (true) {
+                Item item = blocks.take();
+                if (item == null) {
+                    return;
+                }
+
+                switch (item.type) {
+                case CHAIN:
+                    decoder.outputChain(item.info, item.comment);
+                    item.info = null;
+                    item.comment = null;
+                    break;
+
+                case PCM:
+                    // Before output, counted in the load of what it delivers
+                    outputCpuTime = Decoder.threadCpuTime();
+                    decoder.output(item.pcm, item.index, item.frames);
+                    break;
+
+                case END:
+                    blocks.release();
+                    return;
+                }
+
+                blocks.release();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+}
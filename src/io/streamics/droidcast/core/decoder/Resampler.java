@@ -0,0 +1,250 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+/**
+ * Fractional resampler for planar float audio.
+ *
+ * Uses a windowed sinc interpolation kernel tabulated for
+ * {@link #PHASES} fractional positions, interpolating linearly between
+ * adjacent phases. The ratio may change between output samples without
+ * discontinuities, which allows tracking small clock differences.
+ *
+ * <ol>
+ *   <li>
+ *     Call {@link #buffer(int)} and write input samples to
+ *     {@link #getData()} at the returned offset, then call
+ *     {@link #wrote(int)}.
+ *   </li>
+ *   <li>
+ *     While {@link #next()} returns {@code true}, read each channel of the
+ *     output sample with {@link #sample(int)}.
+ *   </li>
+ * </ol>
+ */
+public class Resampler {
+    /**
+     * Kernel length in input samples.
+     */
+    public static final int TAPS = 16;
+
+    /**
+     * Number of tabulated fractional positions.
+     */
+    public static final int PHASES = 256;
+
+    private static final int HALF = TAPS / 2;
+
+    private float[][] kernel;
+    private float[][] data;
+    private int fill;
+    private double time;
+    private double step;
+    private volatile double ratio = 1.0;
+
+    // Current output sample
+    private int start;
+    private float[] low;
+    private float[] high;
+    private float blend;
+
+    /**
+     * Constructor for {@code Resampler}.
+     *
+     * @param channels Number of channels
+     * @param cutoff Cutoff frequency relative to the input Nyquist
+     *               frequency, at most 1
+     */
+    public Resampler(int channels, double cutoff) {
+        this.kernel = createKernel(Math.min(cutoff, 1.0));
+        this.data = new float[channels][TAPS * 64];
+
+        // Start with silence so the first output is centered on the first
+        // input sample
+        this.fill = HALF - 1;
+        this.time = HALF - 1;
+        this.step = 1.0;
+    }
+
+    /**
+     * Create tabulated kernel.
+     *
+     * @param cutoff Relative cutoff frequency
+     * @return Kernel rows for each phase plus one
+     */
+    private static float[][] createKernel(double cutoff) {
+        float[][] kernel = new float[PHASES + 1][TAPS];
+
+        for (int p = 0; p <= PHASES; p++) {
+            double fraction = (double) p / PHASES;
+            double sum = 0;
+
+            for (int k = 0; k < TAPS; k++) {
+                double distance = k - (HALF - 1) - fraction;
+
+                double x = Math.PI * cutoff * distance;
+                double sinc = x == 0 ? 1 : Math.sin(x) / x;
+
+                // Blackman window over the kernel span
+                double w = 2 * Math.PI * (distance + HALF) / TAPS;
+                double window = 0.42 - 0.5 * Math.cos(w) +
+                                0.08 * Math.cos(2 * w);
+
+                kernel[p][k] = (float) (sinc * window);
+                sum += kernel[p][k];
+            }
+
+            // Unity gain at DC
+            for (int k = 0; k < TAPS; k++) {
+                kernel[p][k] /= sum;
+            }
+        }
+
+        return kernel;
+    }
+
+    /**
+     * Set resampling ratio. May be called from any thread.
+     *
+     * @param ratio Output samples per input sample
+     */
+    public void setRatio(double ratio) {
+        this.ratio = ratio;
+    }
+
+    /**
+     * Get resampling ratio.
+     *
+     * @return Output samples per input sample
+     */
+    public double getRatio() {
+        return this.ratio;
+    }
+
+    /**
+     * Get the maximum number of output samples for an input block.
+     *
+     * @param samples Input samples per channel
+     * @return Output samples per channel
+     */
+    public int getMaxOutput(int samples) {
+        return (int) Math.ceil((samples + TAPS) * ratio) + 1;
+    }
+
+    /**
+     * Get input buffers, one per channel.
+     *
+     * @return Buffers
+     */
+    public float[][] getData() {
+        return this.data;
+    }
+
+    /**
+     * Make room for input samples.
+     *
+     * @param samples Samples per channel
+     * @return Offset in {@link #getData()} where to write them
+     */
+    public int buffer(int samples) {
+        if (fill + samples > data[0].length) {
+            int capacity = Math.max(fill + samples, data[0].length * 2);
+            for (int c = 0; c < data.length; c++) {
+                float[] grown = new float[capacity];
+                System.arraycopy(data[c], 0, grown, 0, fill);
+                data[c] = grown;
+            }
+        }
+        return fill;
+    }
+
+    /**
+     * Commit input samples written after {@link #buffer(int)}.
+     *
+     * @param samples Samples per channel
+     */
+    public void wrote(int samples) {
+        fill += samples;
+        step = 1.0 / ratio;
+    }
+
+    /**
+     * Move to the next output sample.
+     *
+     * @return Whether there is enough input for it, if not the input no
+     *         longer needed is discarded
+     */
+    public boolean next() {
+        int base = (int) time;
+
+        if (base + HALF >= fill) {
+            compact();
+            return false;
+        }
+
+        double position = (time - base) * PHASES;
+        int phase = (int) position;
+
+        blend = (float) (position - phase);
+        low = kernel[phase];
+        high = kernel[phase + 1];
+        start = base - HALF + 1;
+
+        time += step;
+        return true;
+    }
+
+    /**
+     * Get a channel of the current output sample.
+     *
+     * @param channel Channel
+     * @return Interpolated sample
+     */
+    public float sample(int channel) {
+        float[] input = data[channel];
+        float[] low = this.low;
+        float[] high = this.high;
+        float blend = this.blend;
+        int start = this.start;
+
+        float sum = 0;
+        for (int k = 0; k < TAPS; k++) {
+            sum += input[start + k] * (low[k] + blend * (high[k] - low[k]));
+        }
+        return sum;
+    }
+
+    /**
+     * Discard input no longer needed.
+     */
+    private void compact() {
+        int discard = (int) time - HALF + 1;
+        if (discard > 0) {
+            for (int c = 0; c < data.length; c++) {
+                System.arraycopy(data[c], discard, data[c], 0,
+                                 fill - discard);
+            }
+            fill -= discard;
+            time -= discard;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,223 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.decoder;
+
+/**
+ * Watchdog detecting a stalled {@link Decoder}, which receives no data or
+ * decodes no audio for longer than expected, such as when a server stops
+ * sending but keeps the connection open.
+ *
+ * Progress is sampled by calling {@link #check(long)} at a regular
+ * interval. Timeouts adapt to the intervals between progress observed so
+ * far and to the received bitrate, so a low bitrate stream delivering
+ * data in bursts is given more time than a steady one. They are bounded
+ * by {@link #MIN_TIMEOUT} and {@link #MAX_TIMEOUT}.
+ */
+public class Watchdog {
+    /**
+     * Check results.
+     */
+    public static final int OK = 0;
+    public static final int RECEIVE_STALL = 1;
+    public static final int DECODE_STALL = 2;
+
+    /**
+     * Minimum time without progress in milliseconds considered a stall.
+     */
+    public static final long MIN_TIMEOUT = 4000;
+
+    /**
+     * Maximum time without progress in milliseconds, also applied until
+     * intervals were observed.
+     */
+    public static final long MAX_TIMEOUT = 20000;
+
+    /**
+     * Pages worth of data allowed to be missing at the received bitrate.
+     */
+    public static final int PAGE_ALLOWANCE = 2;
+
+    // Typical size of a page of an audio stream
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * Timeout estimated from the intervals between progress, as the mean
+     * interval plus four times its mean deviation.
+     */
+    private static class Timeout {
+        private long last;
+        private double mean = -1;
+        private double deviation = 0;
+
+        /**
+         * Record progress.
+         *
+         * @param now Time in milliseconds
+         */
+        public void progress(long now) {
+            long interval = now - last;
+            last = now;
+
+            if (mean < 0) {
+                mean = interval;
+                deviation = interval / 2.0;
+            } else {
+                deviation += (Math.abs(interval - mean) - deviation) / 4;
+                mean += (interval - mean) / 8;
+            }
+        }
+
+        /**
+         * Get timeout.
+         *
+         * @param minimum Lower bound in milliseconds
+         * @return Milliseconds
+         */
+        public long get(long minimum) {
+            if (mean < 0) {
+                return MAX_TIMEOUT;
+            }
+
+            long timeout = (long) (mean + 4 * deviation);
+            return Math.min(Math.max(timeout, minimum), MAX_TIMEOUT);
+        }
+    }
+
+    private Decoder decoder;
+    private long startTime;
+    private long startBytes;
+
+    private long bytes;
+    private long position;
+    private Timeout receiveTimeout = new Timeout();
+    private Timeout decodeTimeout = new Timeout();
+    private int stall = OK;
+
+    /**
+     * Constructor for {@code Watchdog}.
+     *
+     * @param decoder Decoder
+     * @param now Time in milliseconds
+     */
+    public Watchdog(Decoder decoder, long now) {
+        this.decoder = decoder;
+        this.startTime = now;
+        this.startBytes = decoder.getBytesReceived();
+        this.bytes = startBytes;
+        this.position = decoder.getPosition();
+        this.receiveTimeout.last = now;
+        this.decodeTimeout.last = now;
+    }
+
+    /**
+     * Check progress of the decoder.
+     *
+     * A stall is reported by each check until the decoder progresses
+     * again, and counted in the {@link DecoderStats} of the decoder once.
+     *
+     * @param now Time in milliseconds
+     * @return {@link #OK}, {@link #RECEIVE_STALL} or {@link #DECODE_STALL}
+     */
+    public int check(long now) {
+        long currentBytes = decoder.getBytesReceived();
+        long currentPosition = decoder.getPosition();
+
+        if (currentBytes != bytes) {
+            bytes = currentBytes;
+            receiveTimeout.progress(now);
+        }
+        if (currentPosition != position) {
+            position = currentPosition;
+            decodeTimeout.progress(now);
+        }
+
+        long minimum = getMinimumTimeout(now);
+        int result = OK;
+        if (now - receiveTimeout.last > receiveTimeout.get(minimum)) {
+            result = RECEIVE_STALL;
+        } else if (now - decodeTimeout.last > decodeTimeout.get(minimum)) {
+            result = DECODE_STALL;
+        }
+
+        if (result != OK && stall == OK) {
+            DecoderStats stats = decoder.getStats();
+            if (result == RECEIVE_STALL) {
+                stats.receiveStalls++;
+            } else {
+                stats.decodeStalls++;
+            }
+        }
+
+        stall = result;
+        return result;
+    }
+
+    /**
+     * Restart measuring time without progress, such as after the decoder
+     * was paused.
+     *
+     * @param now Time in milliseconds
+     */
+    public void reset(long now) {
+        receiveTimeout.last = now;
+        decodeTimeout.last = now;
+        stall = OK;
+    }
+
+    /**
+     * Get time without progress.
+     *
+     * @param now Time in milliseconds
+     * @return Milliseconds since data was last received or audio decoded
+     */
+    public long getStallTime(long now) {
+        return now - Math.min(receiveTimeout.last, decodeTimeout.last);
+    }
+
+    /**
+     * Get current timeout for receiving data.
+     *
+     * @param now Time in milliseconds
+     * @return Milliseconds
+     */
+    public long getReceiveTimeout(long now) {
+        return receiveTimeout.get(getMinimumTimeout(now));
+    }
+
+    /**
+     * Get lower bound of the timeouts, the time to receive a few pages at
+     * the average bitrate.
+     *
+     * @param now Time in milliseconds
+     * @return Milliseconds
+     */
+    private long getMinimumTimeout(long now) {
+        long received = bytes - startBytes;
+        long elapsed = now - startTime;
+        if (received <= 0 || elapsed <= 0) {
+            return MIN_TIMEOUT;
+        }
+
+        long pageTime = PAGE_SIZE * elapsed / received;
+        return Math.max(MIN_TIMEOUT, PAGE_ALLOWANCE * pageTime);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.recorder;
+
+import io.streamics.droidcast.core.decoder.Decoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.jcraft.jogg.Page;
+
+/**
+ * Recorder writing the compressed OGG pages of a stream to disk.
+ *
+ * <ol>
+ *   <li>Create a {@code Recorder} specifying a directory.</li>
+ *   <li>
+ *     Add it to a {@link Decoder} with
+ *     {@link Decoder#addPageConsumer(Decoder.PageConsumer)}.
+ *   </li>
+ *   <li>Call {@link #close()} to finish recording.</li>
+ * </ol>
+ *
+ * Each chained stream (track) is written to its own file. Pages are copied
+ * into a fixed pool of batch buffers and written by a background thread,
+ * so the decoder never waits for the disk. If the disk cannot keep up,
+ * pages are dropped until the next chain and counted in
+ * {@link #getDropped()}. Recording starts with the current chain, as the
+ * decoder passes its header pages first. If writing fails, recording
+ * stops and the error is kept in {@link #getError()}.
+ */
+public class Recorder implements Decoder.PageConsumer {
+    public static final int BATCH_SIZE = 64 * 1024;
+    public static final int BATCH_COUNT = 8;
+
+    public static final String EXTENSION = ".ogg";
+
+    // Writer markers
+    private static final ByteBuffer SPLIT = ByteBuffer.allocate(0);
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private File directory;
+    private String prefix;
+
+    private BlockingQueue<ByteBuffer> free =
+            new ArrayBlockingQueue<ByteBuffer>(BATCH_COUNT);
+    private BlockingQueue<ByteBuffer> filled =
+            new LinkedBlockingQueue<ByteBuffer>();
+
+    private ByteBuffer batch = null;
+    private boolean recording = false;
+    private boolean closed = false;
+    private volatile int dropped = 0;
+    private volatile int files = 0;
+    private volatile IOException error = null;
+
+    private Thread writer;
+
+    /**
+     * Constructor for {@code Recorder}.
+     *
+     * @param directory Directory where files are created
+     * @param prefix File name prefix
+     */
+    public Recorder(File directory, String prefix) {
+        this.directory = directory;
+        this.prefix = prefix;
+
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            free.add(ByteBuffer.allocate(BATCH_SIZE));
+        }
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "Recorder");
+        this.writer.start();
+    }
+
+    @Override
+    public synchronized void onPage(Page page) {
+        if (closed || error != null) {
+            return;
+        }
+
+        if (page.bos() != 0) {
+            flush();
+            filled.add(SPLIT);
+            recording = true;
+        }
+
+        if (!recording) {
+            return;
+        }
+
+        int size = page.header_len + page.body_len;
+
+        if (batch != null && batch.remaining() < size) {
+            flush();
+        }
+
+        if (batch == null) {
+            batch = free.poll();
+
+            if (batch == null) {
+                // Writer is behind, skip the rest of this chain
+                recording = false;
+                dropped++;
+                return;
+            }
+        }
+
+        batch.put(page.header_base, page.header, page.header_len);
+        batch.put(page.body_base, page.body, page.body_len);
+    }
+
+    /**
+     * Finish recording. Pages already received are still written.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            flush();
+            filled.add(CLOSE);
+            closed = true;
+        }
+    }
+
+    /**
+     * Get number of chains that were cut short because the disk could not
+     * keep up.
+     *
+     * @return Dropped chains
+     */
+    public int getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Get error that stopped recording.
+     *
+     * @return Error or {@code null} if none
+     */
+    public IOException getError() {
+        return this.error;
+    }
+
+    /**
+     * Get number of files created.
+     *
+     * @return Files
+     */
+    public int getFiles() {
+        return this.files;
+    }
+
+    /**
+     * Hand current batch to the writer.
+     */
+    private void flush() {
+        if (batch != null) {
+            batch.flip();
+            filled.add(batch);
+            batch = null;
+        }
+    }
+
+    /**
+     * Writer loop.
+     */
+    private void write() {
+        FileChannel channel = null;
+
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+
+                if (buffer == CLOSE) {
+                    break;
+                }
+
+                if (buffer == SPLIT) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+
+                    files++;
+                    File file = new File(directory, String.format(
+                            "%s-%03d%s", prefix, files, EXTENSION));
+                    channel = new FileOutputStream(file).getChannel();
+                    continue;
+                }
+
+                try {
+                    while (channel != null && buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } finally {
+                    buffer.clear();
+                    free.add(buffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            // Stop recording, later chains would fail alike
+            error = e;
+            e.printStackTrace();
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
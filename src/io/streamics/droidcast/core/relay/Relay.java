@@ -0,0 +1,374 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.relay;
+
+import io.streamics.droidcast.core.decoder.Decoder;
+import io.streamics.droidcast.core.source.Source;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.jcraft.jogg.Page;
+
+/**
+ * HTTP server relaying the compressed OGG pages of a stream to local
+ * listeners.
+ *
+ * <ol>
+ *   <li>Create a {@code Relay} specifying a port.</li>
+ *   <li>
+ *     Add it to a {@link Decoder} with
+ *     {@link Decoder#addPageConsumer(Decoder.PageConsumer)}, the relay may
+ *     be moved to a new decoder to change the relayed stream.
+ *   </li>
+ *   <li>Call {@link #start()} to start serving.</li>
+ *   <li>Call {@link #close()} to stop serving.</li>
+ * </ol>
+ *
+ * Each page is copied once into a read-only buffer kept in a ring shared
+ * by all listeners, which only keep their position in the ring. New
+ * listeners receive the header pages of the current chain and then join
+ * at the next page. Listeners that fall behind the ring skip to the most
+ * recent page.
+ */
+public class Relay implements Decoder.PageConsumer {
+    public static final int RING_SIZE = 64;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Connected listener.
+     */
+    private class Listener {
+        private SocketChannel channel;
+        private List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+        private long next;
+
+        private ByteBuffer current = null;
+
+        public Listener(SocketChannel channel, ByteBuffer response,
+                        List<ByteBuffer> headers, long next) {
+            this.channel = channel;
+            this.next = next;
+
+            pending.add(response);
+            for (ByteBuffer header : headers) {
+                pending.add(header.duplicate());
+            }
+        }
+
+        /**
+         * Get whether there is data to write.
+         */
+        public boolean isWritable() {
+            return current != null || !pending.isEmpty() || next < sequence;
+        }
+
+        /**
+         * Write as much data as the socket accepts.
+         *
+         * @throws IOException
+         */
+        public void write() throws IOException {
+            while (true) {
+                if (current == null) {
+                    if (pending.isEmpty()) {
+                        current = take(this);
+                    } else {
+                        current = pending.remove(0);
+                    }
+
+                    if (current == null) {
+                        return;
+                    }
+                }
+
+                channel.write(current);
+                if (current.hasRemaining()) {
+                    return;
+                }
+
+                current = null;
+            }
+        }
+    }
+
+    private int port;
+    private String name;
+    private String genre;
+
+    private ByteBuffer[] ring = new ByteBuffer[RING_SIZE];
+    private volatile long sequence = 0;
+    private List<ByteBuffer> headers = new ArrayList<ByteBuffer>();
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Constructor for {@code Relay}.
+     *
+     * @param port Port to listen on
+     * @param name Stream name sent as ICY header or {@code null}
+     * @param genre Stream genre sent as ICY header or {@code null}
+     */
+    public Relay(int port, String name, String genre) {
+        this.port = port;
+        this.name = name;
+        this.genre = genre;
+    }
+
+    /**
+     * Start serving.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "Relay");
+        thread.start();
+    }
+
+    /**
+     * Stop serving and disconnect all listeners.
+     */
+    public void close() {
+        running = false;
+
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Get port.
+     *
+     * @return Port
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Get number of connected listeners.
+     *
+     * @return Listeners
+     */
+    public int getListeners() {
+        Selector current = selector;
+        if (current == null || !current.isOpen()) {
+            return 0;
+        }
+        return Math.max(0, current.keys().size() - 1);
+    }
+
+    @Override
+    public void onPage(Page page) {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                page.header_len + page.body_len);
+        buffer.put(page.header_base, page.header, page.header_len);
+        buffer.put(page.body_base, page.body, page.body_len);
+        buffer.flip();
+        buffer = buffer.asReadOnlyBuffer();
+
+        synchronized (this) {
+            // Header pages are the ones preceding the first audio granule
+            if (page.bos() != 0) {
+                headers.clear();
+            }
+            if (page.granulepos() == 0) {
+                headers.add(buffer);
+            }
+
+            ring[(int) (sequence % RING_SIZE)] = buffer;
+            sequence++;
+        }
+
+        if (running) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Take next page for a listener.
+     *
+     * @param listener Listener
+     * @return Page buffer or {@code null} if there is none yet
+     */
+    private synchronized ByteBuffer take(Listener listener) {
+        if (listener.next >= sequence) {
+            return null;
+        }
+
+        if (listener.next < sequence - RING_SIZE) {
+            listener.next = sequence - 1;
+        }
+
+        ByteBuffer buffer = ring[(int) (listener.next % RING_SIZE)];
+        listener.next++;
+        return buffer.duplicate();
+    }
+
+    /**
+     * Accept listener.
+     *
+     * @throws IOException
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+
+        Listener listener;
+        synchronized (this) {
+            listener = new Listener(
+                    channel, createResponse(), headers, sequence);
+        }
+
+        channel.register(selector, SelectionKey.OP_READ, listener);
+    }
+
+    /**
+     * Create HTTP response header.
+     *
+     * @return Response
+     */
+    private ByteBuffer createResponse() {
+        StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.0 200 OK\r\n");
+        response.append("Content-Type: ");
+        response.append(Source.ContentType.CONTENT_TYPE_OGG);
+        response.append("\r\n");
+        if (name != null) {
+            response.append(Source.Icy.ICY_HEADER_NAME);
+            response.append(": ").append(name).append("\r\n");
+        }
+        if (genre != null) {
+            response.append(Source.Icy.ICY_HEADER_GENRE);
+            response.append(": ").append(genre).append("\r\n");
+        }
+        response.append("Cache-Control: no-cache\r\n\r\n");
+        return ByteBuffer.wrap(response.toString().getBytes(ASCII));
+    }
+
+    /**
+     * Selector loop.
+     */
+    private void serve() {
+        ByteBuffer discard = ByteBuffer.allocate(1024);
+
+        try {
+            while (running) {
+                selector.select();
+
+                Iterator<SelectionKey> iterator =
+                        selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Listener listener = (Listener) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            // Request contents are ignored
+                            discard.clear();
+                            if (listener.channel.read(discard) < 0) {
+                                key.cancel();
+                                listener.channel.close();
+                                continue;
+                            }
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            listener.write();
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        listener.channel.close();
+                    }
+                }
+
+                // Only wait for writability when there is data to write
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.attachment() != null) {
+                        Listener listener = (Listener) key.attachment();
+                        int ops = SelectionKey.OP_READ;
+                        if (listener.isWritable()) {
+                            ops |= SelectionKey.OP_WRITE;
+                        }
+                        key.interestOps(ops);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.core.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Input stream of an HTTP or ICY response read from a
+ * {@code SocketChannel}.
+ *
+ * Only the minimal protocol needed by stream servers is spoken: an
+ * HTTP/1.0 request without chunked transfer encoding, following
+ * redirects. Data is read from the socket into a direct buffer reused for
+ * every read, so the channel needs no temporary buffer of its own, and
+ * copied to the array passed to {@link #read(byte[], int, int)}.
+ *
+ * Reads are not subject to a timeout once the response headers are
+ * received, but fail as soon as the stream is closed from another thread.
+ */
+public class ChannelInputStream extends InputStream {
+    /**
+     * Time in milliseconds to connect before failing.
+     */
+    public static final int CONNECT_TIMEOUT = 15000;
+
+    /**
+     * Maximum number of redirects followed.
+     */
+    public static final int MAX_REDIRECTS = 5;
+
+    /**
+     * Maximum size in bytes of the response headers.
+     */
+    public static final int MAX_HEADER_SIZE = 16384;
+
+    /**
+     * Size in bytes of the direct buffer, the most read at once.
+     */
+    public static final int BUFFER_SIZE = 32768;
+
+    private static final String USER_AGENT = "Droidcast";
+
+    private SocketChannel channel;
+    private Map<String, String> headers = new HashMap<String, String>();
+
+    // Data received with the response headers
+    private ByteBuffer pending;
+
+    // Socket stream, only used to query received data
+    private InputStream received;
+
+    // Buffer the socket is read into
+    private ByteBuffer direct;
+
+    /**
+     * Connect to a URL, following redirects.
+     *
+     * @param url URL
+     * @return Stream or {@code null} if the URL must be opened with a
+     *         {@code URLConnection} instead, such as for HTTPS
+     * @throws IOException
+     */
+    public static ChannelInputStream open(URL url) throws IOException {
+        URL location = url;
+
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            if (!isSupported(location)) {
+                return null;
+            }
+
+            ChannelInputStream stream = new ChannelInputStream();
+            String redirect;
+            try {
+                redirect = stream.connect(location);
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+
+            if (redirect == null) {
+                return stream;
+            }
+
+            stream.close();
+            location = new URL(location, redirect);
+        }
+
+        throw new IOException("Too many redirects");
+    }
+
+    /**
+     * Get whether a URL can be opened.
+     *
+     * @param url URL
+     * @return Whether supported
+     */
+    private static boolean isSupported(URL url) {
+        return "http".equals(url.getProtocol()) && url.getUserInfo() == null;
+    }
+
+    /**
+     * Constructor for {@code ChannelInputStream}.
+     */
+    private ChannelInputStream() {
+    }
+
+    /**
+     * Send request and receive response headers.
+     *
+     * @param url URL
+     * @return Redirect location or {@code null} if connected
+     * @throws IOException
+     */
+    private String connect(URL url) throws IOException {
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        String file = url.getFile().length() > 0 ? url.getFile() : "/";
+        String host = url.getHost() +
+                (url.getPort() < 0 ? "" : ":" + url.getPort());
+
+        channel = SocketChannel.open();
+        Socket socket = channel.socket();
+        socket.connect(new InetSocketAddress(url.getHost(), port),
+                       CONNECT_TIMEOUT);
+
+        String request =
+                "GET " + file + " HTTP/1.0\r\n" +
+                "Host: " + host + "\r\n" +
+                "User-Agent: " + USER_AGENT + "\r\n" +
+                "Accept: */*\r\n" +
+                "Icy-MetaData: 0\r\n" +
+                "Connection: close\r\n" +
+                "\r\n";
+
+        ByteBuffer output = ByteBuffer.wrap(request.getBytes("ISO-8859-1"));
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+
+        // Read through the socket to apply the timeout
+        socket.setSoTimeout(Source.READ_TIMEOUT);
+        InputStream input = socket.getInputStream();
+
+        byte[] header = new byte[MAX_HEADER_SIZE];
+        int length = 0;
+        int end = -1;
+        while (end < 0) {
+            if (length == header.length) {
+                throw new IOException("Response headers too large");
+            }
+
+            int bytes = input.read(header, length, header.length - length);
+            if (bytes < 0) {
+                throw new IOException("Connection closed");
+            }
+
+            int from = Math.max(0, length - 3);
+            length += bytes;
+            end = findHeaderEnd(header, from, length);
+        }
+
+        pending = ByteBuffer.wrap(header, end, length - end);
+
+        String[] lines = new String(header, 0, end, "ISO-8859-1")
+                .split("\r?\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2) {
+            throw new IOException("Invalid response: " + lines[0]);
+        }
+
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(
+                        lines[i].substring(0, colon).trim().toLowerCase(),
+                        lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        int code;
+        try {
+            code = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid response: " + lines[0]);
+        }
+
+        if (code >= 300 && code < 400 && getHeaderField("location") != null) {
+            return getHeaderField("location");
+        } else if (code != 200) {
+            throw new IOException("Unexpected response: " + lines[0]);
+        }
+
+        return null;
+    }
+
+    /**
+     * Find the end of the response headers.
+     *
+     * @param data Received data
+     * @param from Offset to search from
+     * @param length Length of the received data
+     * @return Offset of the body or {@code -1} if not received yet
+     */
+    private static int findHeaderEnd(byte[] data, int from, int length) {
+        for (int i = from; i < length - 1; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (data[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (data[i + 1] == '\r' && i + 2 < length &&
+                data[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get response header.
+     *
+     * @param name Header name, case insensitive
+     * @return Value or {@code null} if missing
+     */
+    public String getHeaderField(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Get content type.
+     *
+     * @return Content type or {@code null} if missing
+     */
+    public String getContentType() {
+        return getHeaderField("content-type");
+    }
+
+    /**
+     * Get content length.
+     *
+     * @return Bytes, negative if unknown
+     */
+    public long getContentLength() {
+        String value = getHeaderField("content-length");
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int bytes = read(single, 0, 1);
+        return bytes <= 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+            throws IOException {
+
+        if (length == 0) {
+            return 0;
+        }
+
+        if (pending.hasRemaining()) {
+            int bytes = Math.min(length, pending.remaining());
+            pending.get(buffer, offset, bytes);
+            return bytes;
+        }
+
+        if (direct == null) {
+            direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        direct.clear();
+        direct.limit(Math.min(length, BUFFER_SIZE));
+        int bytes = channel.read(direct);
+        if (bytes > 0) {
+            direct.flip();
+            direct.get(buffer, offset, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Get amount of data that can be read without blocking, received with
+     * the response headers or waiting in the socket.
+     */
+    @Override
+    public int available() throws IOException {
+        int bytes = pending == null ? 0 : pending.remaining();
+        if (channel != null && channel.isOpen()) {
+            if (received == null) {
+                received = channel.socket().getInputStream();
+            }
+            bytes += received.available();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
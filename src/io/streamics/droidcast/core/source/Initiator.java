@@ -49,6 +49,7 @@ public class Initiator extends AsyncTask<Void, Void, Source> {
     }
 
     private String url;
+    private boolean direct;
     private Handler handler;
 
     /**
@@ -58,14 +59,26 @@ public class Initiator extends AsyncTask<Void, Void, Source> {
      * @param handler Handler
      */
     public Initiator(String url, Handler handler) {
+        this(url, false, handler);
+    }
+
+    /**
+     * Constructor for {@code Initiator}.
+     *
+     * @param url Source URL
+     * @param direct Whether to connect with a channel stream
+     * @param handler Handler
+     */
+    public Initiator(String url, boolean direct, Handler handler) {
         this.url = url;
+        this.direct = direct;
         this.handler = handler;
     }
 
     @Override
     protected Source doInBackground(Void... params) {
         try {
-            return new Source(this.url);
+            return new Source(this.url, this.direct);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -24,6 +24,8 @@ package io.streamics.droidcast.core.source;
 import java.io.BufferedInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
@@ -34,8 +36,30 @@ import java.net.URLConnection;
 public class Source {
     /**
      * Input stream
+     *
+     * While paused, data keeps being received into a bounded buffer on a
+     * separate thread, so the connection stays alive. Once resumed, reads
+     * are served from the buffer until it is drained.
      */
-    public class Stream extends FilterInputStream {
+    public class Stream extends FilterInputStream implements Runnable {
+        private final Object lock = new Object();
+
+        // Data received while paused
+        private byte[] pauseBuffer = null;
+        private int head = 0;
+        private int count = 0;
+
+        private boolean paused = false;
+        private boolean filling = false;
+        private boolean rejoinLive = false;
+        private boolean dropped = false;
+        private boolean ended = false;
+        private boolean closed = false;
+        private IOException error = null;
+
+        // Whether reads go through the pause buffer, else straight on
+        private volatile boolean buffering = false;
+
         /**
          * Constructor for {@code Stream}.
          *
@@ -45,6 +69,269 @@ public class Source {
         public Stream(URLConnection connection) throws IOException {
             super(new BufferedInputStream(connection.getInputStream()));
         }
+
+        /**
+         * Constructor for {@code Stream} reading from an unbuffered input
+         * stream, which is read into the caller's buffer directly.
+         *
+         * @param input Input stream
+         */
+        public Stream(InputStream input) {
+            super(input);
+        }
+
+        /**
+         * Keep receiving into a buffer instead of being read.
+         *
+         * When the buffer is full, receiving stops, or with
+         * {@code rejoinLive} the oldest pages are dropped.
+         *
+         * @param limit Buffer size in bytes
+         * @param rejoinLive Whether to keep the newest data only
+         */
+        public void pause(int limit, boolean rejoinLive) {
+            synchronized (lock) {
+                if (paused || closed) {
+                    return;
+                }
+
+                paused = true;
+                buffering = true;
+                dropped = false;
+                this.rejoinLive = rejoinLive;
+
+                if (pauseBuffer == null || pauseBuffer.length != limit) {
+                    byte[] created = new byte[limit];
+                    int kept = Math.min(count, limit);
+                    for (int i = 0; i < kept; i++) {
+                        created[i] = pauseBuffer[(head + i) %
+                                                 pauseBuffer.length];
+                    }
+                    pauseBuffer = created;
+                    head = 0;
+                    count = kept;
+                }
+
+                if (!filling) {
+                    filling = true;
+                    Thread thread = new Thread(this, "Stream receiver");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        }
+
+        /**
+         * Continue reading. With {@code rejoinLive}, buffered data older
+         * than the specified amount is dropped.
+         *
+         * @param keep Bytes of the newest data to keep when rejoining live
+         */
+        public void resume(int keep) {
+            synchronized (lock) {
+                if (!paused) {
+                    return;
+                }
+
+                paused = false;
+                if (rejoinLive && count > keep) {
+                    drop(count - keep);
+                }
+                lock.notifyAll();
+            }
+        }
+
+        /**
+         * Get whether data was dropped since the stream was last paused,
+         * so what is read next does not continue what was read before.
+         *
+         * @return Whether dropped
+         */
+        public boolean hasDropped() {
+            synchronized (lock) {
+                return dropped;
+            }
+        }
+
+        /**
+         * Receive into the pause buffer until resumed and drained.
+         */
+        @Override
+        public void run() {
+            byte[] chunk = new byte[8192];
+
+            while (true) {
+                int size;
+                synchronized (lock) {
+                    // Only a paused live stream drops data
+                    boolean dropping = paused && rejoinLive;
+
+                    while (!closed && !dropping &&
+                           count == pauseBuffer.length) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                        dropping = paused && rejoinLive;
+                    }
+
+                    if (closed || (!paused && count == 0)) {
+                        filling = false;
+                        lock.notifyAll();
+                        return;
+                    }
+
+                    size = Math.min(chunk.length, dropping
+                            ? pauseBuffer.length
+                            : pauseBuffer.length - count);
+                }
+
+                int bytes;
+                try {
+                    bytes = in.read(chunk, 0, size);
+                } catch (IOException e) {
+                    synchronized (lock) {
+                        error = e;
+                        filling = false;
+                        lock.notifyAll();
+                    }
+                    return;
+                }
+
+                synchronized (lock) {
+                    if (bytes < 0) {
+                        ended = true;
+                        filling = false;
+                        lock.notifyAll();
+                        return;
+                    }
+
+                    int free = pauseBuffer.length - count;
+                    if (bytes > free) {
+                        drop(bytes - free);
+                    }
+
+                    for (int i = 0; i < bytes; i++) {
+                        pauseBuffer[(head + count + i) % pauseBuffer.length] =
+                                chunk[i];
+                    }
+                    count += bytes;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Drop buffered data from the start, up to the next page boundary.
+         *
+         * @param bytes Minimum number of bytes to drop
+         */
+        private void drop(int bytes) {
+            int skip = bytes;
+            while (skip < count && !isCapturePattern(skip)) {
+                skip++;
+            }
+
+            skip = Math.min(skip, count);
+            head = (head + skip) % pauseBuffer.length;
+            count -= skip;
+            dropped |= skip > 0;
+        }
+
+        /**
+         * Get whether an OGG page starts at a buffer position.
+         *
+         * @param offset Offset from the buffer start
+         * @return Whether the capture pattern starts at the offset
+         */
+        private boolean isCapturePattern(int offset) {
+            if (offset + 4 > count) {
+                return false;
+            }
+
+            int length = pauseBuffer.length;
+            return pauseBuffer[(head + offset) % length] == 'O' &&
+                   pauseBuffer[(head + offset + 1) % length] == 'g' &&
+                   pauseBuffer[(head + offset + 2) % length] == 'g' &&
+                   pauseBuffer[(head + offset + 3) % length] == 'S';
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int bytes = read(single, 0, 1);
+            return bytes <= 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException {
+
+            if (!buffering) {
+                return in.read(buffer, offset, length);
+            }
+
+            synchronized (lock) {
+                while (filling && count == 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                }
+
+                if (count > 0) {
+                    int bytes = Math.min(length, count);
+                    for (int i = 0; i < bytes; i++) {
+                        buffer[offset + i] =
+                                pauseBuffer[(head + i) % pauseBuffer.length];
+                    }
+                    head = (head + bytes) % pauseBuffer.length;
+                    count -= bytes;
+                    lock.notifyAll();
+                    return bytes;
+                }
+
+                if (error != null) {
+                    IOException e = error;
+                    error = null;
+                    throw e;
+                }
+
+                if (ended) {
+                    return -1;
+                }
+
+                // Drained, read straight on until paused again
+                buffering = false;
+            }
+
+            return in.read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (!buffering) {
+                return in.available();
+            }
+
+            synchronized (lock) {
+                if (filling || count > 0) {
+                    return count;
+                }
+            }
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+            super.close();
+        }
     }
 
     /**
@@ -62,10 +349,17 @@ public class Source {
         public static final String ICY_HEADER_NAME = "icy-name";
     }
 
+    /**
+     * Time in milliseconds a read may block before failing, as a last
+     * resort when the stream is not watched for stalls.
+     */
+    public static final int READ_TIMEOUT = 30000;
+
     /*
      * Communication
      */
     private URLConnection connection;
+    private ChannelInputStream channel;
     private Stream stream;
 
     /*
@@ -75,6 +369,8 @@ public class Source {
     private String contentType;
     private String name;
     private String genre;
+    private long contentLength;
+    private boolean live;
 
     /**
      * Constructor for creating a {@code Source} from URL.
@@ -86,20 +382,67 @@ public class Source {
     public Source(String url)
             throws MalformedURLException, IOException, SourceException {
 
+        this(url, false);
+    }
+
+    /**
+     * Constructor for creating a {@code Source} from URL, optionally
+     * connecting with a {@link ChannelInputStream} so the stream is read
+     * from the socket channel without a stream buffer in between. A {@code URLConnection} is used for
+     * URLs the channel stream does not support.
+     *
+     * @param url Source URL
+     * @param direct Whether to connect with a channel stream
+     * @throws IOException 
+     * @throws MalformedURLException 
+     * @throws StreamException 
+     */
+    public Source(String url, boolean direct)
+            throws MalformedURLException, IOException, SourceException {
+
         this.url = url;
-        this.connection = new URL(url).openConnection();
-        this.stream = new Stream(this.connection);
-        this.contentType = this.connection.getContentType();
 
-        if (this.contentType.equals(ContentType.CONTENT_TYPE_OGG)) {
-            this.genre = connection.getHeaderField(Icy.ICY_HEADER_GENRE);
-            this.name = connection.getHeaderField(Icy.ICY_HEADER_NAME);
+        URL location = new URL(url);
+        if (direct) {
+            this.channel = ChannelInputStream.open(location);
+        }
 
+        if (this.channel != null) {
+            this.stream = new Stream(this.channel);
+            this.contentType = this.channel.getContentType();
+            this.contentLength = this.channel.getContentLength();
         } else {
+            this.connection = location.openConnection();
+            this.connection.setReadTimeout(READ_TIMEOUT);
+            this.stream = new Stream(this.connection);
+            this.contentType = this.connection.getContentType();
+            this.contentLength = this.connection.getContentLength();
+        }
+        this.live = this.contentLength < 0;
+
+        if (ContentType.CONTENT_TYPE_OGG.equals(this.contentType)) {
+            this.genre = getHeaderField(Icy.ICY_HEADER_GENRE);
+            this.name = getHeaderField(Icy.ICY_HEADER_NAME);
+
+        } else {
+            close();
             throw new SourceException("Unknown content type");
         }
     }
 
+    /**
+     * Get response header.
+     *
+     * @param name Header name
+     * @return Value or {@code null} if missing
+     */
+    private String getHeaderField(String name) {
+        if (this.channel != null) {
+            return this.channel.getHeaderField(name);
+        }
+        return this.connection.getHeaderField(name);
+    }
+
     /**
      * Get stream
      *
@@ -144,4 +487,39 @@ public class Source {
     public String getGenre() {
         return this.genre;
     }
+
+    /**
+     * Get content length
+     *
+     * @return Bytes, negative if unknown
+     */
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    /**
+     * Close stream, releasing the connection. A read blocked on the stream
+     * in another thread fails.
+     */
+    public void close() {
+        if (this.connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) this.connection).disconnect();
+        }
+
+        try {
+            this.stream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get whether the stream is live, which is assumed when the server
+     * does not announce a content length.
+     *
+     * @return Whether live
+     */
+    public boolean isLive() {
+        return this.live;
+    }
 }
\ No newline at end of file
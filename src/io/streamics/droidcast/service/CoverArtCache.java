@@ -0,0 +1,282 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.service;
+
+import io.streamics.droidcast.core.decoder.CoverArt;
+import io.streamics.droidcast.core.decoder.Meta;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+
+/**
+ * Size-bounded disk cache of cover art extracted from meta data.
+ *
+ * Images are decoded, scaled and written on a background thread and
+ * stored under the hash of their encoded value, so clients only receive
+ * the URI of a file instead of the image data.
+ */
+public class CoverArtCache {
+    /**
+     * Cover art result handler.
+     */
+    public static interface Callback {
+        /**
+         * Handle cover art stored in the cache.
+         *
+         * @param meta Meta data holding the cover art
+         * @param uri File URI
+         */
+        void onCoverArt(Meta meta, String uri);
+    }
+
+    private static final String EXTENSION = ".jpg";
+    private static final int QUALITY = 90;
+
+    private File directory;
+    private long maxSize;
+    private int maxDimension;
+    private Handler handler;
+
+    private ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "CoverArtCache");
+        }
+    });
+
+    /**
+     * Constructor for {@code CoverArtCache}.
+     *
+     * @param directory Cache directory
+     * @param maxSize Maximum total size in bytes
+     * @param maxDimension Maximum width and height of stored images
+     * @param handler Handler on which callbacks are run
+     */
+    public CoverArtCache(File directory, long maxSize, int maxDimension,
+                         Handler handler) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxDimension = maxDimension;
+        this.handler = handler;
+    }
+
+    /**
+     * Extract and store the cover art of the specified meta data in the
+     * background. The callback is not run if there is no cover art or it
+     * cannot be decoded.
+     *
+     * @param meta Meta data
+     * @param callback Callback
+     */
+    public void load(final Meta meta, final Callback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                CoverArt coverArt = meta.getCoverArt();
+                if (coverArt == null) {
+                    return;
+                }
+
+                final File file = store(coverArt);
+                if (file == null) {
+                    return;
+                }
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCoverArt(
+                                meta, Uri.fromFile(file).toString());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop background thread.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get cached file for cover art, decoding and storing it if needed.
+     *
+     * @param coverArt Cover art
+     * @return File or {@code null} on error
+     */
+    private File store(CoverArt coverArt) {
+        File file = new File(directory, coverArt.getHash() + EXTENSION);
+
+        if (file.exists()) {
+            // Mark as recently used
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = decode(coverArt.decode());
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        if (bitmap == null) {
+            return null;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return null;
+        }
+
+        File temporary = new File(directory, file.getName() + ".tmp");
+        try {
+            OutputStream output = new FileOutputStream(temporary);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporary.delete();
+            return null;
+        } finally {
+            bitmap.recycle();
+        }
+
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            return null;
+        }
+
+        trim();
+        return file;
+    }
+
+    /**
+     * Decode image scaled down to the maximum dimension.
+     *
+     * @param image Encoded image
+     * @return Bitmap or {@code null}
+     */
+    private Bitmap decode(ByteBuffer image) {
+        byte[] data = image.array();
+        int offset = image.arrayOffset() + image.position();
+        int length = image.remaining();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+
+        int size = Math.max(options.outWidth, options.outHeight);
+        if (size <= 0) {
+            return null;
+        }
+
+        // Subsample while the image is at least twice the target size
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (size / (options.inSampleSize * 2) >= maxDimension) {
+            options.inSampleSize *= 2;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(
+                data, offset, length, options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= maxDimension && height <= maxDimension) {
+            return bitmap;
+        }
+
+        float scale = (float) maxDimension / Math.max(width, height);
+        Bitmap scaled = Bitmap.createScaledBitmap(
+                bitmap, Math.round(width * scale), Math.round(height * scale),
+                true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * Remove least recently used files until the cache fits its size.
+     */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+
+        if (size <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        for (int i = 0; i < files.length && size > maxSize; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.service;
+
+import io.streamics.droidcast.core.decoder.Meta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Fixed-capacity ring of the most recent meta data of a station.
+ *
+ * Adding an entry never allocates beyond the entry itself and reading a
+ * page only copies the requested entries.
+ */
+public class MetaHistory {
+    /**
+     * {@code Parcelable} history entry.
+     */
+    public static class Entry implements Parcelable {
+        private Meta meta;
+        private long time;
+        private long position;
+
+        /**
+         * Constructor for {@code Entry}.
+         *
+         * @param meta Meta data
+         * @param time Wall clock time in milliseconds when it became audible
+         * @param position Sample position where it took effect
+         */
+        public Entry(Meta meta, long time, long position) {
+            this.meta = meta;
+            this.time = time;
+            this.position = position;
+        }
+
+        /**
+         * Get meta data.
+         *
+         * @return Meta data
+         */
+        public Meta getMeta() {
+            return this.meta;
+        }
+
+        /**
+         * Get time when the meta data became audible.
+         *
+         * @return Milliseconds since the epoch
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        /**
+         * Get stream position where the meta data took effect.
+         *
+         * @return Number of samples per channel
+         */
+        public long getPosition() {
+            return this.position;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeLong(this.time);
+            dest.writeLong(this.position);
+            this.meta.writeToParcel(dest, flags);
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        public static final Parcelable.Creator<Entry> CREATOR =
+                new Parcelable.Creator<Entry>() {
+            @Override
+            public Entry createFromParcel(Parcel in) {
+                long time = in.readLong();
+                long position = in.readLong();
+                return new Entry(Meta.CREATOR.createFromParcel(in),
+                                 time, position);
+            }
+
+            @Override
+            public Entry[] newArray(int size) {
+                return new Entry[size];
+            }
+        };
+    }
+
+    private Entry[] entries;
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Constructor for {@code MetaHistory}.
+     *
+     * @param capacity Maximum number of entries
+     */
+    public MetaHistory(int capacity) {
+        this.entries = new Entry[capacity];
+    }
+
+    /**
+     * Add meta data, replacing the oldest entry if full.
+     *
+     * Cover art is not kept in the history.
+     *
+     * @param meta Meta data
+     * @param time Wall clock time in milliseconds
+     */
+    public void add(Meta meta, long time) {
+        entries[head] = new Entry(
+                new Meta().merge(meta), time, meta.getPosition());
+        head = (head + 1) % entries.length;
+
+        if (size < entries.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Get number of entries.
+     *
+     * @return Size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Get page of entries, most recent first.
+     *
+     * @param offset Number of most recent entries to skip
+     * @param count Maximum number of entries
+     * @return Entries
+     */
+    public List<Entry> get(int offset, int count) {
+        int end = Math.min(size, offset + count);
+        List<Entry> page = new ArrayList<Entry>(Math.max(0, end - offset));
+
+        for (int i = Math.max(0, offset); i < end; i++) {
+            int index = (head - 1 - i + entries.length) % entries.length;
+            page.add(entries[index]);
+        }
+
+        return page;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.service;
+
+import io.streamics.droidcast.core.decoder.Decoder;
+import io.streamics.droidcast.core.decoder.DecoderThread;
+import io.streamics.droidcast.core.decoder.Meta;
+import io.streamics.droidcast.core.source.Source;
+
+import com.jcraft.jorbis.Info;
+
+/**
+ * Queued stream connected and decoded ahead of playback.
+ *
+ * The decoder reads the stream headers and decodes the first block, then
+ * waits until {@link #open(Decoder.Consumer)} is called. Events received
+ * in the meantime are passed on to the consumer in order once opened.
+ */
+class Prefetch implements Decoder.Consumer {
+    private String url;
+    private Source source = null;
+    private DecoderThread thread = null;
+
+    private Decoder.Consumer target = null;
+    private boolean cancelled = false;
+    private volatile boolean failed = false;
+
+    // Events received before opening
+    private Info info = null;
+    private Meta meta = null;
+
+    /**
+     * Constructor for {@code Prefetch}.
+     *
+     * @param url Stream URL
+     */
+    public Prefetch(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Get stream URL.
+     *
+     * @return URL
+     */
+    public String getUrl() {
+        return this.url;
+    }
+
+    /**
+     * Get connected source.
+     *
+     * @return Source, null until connected
+     */
+    public Source getSource() {
+        return this.source;
+    }
+
+    /**
+     * Get decoder thread.
+     *
+     * @return Thread, null until connected
+     */
+    public DecoderThread getThread() {
+        return this.thread;
+    }
+
+    /**
+     * Get whether the stream failed before being opened.
+     *
+     * @return Whether failed
+     */
+    public boolean isFailed() {
+        return this.failed;
+    }
+
+    /**
+     * Start decoding the connected source.
+     *
+     * @param source Source
+     * @param thread Decoder thread, this is added as consumer
+     */
+    public synchronized void start(Source source, DecoderThread thread) {
+        if (cancelled) {
+            source.close();
+            return;
+        }
+
+        this.source = source;
+        this.thread = thread;
+
+        thread.getDecoder().addConsumer(this);
+        thread.start();
+    }
+
+    /**
+     * Mark as failed, when the source could not be connected.
+     */
+    public void fail() {
+        this.failed = true;
+    }
+
+    /**
+     * Let the decoder continue, passing events to the consumer.
+     *
+     * @param consumer Consumer
+     */
+    public synchronized void open(Decoder.Consumer consumer) {
+        this.target = consumer;
+        notifyAll();
+    }
+
+    /**
+     * Stop the decoder and close the connection unless opened.
+     */
+    public void cancel() {
+        DecoderThread current;
+        Source connected;
+        synchronized (this) {
+            if (target != null) {
+                return;
+            }
+            cancelled = true;
+            current = thread;
+            connected = source;
+            notifyAll();
+        }
+
+        if (current != null) {
+            current.stopDecoder();
+        }
+        if (connected != null) {
+            connected.close();
+        }
+    }
+
+    /**
+     * Get the consumer once opened, passing on events received before.
+     *
+     * @param wait Whether to wait until opened
+     * @return Consumer or null
+     */
+    private Decoder.Consumer getTarget(boolean wait) {
+        Decoder.Consumer consumer;
+        synchronized (this) {
+            while (wait && target == null && !cancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            consumer = target;
+        }
+
+        if (consumer != null) {
+            if (info != null) {
+                consumer.onInfo(info);
+                info = null;
+            }
+            if (meta != null) {
+                consumer.onMeta(meta);
+                meta = null;
+            }
+        }
+        return consumer;
+    }
+
+    @Override
+    public void onInfo(Info info) {
+        Decoder.Consumer consumer = getTarget(false);
+        if (consumer == null) {
+            this.info = info;
+        } else {
+            consumer.onInfo(info);
+        }
+    }
+
+    @Override
+    public void onMeta(Meta meta) {
+        Decoder.Consumer consumer = getTarget(false);
+        if (consumer == null) {
+            this.meta = meta;
+        } else {
+            consumer.onMeta(meta);
+        }
+    }
+
+    @Override
+    public void onRead(byte[] data, int off, int len) {
+        Decoder.Consumer consumer = getTarget(true);
+        if (consumer != null) {
+            consumer.onRead(data, off, len);
+        }
+    }
+
+    @Override
+    public void onFinish() {
+        Decoder.Consumer consumer;
+        synchronized (this) {
+            consumer = target;
+            if (consumer == null) {
+                failed = true;
+            }
+        }
+
+        if (consumer != null) {
+            consumer.onFinish();
+        }
+    }
+}
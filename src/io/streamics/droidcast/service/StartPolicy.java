@@ -0,0 +1,155 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package io.streamics.droidcast.service;
+
+import android.os.Bundle;
+
+/**
+ * Settings trading start-up latency against underrun risk.
+ *
+ * <ul>
+ *   <li>
+ *     Start threshold: milliseconds of decoded audio queued before
+ *     playback starts.
+ *   </li>
+ *   <li>
+ *     Initial buffer: milliseconds of audio buffered by the sink until the
+ *     stream is stable, at least the start threshold.
+ *   </li>
+ *   <li>
+ *     Stable time: milliseconds of audio played after which the sink
+ *     buffer grows to its full size.
+ *   </li>
+ *   <li>
+ *     Crossfade: milliseconds over which a playing stream is faded into
+ *     this one, zero for a hard switch.
+ *   </li>
+ * </ul>
+ *
+ * Shrinking the sink buffer requires Android 7.0, the full buffer is used
+ * from the start on earlier versions.
+ */
+public class StartPolicy {
+    public static final StartPolicy DEFAULT = new StartPolicy(250, 500, 10000);
+
+    private int startThreshold;
+    private int initialBuffer;
+    private int stableTime;
+    private int crossfade;
+
+    /**
+     * Constructor for {@code StartPolicy}.
+     *
+     * @param startThreshold Start threshold in milliseconds
+     * @param initialBuffer Initial buffer in milliseconds
+     * @param stableTime Stable time in milliseconds
+     */
+    public StartPolicy(int startThreshold, int initialBuffer, int stableTime) {
+        this(startThreshold, initialBuffer, stableTime, 0);
+    }
+
+    /**
+     * Constructor for {@code StartPolicy} with crossfade.
+     *
+     * @param startThreshold Start threshold in milliseconds
+     * @param initialBuffer Initial buffer in milliseconds
+     * @param stableTime Stable time in milliseconds
+     * @param crossfade Crossfade in milliseconds
+     */
+    public StartPolicy(int startThreshold, int initialBuffer, int stableTime,
+                       int crossfade) {
+        this.startThreshold = startThreshold;
+        this.initialBuffer = initialBuffer;
+        this.stableTime = stableTime;
+        this.crossfade = crossfade;
+    }
+
+    /**
+     * Get start threshold.
+     *
+     * @return Milliseconds
+     */
+    public int getStartThreshold() {
+        return this.startThreshold;
+    }
+
+    /**
+     * Get initial buffer.
+     *
+     * @return Milliseconds
+     */
+    public int getInitialBuffer() {
+        return this.initialBuffer;
+    }
+
+    /**
+     * Get stable time.
+     *
+     * @return Milliseconds
+     */
+    public int getStableTime() {
+        return this.stableTime;
+    }
+
+    /**
+     * Get crossfade.
+     *
+     * @return Milliseconds
+     */
+    public int getCrossfade() {
+        return this.crossfade;
+    }
+
+    /**
+     * Write settings to message data.
+     *
+     * @param data Message data
+     */
+    public void writeToBundle(Bundle data) {
+        data.putInt(StreamServiceMessage.Parameter.START_THRESHOLD,
+                    this.startThreshold);
+        data.putInt(StreamServiceMessage.Parameter.INITIAL_BUFFER,
+                    this.initialBuffer);
+        data.putInt(StreamServiceMessage.Parameter.STABLE_TIME,
+                    this.stableTime);
+        data.putInt(StreamServiceMessage.Parameter.CROSSFADE,
+                    this.crossfade);
+    }
+
+    /**
+     * Read settings from message data.
+     *
+     * @param data Message data
+     * @return Policy, {@link #DEFAULT} for missing settings
+     */
+    public static StartPolicy fromBundle(Bundle data) {
+        return new StartPolicy(
+                data.getInt(StreamServiceMessage.Parameter.START_THRESHOLD,
+                            DEFAULT.startThreshold),
+                data.getInt(StreamServiceMessage.Parameter.INITIAL_BUFFER,
+                            DEFAULT.initialBuffer),
+                data.getInt(StreamServiceMessage.Parameter.STABLE_TIME,
+                            DEFAULT.stableTime),
+                data.getInt(StreamServiceMessage.Parameter.CROSSFADE,
+                            DEFAULT.crossfade));
+    }
+}
@@ -21,25 +21,40 @@
 
 package io.streamics.droidcast.service;
 
+import io.streamics.droidcast.AudioSink;
 import io.streamics.droidcast.AudioUtils;
+import io.streamics.droidcast.Crossfader;
+import io.streamics.droidcast.core.decoder.Analyzer;
+import io.streamics.droidcast.core.decoder.Converter;
 import io.streamics.droidcast.core.decoder.Decoder;
 import io.streamics.droidcast.core.decoder.DecoderThread;
+import io.streamics.droidcast.core.decoder.DriftController;
+import io.streamics.droidcast.core.decoder.Gain;
 import io.streamics.droidcast.core.decoder.Meta;
+import io.streamics.droidcast.core.decoder.Watchdog;
+import io.streamics.droidcast.core.recorder.Recorder;
+import io.streamics.droidcast.core.relay.Relay;
 import io.streamics.droidcast.core.source.Initiator;
 import io.streamics.droidcast.core.source.Source;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import android.app.Service;
 import android.content.Intent;
-import android.media.AudioTrack;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import com.jcraft.jorbis.Info;
 
@@ -70,207 +85,1472 @@ public class StreamService extends Service {
                     break;
 
                 case StreamServiceMessage.Command.START:
-                    start(data.getString(StreamServiceMessage.Parameter.URL));
+                    start(data.getString(StreamServiceMessage.Parameter.URL),
+                          StartPolicy.fromBundle(data));
                     break;
 
                 case StreamServiceMessage.Command.STOP:
                     stop();
                     break;
 
+                case StreamServiceMessage.Command.PAUSE:
+                    pause(data.getInt(StreamServiceMessage.Parameter.LIMIT,
+                                      PAUSE_BUFFER_SIZE),
+                          data.getBoolean(
+                              StreamServiceMessage.Parameter.REJOIN_LIVE,
+                              true));
+                    break;
+
+                case StreamServiceMessage.Command.RESUME:
+                    resume();
+                    break;
+
+                case StreamServiceMessage.Command.ENQUEUE:
+                    enqueue(data.getString(
+                            StreamServiceMessage.Parameter.URL));
+                    break;
+
+                case StreamServiceMessage.Command.CLEAR_QUEUE:
+                    clearQueue();
+                    break;
+
+                case StreamServiceMessage.Command.START_RECORDING:
+                    startRecording(data.getString(
+                            StreamServiceMessage.Parameter.PATH));
+                    break;
+
+                case StreamServiceMessage.Command.STOP_RECORDING:
+                    stopRecording();
+                    break;
+
+                case StreamServiceMessage.Command.START_RELAY:
+                    startRelay(data.getInt(
+                            StreamServiceMessage.Parameter.PORT));
+                    break;
+
+                case StreamServiceMessage.Command.STOP_RELAY:
+                    stopRelay();
+                    break;
+
+                case StreamServiceMessage.Command.SET_VOLUME:
+                    setVolume(
+                            data.getFloat(
+                                StreamServiceMessage.Parameter.VOLUME, 1),
+                            data.getInt(StreamServiceMessage.Parameter.RAMP),
+                            data.getBoolean(
+                                StreamServiceMessage.Parameter.REPLAY_GAIN,
+                                true));
+                    break;
+
+                case StreamServiceMessage.Command.START_ANALYZER:
+                    startAnalyzer(
+                            data.getInt(StreamServiceMessage.Parameter.RATE,
+                                        Analyzer.MAX_RATE),
+                            data.getBoolean(
+                                StreamServiceMessage.Parameter.SPECTRUM));
+                    break;
+
+                case StreamServiceMessage.Command.STOP_ANALYZER:
+                    stopAnalyzer();
+                    break;
+
                 case StreamServiceMessage.Command.REQUEST_INFO:
                     requestInfo();
                     break;
 
-                case StreamServiceMessage.Command.REQUEST_META:
-                    requestMeta();
-                    break;
-                }
+                case StreamServiceMessage.Command.REQUEST_META:
+                    requestMeta();
+                    break;
+
+                case StreamServiceMessage.Command.REQUEST_HISTORY:
+                    requestHistory(
+                            message.replyTo,
+                            data.getString(StreamServiceMessage.Parameter.URL),
+                            data.getInt(
+                                StreamServiceMessage.Parameter.OFFSET),
+                            data.getInt(
+                                StreamServiceMessage.Parameter.COUNT));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deferred meta data broadcast.
+     *
+     * Meta data is decoded ahead of the audio still queued in the
+     * {@code AudioTrack}, so it is broadcast only once the playback head
+     * reaches the position where it takes effect.
+     */
+    class MetaEmitter implements Runnable {
+        private Meta meta;
+
+        public MetaEmitter(Meta meta) {
+            this.meta = meta;
+        }
+
+        @Override
+        public void run() {
+            long delay = getPlaybackDelay(meta.getPosition());
+            if (delay > META_SYNC_TOLERANCE) {
+                scheduler.postDelayed(this, delay);
+                return;
+            }
+
+            broadcastMeta(meta);
+        }
+    }
+
+    /**
+     * Maximum delay in milliseconds by which meta data may be broadcast
+     * before it is audible.
+     */
+    public static final long META_SYNC_TOLERANCE = 20;
+
+    /**
+     * Maximum size in bytes of the cover art cache.
+     */
+    public static final long COVER_ART_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Maximum width and height in pixels of cached cover art.
+     */
+    public static final int COVER_ART_SIZE = 512;
+
+    /**
+     * Number of meta data entries kept per station.
+     */
+    public static final int HISTORY_SIZE = 50;
+
+    /**
+     * Number of stations for which meta data history is kept.
+     */
+    public static final int HISTORY_STATIONS = 8;
+
+    /**
+     * Default size in bytes of the buffer receiving a paused stream.
+     */
+    public static final int PAUSE_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Bytes of the newest received data decoded when rejoining a live
+     * stream after pause.
+     */
+    public static final int REJOIN_LIVE_KEEP = 32 * 1024;
+
+    /**
+     * Remaining playing time in milliseconds of a stream at which the next
+     * queued stream is connected and decoded ahead.
+     */
+    public static final int PREFETCH_TIME = 20000;
+
+    /**
+     * Interval in milliseconds between checks of the remaining playing
+     * time.
+     */
+    public static final int PREFETCH_CHECK_INTERVAL = 1000;
+
+    /**
+     * Whether streams are connected with a socket channel read straight
+     * into the decoder buffer, rather than with a {@code URLConnection}.
+     */
+    public static final boolean DIRECT_CONNECTION = true;
+
+    /**
+     * Number of processors from which decoding is split into demux,
+     * synthesis and output threads.
+     */
+    public static final int PIPELINE_MIN_PROCESSORS = 4;
+
+    /**
+     * Interval in milliseconds between checks for a stalled decoder.
+     */
+    public static final int WATCHDOG_INTERVAL = 500;
+
+    /**
+     * Attempts to reconnect a stalled live stream before giving up.
+     */
+    public static final int MAX_RECONNECTS = 3;
+
+    /**
+     * Delay in milliseconds before connecting again after a failed
+     * reconnect.
+     */
+    public static final int RECONNECT_DELAY = 2000;
+
+    /**
+     * Milliseconds of audio decoded after a reconnect after which the
+     * stream is considered recovered.
+     */
+    public static final int RECONNECT_STABLE_TIME = 30000;
+
+    /**
+     * Interval in milliseconds of audio between clock drift measurements
+     * on live streams.
+     */
+    public static final int DRIFT_INTERVAL = 500;
+
+    /**
+     * Maximum share of a CPU core used for decoding a stream at which
+     * streams are crossfaded, at most half of it to fit two decoders.
+     */
+    public static final float CROSSFADE_MAX_LOAD = 0.4f;
+
+    private volatile AudioSink sink;
+    private Decoder.Consumer consumer;
+    private DecoderThread thread;
+    private Decoder.Consumer threadConsumer;
+    private volatile boolean stopping = false;
+    private boolean stopped = false;
+    private volatile boolean paused = false;
+
+    // Queued stream URLs and the next stream decoded ahead
+    private List<String> queue = new ArrayList<String>();
+    private volatile Prefetch prefetch = null;
+    private Runnable prefetchCheck;
+
+    // Stall detection of the playing decoder
+    private Watchdog watchdog;
+    private Runnable watchdogCheck;
+    private volatile DecoderThread stalledThread = null;
+    private int reconnects = 0;
+
+    // Outgoing decoder while crossfading
+    private Crossfader crossfader = new Crossfader();
+    private Decoder.Consumer fadeConsumer;
+    private volatile DecoderThread fadingThread;
+    private volatile Source fadingSource;
+
+    // Share of a CPU core used for decoding
+    private volatile float decodeLoad = 0;
+    private long lastCpuTime = 0;
+    private volatile Recorder recorder;
+    private Relay relay;
+    private Analyzer analyzer;
+
+    // Samples per channel received from the decoder
+    private volatile long received;
+    private int frameSize;
+
+    private volatile DriftController drift;
+    private long nextDriftUpdate;
+
+    private int outputRate = 0;
+    private Gain gain = new Gain();
+    private StartPolicy startPolicy = StartPolicy.DEFAULT;
+    private volatile long startTime = 0;
+
+    private Meta currentMeta = null;
+    private int metaVersion = 0;
+    private Map<Messenger, Integer> metaVersions =
+            new HashMap<Messenger, Integer>();
+    private Source currentSource = null;
+
+    private CoverArtCache coverArtCache;
+    private CoverArtCache.Callback coverArtCallback;
+    private Map<Meta, String> coverArts = new WeakHashMap<Meta, String>();
+    private String currentCoverArt = null;
+
+    @SuppressWarnings("serial")
+    private Map<String, MetaHistory> histories =
+            new LinkedHashMap<String, MetaHistory>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, MetaHistory> eldest) {
+            return size() > HISTORY_STATIONS;
+        }
+    };
+
+    private Handler scheduler = new Handler();
+    private Messenger incoming = new Messenger(new IncomingHandler());
+    private List<Messenger> outgoing = new ArrayList<Messenger>();
+
+    /**
+     * Constructor for {@code StreamService}.
+     */
+    public StreamService() {
+        /*
+         * Stream consumer
+         */
+        this.consumer = new Decoder.Consumer() {
+            @Override
+            public void onRead(byte[] data, int off, int len) {
+                AudioSink current = sink;
+                if (current != null &&
+                    !crossfader.fadeIn(current, data, off, len) &&
+                    current.write(data, off, len)) {
+                    onPlay();
+                }
+
+                received += len / frameSize;
+
+                if (fadingThread != null && !crossfader.isActive()) {
+                    // Crossfade cut over without the outgoing decoder
+                    stopOutgoing();
+                }
+
+                if (current != null) {
+                    updateLoad(thread.getDecoder(), len / frameSize,
+                            current.getRate());
+                }
+
+                DriftController controller = drift;
+                if (controller != null && current != null &&
+                    current.isStarted() && !crossfader.isActive() &&
+                    received >= nextDriftUpdate) {
+
+                    nextDriftUpdate = received +
+                            DRIFT_INTERVAL * current.getRate() / 1000;
+
+                    Decoder decoder = thread.getDecoder();
+                    decoder.setRateCorrection(controller.update(
+                            current.getQueuedFrames() +
+                            decoder.getBacklog()));
+                }
+            }
+
+            @Override
+            public void onMeta(Meta meta) {
+                coverArtCache.load(meta, coverArtCallback);
+                scheduler.post(new MetaEmitter(meta));
+            }
+
+            @Override
+            public void onInfo(Info info) {
+                // Keep playing the queued audio of the previous chain
+                // unless the format changed
+                int rate = outputRate > 0 ? outputRate : info.rate;
+                int channels = Converter.getOutputChannels(info.channels);
+
+                if (sink == null || !sink.accepts(rate, channels)) {
+                    stopFading();
+                    releaseAudio();
+
+                    sink = new AudioSink(rate, channels, received, startPolicy);
+                    frameSize = 2 * channels;
+
+                    // Buffered amount changes with the sink
+                    if (drift != null) {
+                        drift = new DriftController();
+                    }
+                }
+
+                Message message = Message.obtain(
+                        null, StreamServiceMessage.Type.STATUS);
+                message.getData().putInt(
+                        StreamServiceMessage.Response.VALUE,
+                        StreamServiceMessage.Response.STATUS_STARTED);
+                broadcast(message);
+            }
+
+            @Override
+            public void onFinish() {
+                if (stopping) {
+                    finishStream();
+                    return;
+                }
+
+                final DecoderThread ended = thread;
+                if (ended == stalledThread) {
+                    // Keep the sink playing the queued audio meanwhile
+                    scheduler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            reconnect(ended);
+                        }
+                    });
+                    return;
+                }
+
+                // End of stream, continue with the queue
+                Prefetch next = prefetch;
+                if (next == null || next.isFailed()) {
+                    finishStream();
+                }
+
+                scheduler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        advance(ended);
+                    }
+                });
+            }
+        };
+
+        /*
+         * Prefetch of the next queued stream
+         */
+        this.prefetchCheck = new Runnable() {
+            @Override
+            public void run() {
+                Source source = currentSource;
+                if (prefetch != null || queue.isEmpty() || thread == null ||
+                    source == null || source.isLive()) {
+                    return;
+                }
+
+                long remaining = getRemainingTime(source);
+                if (remaining < 0 || remaining > PREFETCH_TIME) {
+                    scheduler.postDelayed(this, PREFETCH_CHECK_INTERVAL);
+                    return;
+                }
+
+                startPrefetch(queue.remove(0));
+            }
+        };
+
+        /*
+         * Stall detection of the playing decoder
+         */
+        this.watchdogCheck = new Runnable() {
+            @Override
+            public void run() {
+                DecoderThread current = thread;
+                Watchdog currentWatchdog = watchdog;
+                if (current == null || !current.isAlive() ||
+                    currentWatchdog == null) {
+                    return;
+                }
+
+                long now = SystemClock.elapsedRealtime();
+                if (paused) {
+                    // Not expected to progress
+                    currentWatchdog.reset(now);
+                } else if (currentWatchdog.check(now) != Watchdog.OK) {
+                    onStall(current, currentWatchdog.getStallTime(now));
+                    return;
+                }
+
+                AudioSink currentSink = sink;
+                if (reconnects > 0 && currentSink != null &&
+                    current.getDecoder().getPosition() >
+                    (long) RECONNECT_STABLE_TIME * currentSink.getRate() /
+                    1000) {
+                    reconnects = 0;
+                }
+
+                scheduler.postDelayed(this, WATCHDOG_INTERVAL);
+            }
+        };
+
+        /*
+         * Outgoing stream consumer while crossfading
+         */
+        this.fadeConsumer = new Decoder.Consumer() {
+            @Override
+            public void onRead(byte[] data, int off, int len) {
+                AudioSink current = sink;
+                if (current == null) {
+                    return;
+                }
+
+                switch (crossfader.fadeOut(current, data, off, len)) {
+                case Crossfader.START:
+                    onPlay();
+                    break;
+
+                case Crossfader.CUT:
+                    stopOutgoing();
+                    break;
+                }
+            }
+
+            @Override
+            public void onMeta(Meta meta) {
+                // Meta data of the outgoing stream is not published
+            }
+
+            @Override
+            public void onInfo(Info info) {
+                // Next chain may change format, cut to the incoming stream
+                crossfader.finish();
+            }
+
+            @Override
+            public void onFinish() {
+                crossfader.finish();
+            }
+        };
+
+        /*
+         * Cover art ready
+         */
+        this.coverArtCallback = new CoverArtCache.Callback() {
+            @Override
+            public void onCoverArt(Meta meta, String uri) {
+                if (meta == currentMeta) {
+                    updateCoverArt(uri);
+                } else {
+                    coverArts.put(meta, uri);
+                }
+            }
+        };
+    }
+
+    /**
+     * Release resources of the stopped or ended stream.
+     */
+    private void finishStream() {
+        if (paused) {
+            // Stop receiving
+            paused = false;
+            Source source = currentSource;
+            if (source != null) {
+                source.close();
+            }
+        }
+
+        stopFading();
+        releaseAudio();
+        stopRecording();
+
+        scheduler.removeCallbacksAndMessages(null);
+        currentMeta = null;
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.STATUS);
+        message.getData().putInt(
+                StreamServiceMessage.Response.VALUE,
+                StreamServiceMessage.Response.STATUS_STOPPED);
+        broadcast(message);
+    }
+
+    /**
+     * Release audio sink.
+     */
+    private void releaseAudio() {
+        AudioSink current = sink;
+        sink = null;
+
+        if (current != null) {
+            current.release();
+        }
+    }
+
+    /**
+     * Update share of a CPU core used by decoding, all stages together.
+     *
+     * @param decoder Decoder delivering the frames
+     * @param frames Frames decoded since the last update
+     * @param rate Sample rate
+     */
+    private void updateLoad(Decoder decoder, int frames, int rate) {
+        long cpuTime = decoder.getCpuTime();
+        long previous = lastCpuTime;
+        lastCpuTime = cpuTime;
+
+        if (previous <= 0 || cpuTime <= previous || frames == 0) {
+            return;
+        }
+
+        float load = (float) (cpuTime - previous) * rate / frames / 1e9f;
+        decodeLoad += (load - decodeLoad) * 0.05f;
+    }
+
+    /**
+     * Start crossfading from the playing stream to the stream decoded
+     * next. The playing decoder keeps writing to the sink until the
+     * crossfade finishes.
+     *
+     * @param policy Start policy of the next stream
+     * @return False if the playing decoder must be stopped instead
+     */
+    private boolean startCrossfade(StartPolicy policy) {
+        AudioSink current = sink;
+        if (policy.getCrossfade() <= 0 || current == null ||
+            !current.isStarted() || paused || crossfader.isActive() ||
+            decodeLoad > CROSSFADE_MAX_LOAD) {
+            return false;
+        }
+
+        crossfader.prepare(current.getRate(), current.getChannels(),
+                           policy.getCrossfade());
+
+        stopRecording();
+
+        Decoder decoder = thread.getDecoder();
+        decoder.setAnalyzer(null);
+        if (relay != null) {
+            decoder.removePageConsumer(relay);
+        }
+        decoder.addConsumer(fadeConsumer);
+        decoder.removeConsumer(threadConsumer);
+
+        fadingThread = thread;
+        fadingSource = currentSource;
+        return true;
+    }
+
+    /**
+     * Cancel crossfade, stopping the outgoing decoder.
+     */
+    private void stopFading() {
+        crossfader.cancel();
+        stopOutgoing();
+    }
+
+    /**
+     * Stop the outgoing decoder of a crossfade.
+     */
+    private void stopOutgoing() {
+        DecoderThread fading = fadingThread;
+        Source source = fadingSource;
+        fadingThread = null;
+        fadingSource = null;
+
+        if (fading != null) {
+            fading.stopDecoder();
+        }
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    /**
+     * Close the connection of the playing stream, so its stopped decoder
+     * does not wait for more data.
+     */
+    private void closeSource() {
+        Source source = currentSource;
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    /**
+     * Get time until the specified decoding position is audible.
+     *
+     * @param position Sample position
+     * @return Delay in milliseconds
+     */
+    private long getPlaybackDelay(long position) {
+        AudioSink current = sink;
+        if (current == null) {
+            return 0;
+        }
+        return current.getPlaybackDelay(position);
+    }
+
+    /**
+     * Handle start of playback.
+     *
+     * Reports the time to first audio once per started stream.
+     */
+    private void onPlay() {
+        long time = startTime;
+        if (time == 0) {
+            return;
+        }
+        startTime = 0;
+
+        final long timeToFirstAudio = SystemClock.elapsedRealtime() - time;
+
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                Message message = Message.obtain(
+                        null, StreamServiceMessage.Type.STATUS);
+                Bundle data = message.getData();
+                data.putInt(StreamServiceMessage.Response.VALUE,
+                            StreamServiceMessage.Response.STATUS_PLAYING);
+                data.putLong(
+                        StreamServiceMessage.Response.TIME_TO_FIRST_AUDIO,
+                        timeToFirstAudio);
+                broadcast(message);
+            }
+        });
+    }
+
+    /**
+     * Bind service.
+     */
+    @Override
+    public IBinder onBind(Intent intent) {
+        return incoming.getBinder();
+    }
+
+    /**
+     * Create service.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Resample to the device rate instead of letting the mixer do it
+        outputRate = AudioUtils.getNativeRate();
+
+        coverArtCache = new CoverArtCache(
+                new File(getCacheDir(), "coverart"),
+                COVER_ART_CACHE_SIZE, COVER_ART_SIZE, scheduler);
+    }
+
+    /**
+     * Destroy service.
+     */
+    @Override
+    public void onDestroy() {
+        stopRelay();
+        stopAnalyzer();
+        coverArtCache.shutdown();
+        super.onDestroy();
+    }
+
+    /**
+     * Start service.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return Service.START_STICKY;
+    }
+
+    /**
+     * Broadcast message to all clients.
+     *
+     * @param message Message
+     */
+    private void broadcast(Message message) {
+        for (Messenger messenger : outgoing) {
+            send(messenger, message);
+        }
+    }
+
+    /**
+     * Send message to a client.
+     *
+     * @param messenger Client
+     * @param message Message
+     */
+    private void send(Messenger messenger, Message message) {
+        try {
+            messenger.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Create meta data message.
+     *
+     * @param meta Meta data or delta
+     * @param baseVersion Version the delta applies to
+     * @return Message
+     */
+    private Message createMetaMessage(Meta meta, int baseVersion) {
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.META);
+        Bundle data = message.getData();
+        data.putParcelable(StreamServiceMessage.Response.VALUE, meta);
+        data.putInt(StreamServiceMessage.Response.VERSION, metaVersion);
+        data.putInt(StreamServiceMessage.Response.BASE_VERSION, baseVersion);
+        return message;
+    }
+
+    /**
+     * Broadcast new meta data.
+     *
+     * Clients that received the previous meta data only get the keys that
+     * changed, other clients get the full meta data.
+     *
+     * @param meta Meta data
+     */
+    private void broadcastMeta(Meta meta) {
+        Meta previous = currentMeta;
+        int previousVersion = metaVersion;
+
+        currentMeta = meta;
+        metaVersion++;
+
+        Message full = null;
+        Message delta = null;
+
+        for (Messenger messenger : outgoing) {
+            Integer version = metaVersions.get(messenger);
+
+            if (previous != null &&
+                version != null && version == previousVersion) {
+                if (delta == null) {
+                    delta = createMetaMessage(
+                            meta.diff(previous), previousVersion);
+                }
+                send(messenger, delta);
+            } else {
+                if (full == null) {
+                    full = createMetaMessage(meta, -1);
+                }
+                send(messenger, full);
+            }
+
+            metaVersions.put(messenger, metaVersion);
+        }
+
+        updateCoverArt(coverArts.remove(meta));
+
+        if (currentSource != null) {
+            String url = currentSource.getUrl();
+            MetaHistory history = histories.get(url);
+            if (history == null) {
+                history = new MetaHistory(HISTORY_SIZE);
+                histories.put(url, history);
+            }
+            history.add(meta, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Create cover art message.
+     *
+     * @return Message
+     */
+    private Message createCoverArtMessage() {
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COVER_ART);
+        message.getData().putString(
+                StreamServiceMessage.Response.VALUE, currentCoverArt);
+        return message;
+    }
+
+    /**
+     * Broadcast cover art URI if it changed.
+     *
+     * @param uri Cover art URI or {@code null}
+     */
+    private void updateCoverArt(String uri) {
+        if (uri == null ? currentCoverArt != null :
+                          !uri.equals(currentCoverArt)) {
+            currentCoverArt = uri;
+            broadcast(createCoverArtMessage());
+        }
+    }
+
+    /**
+     * Register client.
+     *
+     * This allows the service to broadcast info, meta and status messages to
+     * the specified client.
+     *
+     * @param messenger Client
+     */
+    private void register(Messenger messenger) {
+        this.outgoing.add(messenger);
+    }
+
+    /**
+     * Unregister client.
+     *
+     * This prevents the client from receiving info, meta and status messages
+     * broadcasted by the service.
+     *
+     * @param messenger Client
+     */
+    private void unregister(Messenger messenger) {
+        this.outgoing.remove(messenger);
+        this.metaVersions.remove(messenger);
+    }
+
+    /**
+     * Start streaming the specified URL.
+     *
+     * @param url Source URL
+     * @param policy Start policy
+     */
+    private void start(String url, final StartPolicy policy) {
+        startTime = SystemClock.elapsedRealtime();
+
+        new Initiator(url, DIRECT_CONNECTION, new Initiator.Handler() {
+            @Override
+            public void onReady(Source source) {
+                // Queued stream now follows this one
+                cancelPrefetch();
+
+                if (thread != null && !startCrossfade(policy)) {
+                    stopFading();
+                    stopping = true;
+                    thread.stopDecoder();
+                    stopping = false;
+                    closeSource();
+                }
+
+                startPolicy = policy;
+                stalledThread = null;
+                reconnects = 0;
+
+                DecoderThread created = createDecoderThread(source);
+                created.getDecoder().addConsumer(consumer);
+                attach(source, created, consumer);
+                created.start();
+            }
+
+            @Override
+            public void onError() {
+                broadcastError();
+
+                currentSource = null;
+            }
+        }).execute();
+    }
+
+    /**
+     * Create decoder thread for a source.
+     *
+     * @param source Source
+     * @return Thread, not started
+     */
+    private DecoderThread createDecoderThread(Source source) {
+        DecoderThread created = new DecoderThread(source.getStream());
+        created.getDecoder().setOutputRate(outputRate);
+        created.getDecoder().setGain(gain);
+        created.getDecoder().setPipelined(
+                Runtime.getRuntime().availableProcessors() >=
+                PIPELINE_MIN_PROCESSORS);
+        return created;
+    }
+
+    /**
+     * Make a decoder thread the playing one.
+     *
+     * @param source Source
+     * @param decoderThread Decoder thread
+     * @param decoderConsumer Consumer added to the decoder
+     */
+    private void attach(Source source, DecoderThread decoderThread,
+                        Decoder.Consumer decoderConsumer) {
+        received = 0;
+        lastCpuTime = 0;
+        nextDriftUpdate = 0;
+
+        // A kept sink plays the new decoder after the audio it queued, a
+        // crossfade restarts it when mixing starts instead
+        AudioSink current = sink;
+        if (current != null && !crossfader.isActive()) {
+            current.restart();
+        }
+
+        // Compensate clock drift on live streams only
+        drift = source.isLive() ? new DriftController() : null;
+
+        thread = decoderThread;
+        threadConsumer = decoderConsumer;
+        stopped = false;
+        thread.getDecoder().setAnalyzer(analyzer);
+        if (relay != null) {
+            thread.getDecoder().addPageConsumer(relay);
+        }
+
+        currentSource = source;
+
+        watchdog = new Watchdog(thread.getDecoder(),
+                                SystemClock.elapsedRealtime());
+        scheduler.removeCallbacks(watchdogCheck);
+        scheduler.postDelayed(watchdogCheck, WATCHDOG_INTERVAL);
+
+        Message message = Message.obtain(
+            null, StreamServiceMessage.Type.INFO);
+
+        Bundle data = message.getData();
+        data.putString(
+            StreamServiceMessage.Response.URL,
+            source.getUrl());
+        data.putString(
+            StreamServiceMessage.Response.CONTENT_TYPE,
+            source.getContentType());
+        data.putString(
+            StreamServiceMessage.Response.NAME,
+            source.getName());
+        data.putString(
+            StreamServiceMessage.Response.GENRE,
+            source.getGenre());
+        broadcast(message);
+
+        schedulePrefetch();
+    }
+
+    /**
+     * Continue with the next queued stream once a stream ended.
+     *
+     * The prefetched stream continues on the same sink, right after the
+     * last sample of the ended stream.
+     *
+     * @param ended Decoder thread of the ended stream
+     */
+    private void advance(DecoderThread ended) {
+        if (thread != ended || stopped) {
+            // Another stream was started or playback stopped meanwhile
+            return;
+        }
+
+        Prefetch next = prefetch;
+        if (next == null || next.isFailed()) {
+            if (next != null) {
+                prefetch = null;
+                finishStream();
             }
+
+            if (!queue.isEmpty()) {
+                start(queue.remove(0), startPolicy);
+            }
+            return;
+        }
+
+        if (next.getThread() == null) {
+            // Still connecting, keep the sink
+            final DecoderThread waiting = ended;
+            scheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    advance(waiting);
+                }
+            }, 50);
+            return;
         }
+
+        prefetch = null;
+        startTime = 0;
+        reconnects = 0;
+
+        attach(next.getSource(), next.getThread(), next);
+        next.open(consumer);
     }
 
-    private AudioTrack audio;
-    private Decoder.Consumer consumer;
-    private DecoderThread thread;
+    /**
+     * Handle a stalled decoder.
+     *
+     * The connection is closed, which makes the decoder finish. A live
+     * stream is then connected again, unless too many attempts failed. A
+     * stream that cannot be reconnected ends with an error.
+     *
+     * @param stalled Decoder thread of the stalled stream
+     * @param stallTime Milliseconds without progress
+     */
+    private void onStall(DecoderThread stalled, long stallTime) {
+        Source source = currentSource;
+        boolean reconnecting = source != null && source.isLive() &&
+                reconnects < MAX_RECONNECTS;
 
-    private Meta currentMeta = null;
-    private Source currentSource = null;
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.STATUS);
+        Bundle data = message.getData();
+        data.putInt(StreamServiceMessage.Response.VALUE,
+                    StreamServiceMessage.Response.STATUS_STALLED);
+        data.putLong(StreamServiceMessage.Response.STALL_TIME, stallTime);
+        data.putBoolean(StreamServiceMessage.Response.RECONNECTING,
+                        reconnecting);
+        broadcast(message);
 
-    private Messenger incoming = new Messenger(new IncomingHandler());
-    private List<Messenger> outgoing = new ArrayList<Messenger>();
+        if (reconnecting) {
+            stalledThread = stalled;
+        } else {
+            broadcastError();
+        }
+
+        // Unblock the decoder
+        if (source != null) {
+            source.close();
+        }
+    }
 
     /**
-     * Constructor for {@code StreamService}.
+     * Connect a stalled stream again, continuing on the same sink.
+     *
+     * @param stalled Decoder thread of the stalled stream
      */
-    public StreamService() {
-        /*
-         * Stream consumer
-         */
-        this.consumer = new Decoder.Consumer() {
+    private void reconnect(final DecoderThread stalled) {
+        Source stalledSource = currentSource;
+        if (thread != stalled || stopped || stalledSource == null) {
+            // Another stream was started or playback stopped meanwhile
+            return;
+        }
+
+        reconnects++;
+
+        String url = stalledSource.getUrl();
+        new Initiator(url, DIRECT_CONNECTION, new Initiator.Handler() {
             @Override
-            public void onRead(byte[] data, int off, int len) {
-                if (audio != null &&
-                    audio.getState() == AudioTrack.STATE_INITIALIZED) {
-                    audio.write(data, off, len);
+            public void onReady(Source source) {
+                if (thread != stalled || stopped) {
+                    source.close();
+                    return;
                 }
-            }
 
-            @Override
-            public void onMeta(Meta meta) {
-                currentMeta = meta;
+                stalledThread = null;
 
-                Message message = Message.obtain(
-                        null, StreamServiceMessage.Type.META);
-                message.getData().putParcelable(
-                        StreamServiceMessage.Response.VALUE, meta);
-                broadcast(message);
+                DecoderThread created = createDecoderThread(source);
+                created.getDecoder().addConsumer(consumer);
+                attach(source, created, consumer);
+                created.start();
             }
 
             @Override
-            public void onInfo(Info info) {
-                audio = AudioUtils.fromVorbisInfo(info);
-                audio.play();
+            public void onError() {
+                if (thread != stalled || stopped) {
+                    return;
+                }
 
-                Message message = Message.obtain(
-                        null, StreamServiceMessage.Type.STATUS);
-                message.getData().putInt(
-                        StreamServiceMessage.Response.VALUE,
-                        StreamServiceMessage.Response.STATUS_STARTED);
-                broadcast(message);
+                if (reconnects < MAX_RECONNECTS) {
+                    scheduler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            reconnect(stalled);
+                        }
+                    }, RECONNECT_DELAY);
+                    return;
+                }
+
+                // Give up, continue with the queue
+                stalledThread = null;
+                broadcastError();
+                finishStream();
+                advance(stalled);
             }
+        }).execute();
+    }
 
-            @Override
-            public void onFinish() {
-                if (audio != null &&
-                    audio.getState() == AudioTrack.STATE_INITIALIZED) {
-                    audio.release();
-                }
+    /**
+     * Broadcast error status to all clients.
+     */
+    private void broadcastError() {
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.STATUS);
+        message.getData().putInt(
+                StreamServiceMessage.Response.VALUE,
+                StreamServiceMessage.Response.STATUS_ERROR);
+        broadcast(message);
+    }
+
+    /**
+     * Add a stream to the queue, started when the playing stream ends.
+     * Starts it if nothing is playing.
+     *
+     * @param url Source URL
+     */
+    private void enqueue(String url) {
+        if (url == null) {
+            return;
+        }
 
-                currentMeta = null;
+        queue.add(url);
 
-                Message message = Message.obtain(
-                        null, StreamServiceMessage.Type.STATUS);
-                message.getData().putInt(
-                        StreamServiceMessage.Response.VALUE,
-                        StreamServiceMessage.Response.STATUS_STOPPED);
-                broadcast(message);
+        if (thread == null || !thread.isAlive()) {
+            if (prefetch == null && sink == null) {
+                start(queue.remove(0), startPolicy);
             }
-        };
+            return;
+        }
+
+        schedulePrefetch();
     }
 
     /**
-     * Bind service.
+     * Remove all queued streams.
      */
-    @Override
-    public IBinder onBind(Intent intent) {
-        return incoming.getBinder();
+    private void clearQueue() {
+        cancelPrefetch();
+        queue.clear();
     }
 
     /**
-     * Start service.
+     * Check the remaining playing time, prefetching the next queued stream
+     * when it is short.
      */
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        return Service.START_STICKY;
+    private void schedulePrefetch() {
+        scheduler.removeCallbacks(prefetchCheck);
+        scheduler.post(prefetchCheck);
     }
 
     /**
-     * Broadcast message to all clients.
+     * Connect and decode a queued stream ahead.
      *
-     * @param message Message
+     * @param url Source URL
      */
-    private void broadcast(Message message) {
-        for (Messenger messenger : outgoing) {
-            try {
-                messenger.send(message);
-            } catch (RemoteException e) {
-                e.printStackTrace();
+    private void startPrefetch(String url) {
+        final Prefetch next = new Prefetch(url);
+        prefetch = next;
+
+        new Initiator(url, DIRECT_CONNECTION, new Initiator.Handler() {
+            @Override
+            public void onReady(Source source) {
+                next.start(source, createDecoderThread(source));
+            }
+
+            @Override
+            public void onError() {
+                next.fail();
             }
+        }).execute();
+    }
+
+    /**
+     * Stop decoding ahead, putting the stream back at the front of the
+     * queue.
+     */
+    private void cancelPrefetch() {
+        Prefetch next = prefetch;
+        prefetch = null;
+
+        if (next != null) {
+            next.cancel();
+            queue.add(0, next.getUrl());
         }
     }
 
     /**
-     * Register client.
+     * Estimate remaining playing time of the current stream from the
+     * average compressed size of the decoded audio.
      *
-     * This allows the service to broadcast info, meta and status messages to
-     * the specified client.
+     * @param source Source
+     * @return Milliseconds, negative if unknown
+     */
+    private long getRemainingTime(Source source) {
+        AudioSink current = sink;
+        Decoder decoder = thread.getDecoder();
+        long position = decoder.getPosition();
+        long bytes = decoder.getBytesReceived();
+
+        if (current == null || position == 0 || bytes == 0) {
+            return -1;
+        }
+
+        long remaining = Math.max(0, source.getContentLength() - bytes);
+        return remaining * position / bytes * 1000 / current.getRate();
+    }
+
+    /**
+     * Stop underlying decoder.
+     */
+    private void stop() {
+        cancelPrefetch();
+        stopFading();
+        stopped = true;
+
+        if (thread != null) {
+            stopping = true;
+            thread.stopDecoder();
+            stopping = false;
+            closeSource();
+        }
+
+        if (sink != null) {
+            // Stream ended while waiting for the next queued stream
+            finishStream();
+        }
+    }
+
+    /**
+     * Pause playback, keeping the connection.
      *
-     * @param messenger Client
+     * The decoder is parked and the stream is received into a bounded
+     * buffer. Once full, receiving stops, or with {@code rejoinLive} the
+     * oldest data is dropped and playback continues close to the live
+     * position when resumed.
+     *
+     * @param limit Buffer size in bytes
+     * @param rejoinLive Whether to rejoin a live stream when resumed
      */
-    private void register(Messenger messenger) {
-        this.outgoing.add(messenger);
+    private void pause(int limit, boolean rejoinLive) {
+        Source source = currentSource;
+        if (paused || thread == null || !thread.isAlive() ||
+            source == null) {
+            return;
+        }
+
+        paused = true;
+        thread.getDecoder().pause();
+        source.getStream().pause(limit, rejoinLive && source.isLive());
+
+        AudioSink current = sink;
+        if (current != null) {
+            current.pause();
+        }
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.STATUS);
+        message.getData().putInt(
+                StreamServiceMessage.Response.VALUE,
+                StreamServiceMessage.Response.STATUS_PAUSED);
+        broadcast(message);
     }
 
     /**
-     * Unregister client.
+     * Resume playback after pause.
+     */
+    private void resume() {
+        if (!paused) {
+            return;
+        }
+
+        paused = false;
+        Source.Stream stream = currentSource.getStream();
+        stream.resume(REJOIN_LIVE_KEEP);
+
+        // Skipped to rejoin live, not lost
+        if (stream.hasDropped()) {
+            thread.getDecoder().markSkipped();
+        }
+
+        // Buffered amount changed while paused
+        if (drift != null) {
+            drift = new DriftController();
+        }
+
+        AudioSink current = sink;
+        if (current != null && current.resume()) {
+            onPlay();
+        }
+        thread.getDecoder().resume();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.STATUS);
+        message.getData().putInt(
+                StreamServiceMessage.Response.VALUE,
+                StreamServiceMessage.Response.STATUS_RESUMED);
+        broadcast(message);
+    }
+
+    /**
+     * Start recording the current stream.
      *
-     * This prevents the client from receiving info, meta and status messages
-     * broadcasted by the service.
+     * Each track of the stream is written to its own file, starting with
+     * the playing track from where it is.
      *
-     * @param messenger Client
+     * @param path Directory where recordings are created
      */
-    private void unregister(Messenger messenger) {
-        this.outgoing.remove(messenger);
+    private void startRecording(String path) {
+        if (thread == null || path == null) {
+            return;
+        }
+
+        stopRecording();
+
+        recorder = new Recorder(
+                new File(path), "recording-" + System.currentTimeMillis());
+        thread.getDecoder().addPageConsumer(recorder);
     }
 
     /**
-     * Start streaming the specified URL.
+     * Stop recording.
+     */
+    private void stopRecording() {
+        Recorder current = recorder;
+        recorder = null;
+
+        if (current != null) {
+            DecoderThread decoderThread = thread;
+            if (decoderThread != null) {
+                decoderThread.getDecoder().removePageConsumer(current);
+            }
+            current.close();
+        }
+    }
+
+    /**
+     * Start relaying streams to local HTTP listeners.
      *
-     * @param url Source URL
+     * The relay keeps serving when the stream is changed.
+     *
+     * @param port Port to listen on
      */
-    private void start(String url) {
-        new Initiator(url, new Initiator.Handler() {
-            @Override
-            public void onReady(Source source) {
-                if (thread != null) {
-                    thread.stopDecoder();
-                }
+    private void startRelay(int port) {
+        stopRelay();
 
-                thread = new DecoderThread(source.getStream());
-                thread.getDecoder().addConsumer(consumer);
-                thread.start();
+        String name = null;
+        String genre = null;
+        if (currentSource != null) {
+            name = currentSource.getName();
+            genre = currentSource.getGenre();
+        }
 
-                currentSource = source;
+        Relay created = new Relay(port, name, genre);
+        try {
+            created.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            created.close();
+            return;
+        }
 
-                Message message = Message.obtain(
-                    null, StreamServiceMessage.Type.INFO);
+        relay = created;
+        if (thread != null) {
+            thread.getDecoder().addPageConsumer(relay);
+        }
+    }
 
-                Bundle data = message.getData();
-                data.putString(
-                    StreamServiceMessage.Response.URL,
-                    source.getUrl());
-                data.putString(
-                    StreamServiceMessage.Response.CONTENT_TYPE,
-                    source.getContentType());
-                data.putString(
-                    StreamServiceMessage.Response.NAME,
-                    source.getName());
-                data.putString(
-                    StreamServiceMessage.Response.GENRE,
-                    source.getGenre());
-                broadcast(message);
+    /**
+     * Stop relaying streams.
+     */
+    private void stopRelay() {
+        if (relay != null) {
+            if (thread != null) {
+                thread.getDecoder().removePageConsumer(relay);
             }
+            relay.close();
+            relay = null;
+        }
+    }
+
+    /**
+     * Set playback volume, kept when the stream is changed.
+     *
+     * @param volume Linear volume
+     * @param ramp Duration in milliseconds of the change
+     * @param replayGain Whether ReplayGain tags are applied
+     */
+    private void setVolume(float volume, int ramp, boolean replayGain) {
+        gain.setReplayGainEnabled(replayGain);
+        gain.setVolume(volume, ramp);
+    }
+
+    /**
+     * Start publishing levels and spectrum of the played audio to all
+     * clients.
+     *
+     * @param rate Maximum number of updates per second
+     * @param spectrum Whether spectrum is analyzed
+     */
+    private void startAnalyzer(int rate, boolean spectrum) {
+        stopAnalyzer();
 
+        analyzer = new Analyzer(new Analyzer.Listener() {
             @Override
-            public void onError() {
-                Message message = Message.obtain(
-                    null, StreamServiceMessage.Type.STATUS);
-                message.getData().putInt(
-                    StreamServiceMessage.Response.VALUE,
-                    StreamServiceMessage.Response.STATUS_ERROR);
-                broadcast(message);
+            public void onLevels(float[] peak, float[] rms,
+                                 float[] spectrum) {
+                final Message message = Message.obtain(
+                        null, StreamServiceMessage.Type.LEVELS);
+                Bundle data = message.getData();
+                data.putFloatArray(
+                        StreamServiceMessage.Response.PEAK, peak.clone());
+                data.putFloatArray(
+                        StreamServiceMessage.Response.RMS, rms.clone());
+                if (spectrum != null) {
+                    data.putFloatArray(
+                            StreamServiceMessage.Response.SPECTRUM,
+                            spectrum.clone());
+                }
 
-                currentSource = null;
+                scheduler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        broadcast(message);
+                    }
+                });
             }
-        }).execute();
+        }, rate, spectrum);
+        analyzer.start();
+
+        if (thread != null) {
+            thread.getDecoder().setAnalyzer(analyzer);
+        }
     }
 
     /**
-     * Stop underlying decoder.
+     * Stop publishing levels.
      */
-    private void stop() {
-        if (thread != null) {
-            thread.stopDecoder();
+    private void stopAnalyzer() {
+        if (analyzer != null) {
+            if (thread != null) {
+                thread.getDecoder().setAnalyzer(null);
+            }
+            analyzer.close();
+            analyzer = null;
         }
     }
 
@@ -278,11 +1558,13 @@ public class StreamService extends Service {
      * Request stream meta data.
      */
     private void requestMeta() {
-        Message message = Message.obtain(
-                null, StreamServiceMessage.Type.META);
-        message.getData().putParcelable(
-                StreamServiceMessage.Response.VALUE, currentMeta);
-        broadcast(message);
+        broadcast(createMetaMessage(currentMeta, -1));
+
+        for (Messenger messenger : outgoing) {
+            metaVersions.put(messenger, metaVersion);
+        }
+
+        broadcast(createCoverArtMessage());
     }
 
     /**
@@ -312,4 +1594,48 @@ public class StreamService extends Service {
 
         broadcast(message);
     }
+
+    /**
+     * Request meta data history of a station.
+     *
+     * Only the requesting client receives the response.
+     *
+     * @param messenger Client
+     * @param url Source URL or {@code null} for the current source
+     * @param offset Number of most recent entries to skip
+     * @param count Maximum number of entries
+     */
+    private void requestHistory(Messenger messenger, String url,
+                                int offset, int count) {
+        if (messenger == null) {
+            return;
+        }
+
+        if (url == null && currentSource != null) {
+            url = currentSource.getUrl();
+        }
+
+        MetaHistory history = url == null ? null : histories.get(url);
+
+        ArrayList<MetaHistory.Entry> entries;
+        int total;
+        if (history == null) {
+            entries = new ArrayList<MetaHistory.Entry>();
+            total = 0;
+        } else {
+            entries = new ArrayList<MetaHistory.Entry>(
+                    history.get(offset, count));
+            total = history.size();
+        }
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.HISTORY);
+        Bundle data = message.getData();
+        data.putString(StreamServiceMessage.Response.URL, url);
+        data.putInt(StreamServiceMessage.Response.OFFSET, offset);
+        data.putInt(StreamServiceMessage.Response.TOTAL, total);
+        data.putParcelableArrayList(
+                StreamServiceMessage.Response.VALUE, entries);
+        send(messenger, message);
+    }
 }
\ No newline at end of file
@@ -35,7 +35,6 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
-import android.os.Parcelable;
 import android.os.RemoteException;
 
 /**
@@ -58,9 +57,19 @@ public class StreamServiceClient {
                 String url, String contentType,
                 String name, String genre);
         public void onStreamMetaReceived(Meta meta);
+        public void onStreamCoverArtReceived(String uri);
+        public void onStreamHistoryReceived(
+                String url, int offset, int total,
+                List<MetaHistory.Entry> entries);
         public void onStreamError();
         public void onStreamStart();
+        public void onStreamPlaying(long timeToFirstAudio);
+        public void onStreamPause();
+        public void onStreamResume();
+        public void onStreamStall(long stallTime, boolean reconnecting);
         public void onStreamStop();
+        public void onStreamLevelsReceived(
+                float[] peak, float[] rms, float[] spectrum);
     }
 
     /**
@@ -78,10 +87,78 @@ public class StreamServiceClient {
              * Meta change
              */
             case StreamServiceMessage.Type.META:
-                Parcelable meta = data.getParcelable(
+                Meta meta = (Meta) data.getParcelable(
                         StreamServiceMessage.Response.VALUE);
+
+                if (meta != null && meta.isDelta()) {
+                    int base = data.getInt(
+                            StreamServiceMessage.Response.BASE_VERSION, -1);
+
+                    if (currentMeta == null || base != metaVersion) {
+                        // Missed an update, ask for full meta data
+                        try {
+                            requestMeta();
+                        } catch (StreamServiceClientException e) {
+                            e.printStackTrace();
+                        }
+                        break;
+                    }
+
+                    meta = currentMeta.merge(meta);
+                }
+
+                currentMeta = meta;
+                metaVersion = data.getInt(
+                        StreamServiceMessage.Response.VERSION, -1);
+
                 for (StreamEventHandler handler : streamEventHandlers) {
-                    handler.onStreamMetaReceived((Meta) meta);
+                    handler.onStreamMetaReceived(meta);
+                }
+                break;
+
+            /*
+             * Cover art change
+             */
+            case StreamServiceMessage.Type.COVER_ART:
+                String uri = data.getString(
+                        StreamServiceMessage.Response.VALUE);
+                for (StreamEventHandler handler : streamEventHandlers) {
+                    handler.onStreamCoverArtReceived(uri);
+                }
+                break;
+
+            /*
+             * Meta data history
+             */
+            case StreamServiceMessage.Type.HISTORY:
+                List<MetaHistory.Entry> entries = data.getParcelableArrayList(
+                        StreamServiceMessage.Response.VALUE);
+                String historyUrl = data.getString(
+                        StreamServiceMessage.Response.URL);
+                int offset = data.getInt(
+                        StreamServiceMessage.Response.OFFSET);
+                int total = data.getInt(
+                        StreamServiceMessage.Response.TOTAL);
+
+                for (StreamEventHandler handler : streamEventHandlers) {
+                    handler.onStreamHistoryReceived(
+                            historyUrl, offset, total, entries);
+                }
+                break;
+
+            /*
+             * Levels
+             */
+            case StreamServiceMessage.Type.LEVELS:
+                float[] peak = data.getFloatArray(
+                        StreamServiceMessage.Response.PEAK);
+                float[] rms = data.getFloatArray(
+                        StreamServiceMessage.Response.RMS);
+                float[] spectrum = data.getFloatArray(
+                        StreamServiceMessage.Response.SPECTRUM);
+
+                for (StreamEventHandler handler : streamEventHandlers) {
+                    handler.onStreamLevelsReceived(peak, rms, spectrum);
                 }
                 break;
 
@@ -104,6 +181,36 @@ public class StreamServiceClient {
                     }
                     break;
 
+                case StreamServiceMessage.Response.STATUS_PLAYING:
+                    long timeToFirstAudio = data.getLong(
+                            StreamServiceMessage.Response.TIME_TO_FIRST_AUDIO);
+                    for (StreamEventHandler handler : streamEventHandlers) {
+                        handler.onStreamPlaying(timeToFirstAudio);
+                    }
+                    break;
+
+                case StreamServiceMessage.Response.STATUS_PAUSED:
+                    for (StreamEventHandler handler : streamEventHandlers) {
+                        handler.onStreamPause();
+                    }
+                    break;
+
+                case StreamServiceMessage.Response.STATUS_RESUMED:
+                    for (StreamEventHandler handler : streamEventHandlers) {
+                        handler.onStreamResume();
+                    }
+                    break;
+
+                case StreamServiceMessage.Response.STATUS_STALLED:
+                    long stallTime = data.getLong(
+                            StreamServiceMessage.Response.STALL_TIME);
+                    boolean reconnecting = data.getBoolean(
+                            StreamServiceMessage.Response.RECONNECTING);
+                    for (StreamEventHandler handler : streamEventHandlers) {
+                        handler.onStreamStall(stallTime, reconnecting);
+                    }
+                    break;
+
                 case StreamServiceMessage.Response.STATUS_STOPPED:
                     for (StreamEventHandler handler : streamEventHandlers) {
                         handler.onStreamStop();
@@ -145,6 +252,9 @@ public class StreamServiceClient {
     private Messenger incoming = new Messenger(new IncomingHandler());
     private Messenger outgoing = null;
 
+    private Meta currentMeta = null;
+    private int metaVersion = -1;
+
     private ServiceConnection connection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
@@ -306,6 +416,18 @@ public class StreamServiceClient {
      * @throws StreamServiceClientException 
      */
     public void start(String url) throws StreamServiceClientException {
+        this.start(url, StartPolicy.DEFAULT);
+    }
+
+    /**
+     * Start stream with the specified start policy.
+     *
+     * @param url Source URL
+     * @param policy Start policy
+     * @throws StreamServiceClientException
+     */
+    public void start(String url, StartPolicy policy)
+            throws StreamServiceClientException {
         this.ensureConnected();
 
         Message message = Message.obtain(
@@ -314,6 +436,7 @@ public class StreamServiceClient {
         data.putInt(StreamServiceMessage.Parameter.COMMAND,
                     StreamServiceMessage.Command.START);
         data.putString(StreamServiceMessage.Parameter.URL, url);
+        policy.writeToBundle(data);
 
         try {
             this.outgoing.send(message);
@@ -344,6 +467,291 @@ public class StreamServiceClient {
         }
     }
 
+    /**
+     * Pause stream, rejoining live streams when resumed.
+     *
+     * @throws StreamServiceClientException
+     */
+    public void pause() throws StreamServiceClientException {
+        this.pause(true, StreamService.PAUSE_BUFFER_SIZE);
+    }
+
+    /**
+     * Pause stream. The connection is kept and the stream received into
+     * a buffer, so playback resumes instantly.
+     *
+     * @param rejoinLive Whether a live stream continues close to the live
+     *        position when resumed, rather than where it was paused
+     * @param limit Size in bytes of the buffer
+     * @throws StreamServiceClientException
+     */
+    public void pause(boolean rejoinLive, int limit)
+            throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        Bundle data = message.getData();
+        data.putInt(StreamServiceMessage.Parameter.COMMAND,
+                    StreamServiceMessage.Command.PAUSE);
+        data.putBoolean(StreamServiceMessage.Parameter.REJOIN_LIVE,
+                        rejoinLive);
+        data.putInt(StreamServiceMessage.Parameter.LIMIT, limit);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Resume paused stream.
+     *
+     * @throws StreamServiceClientException
+     */
+    public void resume() throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        message.getData().putInt(StreamServiceMessage.Parameter.COMMAND,
+                                 StreamServiceMessage.Command.RESUME);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Add a stream to the queue. Queued streams are connected and decoded
+     * ahead, and follow the playing stream without a gap when it ends.
+     * Starts the stream if nothing is playing.
+     *
+     * @param url Stream URL
+     * @throws StreamServiceClientException
+     */
+    public void enqueue(String url) throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        Bundle data = message.getData();
+        data.putInt(StreamServiceMessage.Parameter.COMMAND,
+                    StreamServiceMessage.Command.ENQUEUE);
+        data.putString(StreamServiceMessage.Parameter.URL, url);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Remove all queued streams.
+     *
+     * @throws StreamServiceClientException
+     */
+    public void clearQueue() throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        message.getData().putInt(StreamServiceMessage.Parameter.COMMAND,
+                                 StreamServiceMessage.Command.CLEAR_QUEUE);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Start recording the current stream.
+     *
+     * Recording starts with the playing track from where it is, and each
+     * track is written to its own OGG file in the specified directory,
+     * which must be writable by the service.
+     *
+     * @param path Directory
+     * @throws StreamServiceClientException
+     */
+    public void startRecording(String path)
+            throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        Bundle data = message.getData();
+        data.putInt(StreamServiceMessage.Parameter.COMMAND,
+                    StreamServiceMessage.Command.START_RECORDING);
+        data.putString(StreamServiceMessage.Parameter.PATH, path);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Stop recording.
+     *
+     * @throws StreamServiceClientException
+     */
+    public void stopRecording() throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        message.getData().putInt(StreamServiceMessage.Parameter.COMMAND,
+                                 StreamServiceMessage.Command.STOP_RECORDING);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Start relaying the played streams to HTTP listeners on the local
+     * network, so other devices can play them without connecting to the
+     * upstream server.
+     *
+     * @param port Port to listen on
+     * @throws StreamServiceClientException
+     */
+    public void startRelay(int port) throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        Bundle data = message.getData();
+        data.putInt(StreamServiceMessage.Parameter.COMMAND,
+                    StreamServiceMessage.Command.START_RELAY);
+        data.putInt(StreamServiceMessage.Parameter.PORT, port);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Stop relaying streams.
+     *
+     * @throws StreamServiceClientException
+     */
+    public void stopRelay() throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        message.getData().putInt(StreamServiceMessage.Parameter.COMMAND,
+                                 StreamServiceMessage.Command.STOP_RELAY);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Set playback volume. The change is applied by the decoder as a
+     * ramp starting with the next decoded block, and is kept when the
+     * stream is changed.
+     *
+     * @param volume Linear volume, {@code 1} for unity gain
+     * @param ramp Duration in milliseconds of the change
+     * @param replayGain Whether ReplayGain tags of the stream are applied
+     * @throws StreamServiceClientException
+     */
+    public void setVolume(float volume, int ramp, boolean replayGain)
+            throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        Bundle data = message.getData();
+        data.putInt(StreamServiceMessage.Parameter.COMMAND,
+                    StreamServiceMessage.Command.SET_VOLUME);
+        data.putFloat(StreamServiceMessage.Parameter.VOLUME, volume);
+        data.putInt(StreamServiceMessage.Parameter.RAMP, ramp);
+        data.putBoolean(StreamServiceMessage.Parameter.REPLAY_GAIN,
+                        replayGain);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Start receiving levels and spectrum of the played audio, delivered
+     * through {@link StreamEventHandler#onStreamLevelsReceived}.
+     *
+     * @param rate Maximum number of updates per second
+     * @param spectrum Whether spectrum is analyzed
+     * @throws StreamServiceClientException
+     */
+    public void startAnalyzer(int rate, boolean spectrum)
+            throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        Bundle data = message.getData();
+        data.putInt(StreamServiceMessage.Parameter.COMMAND,
+                    StreamServiceMessage.Command.START_ANALYZER);
+        data.putInt(StreamServiceMessage.Parameter.RATE, rate);
+        data.putBoolean(StreamServiceMessage.Parameter.SPECTRUM, spectrum);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
+    /**
+     * Stop receiving levels.
+     *
+     * @throws StreamServiceClientException
+     */
+    public void stopAnalyzer() throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        message.getData().putInt(StreamServiceMessage.Parameter.COMMAND,
+                                 StreamServiceMessage.Command.STOP_ANALYZER);
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
+
     /**
      * Request stream general information.
      *
@@ -385,4 +793,46 @@ public class StreamServiceClient {
             throw new StreamServiceClientException(e.getMessage());
         }
     }
+
+    /**
+     * Request meta data history of the current stream.
+     *
+     * @param offset Number of most recent entries to skip
+     * @param count Maximum number of entries
+     * @throws StreamServiceClientException
+     */
+    public void requestHistory(int offset, int count)
+            throws StreamServiceClientException {
+        this.requestHistory(null, offset, count);
+    }
+
+    /**
+     * Request meta data history of a stream.
+     *
+     * @param url Source URL or {@code null} for the current stream
+     * @param offset Number of most recent entries to skip
+     * @param count Maximum number of entries
+     * @throws StreamServiceClientException
+     */
+    public void requestHistory(String url, int offset, int count)
+            throws StreamServiceClientException {
+        this.ensureConnected();
+
+        Message message = Message.obtain(
+                null, StreamServiceMessage.Type.COMMAND);
+        Bundle data = message.getData();
+        data.putInt(StreamServiceMessage.Parameter.COMMAND,
+                    StreamServiceMessage.Command.REQUEST_HISTORY);
+        data.putString(StreamServiceMessage.Parameter.URL, url);
+        data.putInt(StreamServiceMessage.Parameter.OFFSET, offset);
+        data.putInt(StreamServiceMessage.Parameter.COUNT, count);
+        message.replyTo = incoming;
+
+        try {
+            this.outgoing.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            throw new StreamServiceClientException(e.getMessage());
+        }
+    }
 }
\ No newline at end of file
@@ -33,6 +33,9 @@ public class StreamServiceMessage {
         public static final int META = 1;
         public static final int STATUS = 2;
         public static final int INFO = 3;
+        public static final int COVER_ART = 4;
+        public static final int HISTORY = 5;
+        public static final int LEVELS = 6;
     }
 
     /**
@@ -41,6 +44,22 @@ public class StreamServiceMessage {
     public static class Parameter {
         public static final String COMMAND = "command";
         public static final String URL = "url";
+        public static final String OFFSET = "offset";
+        public static final String COUNT = "count";
+        public static final String PATH = "path";
+        public static final String PORT = "port";
+        public static final String VOLUME = "volume";
+        public static final String RAMP = "ramp";
+        public static final String REPLAY_GAIN = "replay_gain";
+        public static final String RATE = "rate";
+        public static final String SPECTRUM = "spectrum";
+        public static final String LIMIT = "limit";
+        public static final String REJOIN_LIVE = "rejoin_live";
+
+        public static final String START_THRESHOLD = "start_threshold";
+        public static final String INITIAL_BUFFER = "initial_buffer";
+        public static final String STABLE_TIME = "stable_time";
+        public static final String CROSSFADE = "crossfade";
     }
 
     /**
@@ -55,6 +74,24 @@ public class StreamServiceMessage {
 
         public static final int REQUEST_INFO = 4;
         public static final int REQUEST_META = 5;
+        public static final int REQUEST_HISTORY = 6;
+
+        public static final int START_RECORDING = 7;
+        public static final int STOP_RECORDING = 8;
+
+        public static final int START_RELAY = 9;
+        public static final int STOP_RELAY = 10;
+
+        public static final int SET_VOLUME = 11;
+
+        public static final int START_ANALYZER = 12;
+        public static final int STOP_ANALYZER = 13;
+
+        public static final int ENQUEUE = 14;
+        public static final int CLEAR_QUEUE = 15;
+
+        public static final int PAUSE = 16;
+        public static final int RESUME = 17;
     }
 
     /**
@@ -62,14 +99,32 @@ public class StreamServiceMessage {
      */
     public static class Response {
         public static final String VALUE = "value";
+        public static final String VERSION = "version";
+        public static final String BASE_VERSION = "base_version";
 
         public static final int STATUS_STARTED = 0;
         public static final int STATUS_STOPPED = 1;
         public static final int STATUS_ERROR = 2;
+        public static final int STATUS_PLAYING = 3;
+        public static final int STATUS_PAUSED = 4;
+        public static final int STATUS_RESUMED = 5;
+        public static final int STATUS_STALLED = 6;
+
+        public static final String TIME_TO_FIRST_AUDIO = "time_to_first_audio";
+
+        public static final String STALL_TIME = "stall_time";
+        public static final String RECONNECTING = "reconnecting";
 
         public static final String URL = "url";
         public static final String CONTENT_TYPE = "content_type";
         public static final String NAME = "name";
         public static final String GENRE = "genre";
+
+        public static final String OFFSET = "offset";
+        public static final String TOTAL = "total";
+
+        public static final String PEAK = "peak";
+        public static final String RMS = "rms";
+        public static final String SPECTRUM = "spectrum";
     }
 }
\ No newline at end of file
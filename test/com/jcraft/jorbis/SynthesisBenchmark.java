@@ -0,0 +1,355 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package com.jcraft.jorbis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.jcraft.jogg.Packet;
+import com.jcraft.jogg.Page;
+import com.jcraft.jogg.StreamState;
+import com.jcraft.jogg.SyncState;
+
+/**
+ * Comparison and timing of the faster synthesis of {@link FastMapping0}
+ * against the one of JOrbis.
+ *
+ * The {@link Imdct} is compared with the JOrbis {@code Mdct} on random
+ * spectra of every block size and timed at the usual short and long
+ * block sizes. Given an OGG Vorbis file, its first chain is decoded with
+ * both mappings, comparing the decoded audio and timing the decoding.
+ * Run as:
+ *
+ * <pre>
+ * java com.jcraft.jorbis.SynthesisBenchmark [file.ogg]
+ * </pre>
+ *
+ * The process exits with status 1 if the results differ by more than
+ * {@link #MAX_DIFFERENCE} relative to the largest value.
+ */
+public class SynthesisBenchmark {
+    /**
+     * Largest difference allowed, relative to the largest value.
+     */
+    public static final double MAX_DIFFERENCE = 1e-4;
+
+    /**
+     * Number of timing rounds, the last of which is reported.
+     */
+    private static final int ROUNDS = 4;
+
+    /**
+     * Compare the transform with JOrbis on random spectra.
+     *
+     * @param random Random generator
+     * @return Whether all block sizes match
+     */
+    private static boolean compareTransform(Random random) {
+        boolean matching = true;
+
+        for (int n = 64; n <= 8192; n <<= 1) {
+            float[] spectrum = new float[n / 2];
+            for (int i = 0; i < spectrum.length; i++) {
+                spectrum[i] = (float) random.nextGaussian();
+            }
+
+            float[] fast = new float[n];
+            System.arraycopy(spectrum, 0, fast, 0, n / 2);
+            Imdct.get(n).backward(fast);
+
+            float[] reference = new float[n];
+            System.arraycopy(spectrum, 0, reference, 0, n / 2);
+            Mdct mdct = new Mdct();
+            mdct.init(n);
+            mdct.backward(reference, reference);
+
+            double difference = getDifference(
+                    new float[][] { reference }, new float[][] { fast }, n);
+            matching &= difference <= MAX_DIFFERENCE;
+
+            System.out.println(String.format(
+                    "imdct n=%5d relative difference %.2e", n, difference));
+        }
+
+        return matching;
+    }
+
+    /**
+     * Time the transform against JOrbis.
+     *
+     * @param random Random generator
+     */
+    private static void timeTransform(Random random) {
+        for (int n : new int[] { 256, 2048 }) {
+            float[] spectrum = new float[n / 2];
+            for (int i = 0; i < spectrum.length; i++) {
+                spectrum[i] = (float) random.nextGaussian();
+            }
+
+            float[] pcm = new float[n];
+            Mdct mdct = new Mdct();
+            mdct.init(n);
+            Imdct imdct = Imdct.get(n);
+            int iterations = 80000000 / n;
+
+            long reference = 0;
+            long fast = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    System.arraycopy(spectrum, 0, pcm, 0, n / 2);
+                    mdct.backward(pcm, pcm);
+                }
+                long middle = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    System.arraycopy(spectrum, 0, pcm, 0, n / 2);
+                    imdct.backward(pcm);
+                }
+                reference = middle - start;
+                fast = System.nanoTime() - middle;
+            }
+
+            System.out.println(String.format(
+                    "imdct n=%5d jorbis %6.0f ns fast %6.0f ns " +
+                    "speedup %.2fx",
+                    n, (double) reference / iterations,
+                    (double) fast / iterations, (double) reference / fast));
+        }
+    }
+
+    /**
+     * Read the packets of the first chain of a file.
+     *
+     * @param file OGG Vorbis file
+     * @return Packets, starting with the three headers
+     * @throws IOException
+     */
+    private static List<Packet> readPackets(File file) throws IOException {
+        SyncState sync = new SyncState();
+        StreamState stream = new StreamState();
+        Page page = new Page();
+        Packet packet = new Packet();
+        List<Packet> packets = new ArrayList<Packet>();
+        sync.init();
+
+        InputStream input = new FileInputStream(file);
+        try {
+            int serial = -1;
+            boolean reading = true;
+            while (reading) {
+                int result = sync.pageout(page);
+                if (result == 0) {
+                    int index = sync.buffer(4096);
+                    int bytes = input.read(sync.data, index, 4096);
+                    if (bytes < 0) {
+                        break;
+                    }
+                    sync.wrote(bytes);
+                    continue;
+                }
+                if (result < 0) {
+                    continue;
+                }
+
+                if (serial == -1) {
+                    serial = page.serialno();
+                    stream.init(serial);
+                } else if (page.serialno() != serial) {
+                    break;
+                }
+                stream.pagein(page);
+                reading = page.eos() == 0;
+
+                while (stream.packetout(packet) == 1) {
+                    Packet copy = new Packet();
+                    copy.packet_base = new byte[packet.bytes];
+                    System.arraycopy(packet.packet_base, packet.packet,
+                                     copy.packet_base, 0, packet.bytes);
+                    copy.bytes = packet.bytes;
+                    copy.b_o_s = packet.b_o_s;
+                    copy.e_o_s = packet.e_o_s;
+                    copy.granulepos = packet.granulepos;
+                    copy.packetno = packet.packetno;
+                    packets.add(copy);
+                }
+            }
+        } finally {
+            input.close();
+        }
+
+        return packets;
+    }
+
+    /**
+     * Decode packets with a type 0 mapping.
+     *
+     * @param packets Packets, starting with the three headers
+     * @param mapping Mapping
+     * @param pcm Buffer per channel receiving the audio, or {@code null}
+     * @return Samples per channel
+     * @throws IOException
+     */
+    private static int decode(List<Packet> packets, FuncMapping mapping,
+                              float[][] pcm) throws IOException {
+        FuncMapping.mapping_P[0] = mapping;
+
+        Info info = new Info();
+        Comment comment = new Comment();
+        info.init();
+        comment.init();
+        for (int i = 0; i < 3; i++) {
+            if (info.synthesis_headerin(comment, packets.get(i)) < 0) {
+                throw new IOException("Not a Vorbis stream");
+            }
+        }
+
+        DspState dsp = new DspState();
+        dsp.synthesis_init(info);
+        Block block = new Block(dsp);
+        float[][][] output = new float[1][][];
+        int[] index = new int[info.channels];
+
+        int position = 0;
+        for (int i = 3; i < packets.size(); i++) {
+            if (block.synthesis(packets.get(i)) == 0) {
+                dsp.synthesis_blockin(block);
+            }
+
+            int samples;
+            while ((samples = dsp.synthesis_pcmout(output, index)) > 0) {
+                if (pcm != null) {
+                    for (int c = 0; c < info.channels; c++) {
+                        System.arraycopy(output[0][c], index[c],
+                                         pcm[c], position, samples);
+                    }
+                }
+                position += samples;
+                dsp.synthesis_read(samples);
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Compare and time decoding of a file with both mappings.
+     *
+     * @param file OGG Vorbis file
+     * @return Whether the decoded audio matches
+     * @throws IOException
+     */
+    private static boolean compareSynthesis(File file) throws IOException {
+        List<Packet> packets = readPackets(file);
+        if (packets.size() <= 3) {
+            throw new IOException("No audio in " + file);
+        }
+
+        Info info = new Info();
+        Comment comment = new Comment();
+        info.init();
+        comment.init();
+        info.synthesis_headerin(comment, packets.get(0));
+
+        Mapping0 reference = new Mapping0();
+        FastMapping0 fast = new FastMapping0();
+
+        int samples = decode(packets, reference, null);
+        float[][] expected = new float[info.channels][samples];
+        float[][] actual = new float[info.channels][samples];
+        decode(packets, reference, expected);
+        decode(packets, fast, actual);
+
+        double difference = getDifference(expected, actual, samples);
+        System.out.println(String.format(
+                "synthesis %d samples x %d channels relative difference " +
+                "%.2e", samples, info.channels, difference));
+
+        long referenceTime = 0;
+        long fastTime = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            decode(packets, reference, null);
+            long middle = System.nanoTime();
+            decode(packets, fast, null);
+            referenceTime = middle - start;
+            fastTime = System.nanoTime() - middle;
+        }
+
+        System.out.println(String.format(
+                "synthesis jorbis %.1f ms fast %.1f ms speedup %.2fx",
+                referenceTime / 1e6, fastTime / 1e6,
+                (double) referenceTime / fastTime));
+
+        return difference <= MAX_DIFFERENCE;
+    }
+
+    /**
+     * Get largest difference relative to the largest reference value.
+     *
+     * @param expected Reference values per channel
+     * @param actual Compared values per channel
+     * @param length Values per channel
+     * @return Relative difference
+     */
+    private static double getDifference(float[][] expected,
+                                        float[][] actual, int length) {
+        double difference = 0;
+        double largest = 0;
+        for (int c = 0; c < expected.length; c++) {
+            for (int i = 0; i < length; i++) {
+                difference = Math.max(difference,
+                        Math.abs(expected[c][i] - actual[c][i]));
+                largest = Math.max(largest, Math.abs(expected[c][i]));
+            }
+        }
+        return largest > 0 ? difference / largest : difference;
+    }
+
+    /**
+     * Run from the command line.
+     *
+     * @param args Optionally an OGG Vorbis file
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(1);
+
+        boolean matching = compareTransform(random);
+        timeTransform(random);
+
+        if (args.length > 0) {
+            matching &= compareSynthesis(new File(args[0]));
+        }
+
+        if (!matching) {
+            System.out.println("FAILED: results differ from JOrbis");
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+}
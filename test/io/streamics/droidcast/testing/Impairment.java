@@ -0,0 +1,213 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package io.streamics.droidcast.testing;
+
+/**
+ * Network impairments applied by a {@link ReplayServer} to each client.
+ *
+ * Probabilities are drawn once per page sent, from a random generator
+ * seeded with {@link #setSeed(long)} and the connection number, so a run
+ * can be repeated. Delays are measured against the replay schedule, so
+ * the data held back by jitter or a stall is sent at once afterwards, as
+ * a server with a live source would.
+ *
+ * Truncated and dropped pages are only audio pages within a chain, past
+ * its first audio page and before its last page, so every loss shows in
+ * the page sequence the client receives.
+ */
+public class Impairment {
+    private int bandwidth = 0;
+    private long jitter = 0;
+    private double stallProbability = 0;
+    private long stallTime = 0;
+    private double resetProbability = 0;
+    private double truncateProbability = 0;
+    private double dropProbability = 0;
+    private long dropTime = 0;
+    private long seed = 0;
+
+    /**
+     * Create impairments resembling a mobile connection, with jitter and
+     * occasional stalls, resets and corrupt pages.
+     *
+     * @return Impairment
+     */
+    public static Impairment mobile() {
+        Impairment impairment = new Impairment();
+        impairment.setJitter(300);
+        impairment.setStalls(0.002, 3000);
+        impairment.setResets(0.0005);
+        impairment.setTruncation(0.001);
+        return impairment;
+    }
+
+    /**
+     * Set bandwidth cap.
+     *
+     * @param bytes Bytes per second of wall time, or 0 for no cap
+     */
+    public void setBandwidth(int bytes) {
+        this.bandwidth = bytes;
+    }
+
+    /**
+     * Get bandwidth cap.
+     *
+     * @return Bytes per second, or 0 for no cap
+     */
+    public int getBandwidth() {
+        return this.bandwidth;
+    }
+
+    /**
+     * Set maximum delay added to each page, chosen uniformly.
+     *
+     * @param milliseconds Milliseconds, or 0 for none
+     */
+    public void setJitter(long milliseconds) {
+        this.jitter = milliseconds;
+    }
+
+    /**
+     * Get maximum delay added to each page.
+     *
+     * @return Milliseconds
+     */
+    public long getJitter() {
+        return this.jitter;
+    }
+
+    /**
+     * Set stalls, during which nothing is sent but the connection is kept
+     * open.
+     *
+     * @param probability Probability of a stall after each page
+     * @param milliseconds Duration of a stall
+     */
+    public void setStalls(double probability, long milliseconds) {
+        this.stallProbability = probability;
+        this.stallTime = milliseconds;
+    }
+
+    /**
+     * Get probability of a stall after each page.
+     *
+     * @return Probability
+     */
+    public double getStallProbability() {
+        return this.stallProbability;
+    }
+
+    /**
+     * Get duration of a stall.
+     *
+     * @return Milliseconds
+     */
+    public long getStallTime() {
+        return this.stallTime;
+    }
+
+    /**
+     * Set connection resets.
+     *
+     * @param probability Probability of a reset before each page
+     */
+    public void setResets(double probability) {
+        this.resetProbability = probability;
+    }
+
+    /**
+     * Get probability of a reset before each page.
+     *
+     * @return Probability
+     */
+    public double getResetProbability() {
+        return this.resetProbability;
+    }
+
+    /**
+     * Set truncated pages, of which only a random part is sent.
+     *
+     * @param probability Probability of truncating each page
+     */
+    public void setTruncation(double probability) {
+        this.truncateProbability = probability;
+    }
+
+    /**
+     * Get probability of truncating each page.
+     *
+     * @return Probability
+     */
+    public double getTruncateProbability() {
+        return this.truncateProbability;
+    }
+
+    /**
+     * Set dropped pages, of which nothing is sent, as in an outage of a
+     * link upstream.
+     *
+     * @param probability Probability of a drop starting at each page
+     * @param milliseconds Audio dropped from then on
+     */
+    public void setDrops(double probability, long milliseconds) {
+        this.dropProbability = probability;
+        this.dropTime = milliseconds;
+    }
+
+    /**
+     * Get probability of a drop starting at each page.
+     *
+     * @return Probability
+     */
+    public double getDropProbability() {
+        return this.dropProbability;
+    }
+
+    /**
+     * Get amount of audio dropped at once.
+     *
+     * @return Milliseconds
+     */
+    public long getDropTime() {
+        return this.dropTime;
+    }
+
+    /**
+     * Set seed of the random choices.
+     *
+     * @param seed Seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Get seed of the random choices.
+     *
+     * @return Seed
+     */
+    public long getSeed() {
+        return this.seed;
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package io.streamics.droidcast.testing;
+
+import io.streamics.droidcast.core.decoder.Converter;
+import io.streamics.droidcast.core.decoder.Decoder;
+import io.streamics.droidcast.core.decoder.DecoderThread;
+import io.streamics.droidcast.core.decoder.Meta;
+import io.streamics.droidcast.core.source.Source;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jcraft.jorbis.Info;
+
+/**
+ * Load test running many playback pipelines at once against a local
+ * {@link ReplayServer}, reporting underruns, time to first audio and CPU
+ * time of each.
+ *
+ * Each playback connects a {@link Source} and decodes it on a
+ * {@link DecoderThread} into a simulated player, which starts once
+ * {@link #PREBUFFER} milliseconds of audio were decoded and then consumes
+ * audio at the replay speed. An underrun is counted each time the player
+ * runs out of audio, after which it buffers again. A playback whose
+ * decoder finishes, such as after a connection reset, reconnects.
+ *
+ * CPU time is read per decoder thread where the Java management API is
+ * available, and reported as unavailable otherwise. Run as:
+ *
+ * <pre>
+ * java io.streamics.droidcast.testing.LoadDriver file.ogg [streams]
+ *         [seconds] [speed] [impaired]
+ * </pre>
+ */
+public class LoadDriver {
+    /**
+     * Audio in milliseconds decoded before playback starts.
+     */
+    public static final long PREBUFFER = 500;
+
+    /**
+     * Interval in milliseconds between checks of the playbacks.
+     */
+    public static final long CHECK_INTERVAL = 50;
+
+    /**
+     * Time in milliseconds given to a decoder to stop on its own before
+     * its connection is closed.
+     */
+    public static final long STOP_TIMEOUT = 2000;
+
+    /**
+     * Playback pipeline.
+     */
+    public static class Playback implements Decoder.Consumer {
+        private double speed;
+        private Source source;
+        private DecoderThread thread;
+
+        // Player, in seconds of audio
+        private int rate = 0;
+        private int frameSize = 0;
+        private double decoded = 0;
+        private double played = 0;
+        private boolean playing = false;
+        private long playStart;
+        private double playedAtStart;
+        private int underruns = 0;
+
+        // Connections
+        private long connectTime;
+        private boolean waiting = false;
+        private int connections = 0;
+        private long firstAudioTotal = 0;
+        private long firstAudioMax = 0;
+        private int firstAudioCount = 0;
+
+        // CPU time in nanoseconds
+        private long cpuFinished = 0;
+        private long cpuCurrent = 0;
+
+        /**
+         * Constructor for {@code Playback}.
+         *
+         * @param speed Replay speed
+         */
+        public Playback(double speed) {
+            this.speed = speed;
+        }
+
+        /**
+         * Connect and start decoding.
+         *
+         * @param url Stream URL
+         * @throws Exception
+         */
+        public void connect(String url) throws Exception {
+            synchronized (this) {
+                connectTime = System.currentTimeMillis();
+                waiting = true;
+                connections++;
+            }
+
+            source = new Source(url);
+            thread = new DecoderThread(source.getStream());
+            thread.getDecoder().addConsumer(this);
+            thread.start();
+        }
+
+        /**
+         * Stop decoding and disconnect.
+         *
+         * @throws InterruptedException
+         */
+        public void disconnect() throws InterruptedException {
+            if (thread == null) {
+                return;
+            }
+
+            thread.stopDecoder();
+            thread.join(STOP_TIMEOUT);
+            source.close();
+            thread.join();
+
+            cpuFinished += cpuCurrent;
+            cpuCurrent = 0;
+            thread = null;
+            source = null;
+        }
+
+        /**
+         * Get whether the decoder finished.
+         *
+         * @return Whether finished
+         */
+        public boolean isFinished() {
+            return thread == null || !thread.isAlive();
+        }
+
+        /**
+         * Advance the player and read the CPU time of the decoder.
+         *
+         * @param now Time in milliseconds
+         */
+        public void check(long now) {
+            play(now);
+
+            long cpu = readCpuTime(thread);
+            if (cpu >= 0) {
+                cpuCurrent = cpu;
+            }
+        }
+
+        /**
+         * Advance the player, counting an underrun when out of audio.
+         *
+         * @param now Time in milliseconds
+         */
+        private synchronized void play(long now) {
+            if (!playing) {
+                if (decoded - played >= PREBUFFER / 1000.0) {
+                    playing = true;
+                    playStart = now;
+                    playedAtStart = played;
+                }
+                return;
+            }
+
+            played = playedAtStart + (now - playStart) * speed / 1000;
+            if (played >= decoded) {
+                played = decoded;
+                playing = false;
+                underruns++;
+            }
+        }
+
+        @Override
+        public synchronized void onInfo(Info info) {
+            rate = info.rate;
+            frameSize = 2 * Converter.getOutputChannels(info.channels);
+        }
+
+        @Override
+        public void onMeta(Meta meta) {
+        }
+
+        @Override
+        public void onRead(byte[] data, int off, int len) {
+            long now = System.currentTimeMillis();
+
+            synchronized (this) {
+                if (waiting) {
+                    long time = now - connectTime;
+                    waiting = false;
+                    firstAudioTotal += time;
+                    firstAudioMax = Math.max(firstAudioMax, time);
+                    firstAudioCount++;
+                }
+
+                if (rate > 0) {
+                    decoded += (double) (len / frameSize) / rate;
+                }
+            }
+
+            play(now);
+        }
+
+        @Override
+        public void onFinish() {
+        }
+
+        /**
+         * Get number of times the player ran out of audio.
+         *
+         * @return Count
+         */
+        public synchronized int getUnderruns() {
+            return this.underruns;
+        }
+
+        /**
+         * Get mean time from connecting to the first decoded audio.
+         *
+         * @return Milliseconds, or -1 if no audio was decoded
+         */
+        public synchronized long getTimeToFirstAudio() {
+            return firstAudioCount > 0 ?
+                    firstAudioTotal / firstAudioCount : -1;
+        }
+
+        /**
+         * Get longest time from connecting to the first decoded audio.
+         *
+         * @return Milliseconds
+         */
+        public synchronized long getMaxTimeToFirstAudio() {
+            return this.firstAudioMax;
+        }
+
+        /**
+         * Get number of connections.
+         *
+         * @return Count
+         */
+        public synchronized int getConnections() {
+            return this.connections;
+        }
+
+        /**
+         * Get amount of decoded audio.
+         *
+         * @return Seconds
+         */
+        public synchronized double getDecoded() {
+            return this.decoded;
+        }
+
+        /**
+         * Get CPU time of the decoder threads.
+         *
+         * @return Nanoseconds, or -1 if unavailable
+         */
+        public long getCpuTime() {
+            return CPU_TIME != null ? cpuFinished + cpuCurrent : -1;
+        }
+    }
+
+    // Java management API, missing on Android
+    private static final Object THREAD_BEAN;
+    private static final Method CPU_TIME;
+
+    static {
+        Object bean = null;
+        Method method = null;
+        try {
+            Class<?> factory =
+                    Class.forName("java.lang.management.ManagementFactory");
+            bean = factory.getMethod("getThreadMXBean").invoke(null);
+            method = Class.forName("java.lang.management.ThreadMXBean")
+                    .getMethod("getThreadCpuTime", long.class);
+        } catch (Exception e) {
+            bean = null;
+            method = null;
+        }
+        THREAD_BEAN = bean;
+        CPU_TIME = method;
+    }
+
+    /**
+     * Get CPU time of a thread.
+     *
+     * @param thread Thread
+     * @return Nanoseconds, or -1 if unavailable
+     */
+    private static long readCpuTime(Thread thread) {
+        if (CPU_TIME == null || thread == null) {
+            return -1;
+        }
+
+        try {
+            return (Long) CPU_TIME.invoke(THREAD_BEAN, thread.getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private ReplayServer server;
+    private double speed;
+    private List<Playback> playbacks = new ArrayList<Playback>();
+
+    /**
+     * Constructor for {@code LoadDriver}.
+     *
+     * @param server Server replaying the stream, not started yet
+     * @param speed Replay speed of the server
+     */
+    public LoadDriver(ReplayServer server, double speed) {
+        this.server = server;
+        this.speed = speed;
+    }
+
+    /**
+     * Run the playbacks.
+     *
+     * @param streams Number of playbacks
+     * @param duration Milliseconds
+     * @return Pipelines, for their results
+     * @throws Exception
+     */
+    public List<Playback> run(int streams, long duration) throws Exception {
+        server.start();
+
+        try {
+            for (int i = 0; i < streams; i++) {
+                Playback playback = new Playback(speed);
+                playbacks.add(playback);
+                playback.connect(server.getUrl());
+            }
+
+            long end = System.currentTimeMillis() + duration;
+            while (System.currentTimeMillis() < end) {
+                Thread.sleep(CHECK_INTERVAL);
+
+                long now = System.currentTimeMillis();
+                for (Playback playback : playbacks) {
+                    playback.check(now);
+                    if (playback.isFinished()) {
+                        playback.disconnect();
+                        try {
+                            playback.connect(server.getUrl());
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (Playback playback : playbacks) {
+                playback.disconnect();
+            }
+            server.close();
+        }
+
+        return playbacks;
+    }
+
+    /**
+     * Print results of the playbacks.
+     *
+     * @param playbacks Playbacks
+     * @param duration Run time in milliseconds
+     */
+    public static void report(List<Playback> playbacks, long duration) {
+        int underruns = 0;
+        long firstAudio = 0;
+        long firstAudioMax = 0;
+        long cpu = 0;
+
+        for (int i = 0; i < playbacks.size(); i++) {
+            Playback playback = playbacks.get(i);
+            System.out.println(String.format(
+                    "stream %3d: underruns %3d first audio %5d ms " +
+                    "(max %5d) connections %3d decoded %7.1f s cpu %s",
+                    i, playback.getUnderruns(),
+                    playback.getTimeToFirstAudio(),
+                    playback.getMaxTimeToFirstAudio(),
+                    playback.getConnections(), playback.getDecoded(),
+                    formatCpu(playback.getCpuTime(), duration)));
+
+            underruns += playback.getUnderruns();
+            firstAudio += Math.max(playback.getTimeToFirstAudio(), 0);
+            firstAudioMax = Math.max(firstAudioMax,
+                                     playback.getMaxTimeToFirstAudio());
+            cpu += playback.getCpuTime();
+        }
+
+        int count = Math.max(playbacks.size(), 1);
+        System.out.println(String.format(
+                "%d streams: underruns %d first audio %d ms (max %d) " +
+                "cpu per stream %s",
+                playbacks.size(), underruns, firstAudio / count,
+                firstAudioMax,
+                formatCpu(CPU_TIME != null ? cpu / count : -1, duration)));
+    }
+
+    /**
+     * Format CPU time as a share of one processor.
+     *
+     * @param cpu Nanoseconds, or -1 if unavailable
+     * @param duration Run time in milliseconds
+     * @return Text
+     */
+    private static String formatCpu(long cpu, long duration) {
+        if (cpu < 0) {
+            return "n/a";
+        }
+        return String.format("%.1f%%", cpu / (duration * 10000.0));
+    }
+
+    /**
+     * Run from the command line.
+     *
+     * @param args File, and optionally streams, seconds, speed and
+     *             {@code impaired}
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadDriver file.ogg [streams] " +
+                               "[seconds] [speed] [impaired]");
+            System.exit(2);
+        }
+
+        int streams = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long duration = args.length > 2 ?
+                Long.parseLong(args[2]) * 1000 : 60000;
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+
+        ReplayServer server = new ReplayServer(new File(args[0]), speed);
+        if (args.length > 4 && args[4].equals("impaired")) {
+            server.setImpairment(Impairment.mobile());
+        }
+
+        LoadDriver driver = new LoadDriver(server, speed);
+        report(driver.run(streams, duration), duration);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package io.streamics.droidcast.testing;
+
+import io.streamics.droidcast.core.decoder.Decoder;
+import io.streamics.droidcast.core.decoder.DecoderStats;
+import io.streamics.droidcast.core.decoder.DecoderThread;
+import io.streamics.droidcast.core.decoder.Meta;
+import io.streamics.droidcast.core.source.Source;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jcraft.jorbis.Info;
+
+/**
+ * Check of the recovery of the {@link Decoder} from lost pages, decoding
+ * a pass over an OGG Vorbis file from a local {@link ReplayServer} that
+ * truncates and drops pages.
+ *
+ * The counters of {@link DecoderStats} must match the {@link
+ * ReplayServer.Losses} of the server: a lost page for every page missing,
+ * a resync for every run of lost pages including a truncated one, and
+ * silence for the audio of each run, up to {@link Decoder#MAX_CONCEAL}
+ * seconds. Each case is decoded with and without pipelining. The file
+ * should have chains of some seconds, so drops of more than that limit
+ * fit in them. Run as:
+ *
+ * <pre>
+ * java io.streamics.droidcast.testing.LossCheck file.ogg [speed]
+ * </pre>
+ *
+ * The process exits with status 1 if a counter does not match.
+ */
+public class LossCheck {
+    /**
+     * Default replay speed.
+     */
+    public static final double DEFAULT_SPEED = 8;
+
+    /**
+     * Samples per channel by which concealment of a run of lost pages may
+     * differ from its audio, as the overlap with the audio around it is
+     * lost as well. The longest Vorbis block.
+     */
+    public static final int CONCEAL_TOLERANCE = 8192;
+
+    /**
+     * Time in milliseconds given to the decoder to reach the end of the
+     * stream after the server sent it.
+     */
+    public static final long FINISH_TIMEOUT = 60000;
+
+    /**
+     * Consumer counting decoded audio.
+     */
+    private static class Counter implements Decoder.Consumer {
+        private volatile int rate = 0;
+        private volatile long bytes = 0;
+
+        @Override
+        public void onInfo(Info info) {
+            rate = info.rate;
+        }
+
+        @Override
+        public void onMeta(Meta meta) {
+        }
+
+        @Override
+        public void onRead(byte[] data, int off, int len) {
+            bytes += len;
+        }
+
+        @Override
+        public void onFinish() {
+        }
+    }
+
+    private File file;
+    private double speed;
+
+    /**
+     * Constructor for {@code LossCheck}.
+     *
+     * @param file OGG Vorbis file
+     * @param speed Replay speed
+     */
+    public LossCheck(File file, double speed) {
+        this.file = file;
+        this.speed = speed;
+    }
+
+    /**
+     * Decode a pass over the file with pages lost to an impairment and
+     * compare the decoder counters with the losses.
+     *
+     * @param name Name of the case, for the report
+     * @param impairment Impairment
+     * @param capped Whether a run of lost audio must exceed the limit of
+     *        concealment
+     * @param pipelined Whether the decoder is pipelined
+     * @return Description of the mismatches, or {@code null} if none
+     * @throws Exception
+     */
+    public String run(String name, Impairment impairment, boolean capped,
+                      boolean pipelined) throws Exception {
+        if (pipelined) {
+            name += " (pipelined)";
+        }
+
+        ReplayServer server = new ReplayServer(file, speed);
+        server.setImpairment(impairment);
+        server.setPasses(1);
+        server.start();
+
+        Counter counter = new Counter();
+        Source source = null;
+        DecoderThread thread = null;
+        try {
+            source = new Source(server.getUrl());
+            thread = new DecoderThread(source.getStream());
+            thread.getDecoder().setPipelined(pipelined);
+            thread.getDecoder().addConsumer(counter);
+            thread.start();
+            thread.join(FINISH_TIMEOUT);
+        } finally {
+            if (thread != null) {
+                thread.stopDecoder();
+            }
+            if (source != null) {
+                source.close();
+            }
+            server.close();
+        }
+
+        if (thread.isAlive()) {
+            return name + ": decoder did not reach the end of the stream";
+        }
+
+        ReplayServer.Losses losses = server.getLosses();
+        DecoderStats stats = thread.getDecoder().getStats();
+        long limit = (long) Decoder.MAX_CONCEAL * counter.rate;
+        long expected = losses.getSamples(limit);
+        long tolerance = (long) losses.getGaps() * CONCEAL_TOLERANCE;
+        long concealed = stats.getConcealedSamples();
+
+        System.out.println(String.format(
+                "%s: decoded %d KB, gaps %d, lost pages %d/%d, " +
+                "resyncs %d/%d, concealed %d/%d samples",
+                name, counter.bytes / 1024, losses.getGaps(),
+                stats.getLostPages(), losses.getPages(),
+                stats.getResyncs(), losses.getTruncatedGaps(),
+                concealed, expected));
+
+        StringBuilder failure = new StringBuilder();
+        if (losses.getGaps() == 0) {
+            failure.append(", no pages lost");
+        }
+        if (capped && losses.getLongestGap() <= limit) {
+            failure.append(", no gap longer than the concealment limit");
+        }
+        if (stats.getLostPages() != losses.getPages()) {
+            failure.append(", lost pages");
+        }
+        if (stats.getResyncs() != losses.getTruncatedGaps()) {
+            failure.append(", resyncs");
+        }
+        if (stats.getHeaderResyncs() != 0 || stats.getForeignPages() != 0) {
+            failure.append(", pages skipped outside gaps");
+        }
+        if (Math.abs(concealed - expected) > tolerance) {
+            failure.append(", concealed samples");
+        }
+        if (concealed > losses.getGaps() * limit) {
+            failure.append(", concealment over the limit");
+        }
+
+        return failure.length() > 0 ?
+                name + ": " + failure.substring(2) : null;
+    }
+
+    /**
+     * Run from the command line.
+     *
+     * @param args File, and optionally speed
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LossCheck file.ogg [speed]");
+            System.exit(2);
+        }
+
+        double speed = args.length > 1 ?
+                Double.parseDouble(args[1]) : DEFAULT_SPEED;
+        LossCheck check = new LossCheck(new File(args[0]), speed);
+
+        // Single pages truncated or dropped
+        Impairment scattered = new Impairment();
+        scattered.setTruncation(0.02);
+        scattered.setDrops(0.02, 1);
+        scattered.setSeed(1);
+
+        // Outages longer than the concealment limit
+        Impairment outages = new Impairment();
+        outages.setDrops(0.01, (Decoder.MAX_CONCEAL + 1) * 1000);
+        outages.setSeed(2);
+
+        List<String> failures = new ArrayList<String>();
+        for (boolean pipelined : new boolean[] { false, true }) {
+            failures.add(check.run("scattered", scattered, false,
+                                   pipelined));
+            failures.add(check.run("outages", outages, true, pipelined));
+        }
+
+        boolean failed = false;
+        for (String failure : failures) {
+            if (failure != null) {
+                System.out.println("FAILED: " + failure);
+                failed = true;
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+}
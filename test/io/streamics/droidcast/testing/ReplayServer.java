@@ -0,0 +1,878 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package io.streamics.droidcast.testing;
+
+import io.streamics.droidcast.core.source.Source;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.jcraft.jogg.Packet;
+import com.jcraft.jogg.Page;
+import com.jcraft.jogg.StreamState;
+import com.jcraft.jogg.SyncState;
+import com.jcraft.jorbis.Comment;
+import com.jcraft.jorbis.Info;
+
+/**
+ * Local HTTP server standing in for an Icecast internet radio, replaying
+ * an OGG Vorbis file in a loop to every client as a live stream.
+ *
+ * Pages are sent at the pace given by their granule positions, optionally
+ * sped up, so a stream of several hours can be replayed in less time
+ * while the client still sees it arrive as if live. Each pass over the
+ * file continues the stream with new serial numbers and titles, so every
+ * chain of the file is a new track with new meta data, as on a radio.
+ *
+ * An {@link Impairment} can be set to simulate a bad network. The audio
+ * truncated or dropped is tallied in {@link Losses}, to compare with what
+ * a client reports.
+ */
+public class ReplayServer {
+    /**
+     * Sample rate assumed for pages before any identification header.
+     */
+    private static final int DEFAULT_RATE = 44100;
+
+    /**
+     * Largest possible OGG page.
+     */
+    private static final int MAX_PAGE_SIZE = 27 + 255 + 255 * 255;
+
+    /**
+     * Bytes written at once when the bandwidth is capped.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Time in nanoseconds a capped connection may be idle and then send
+     * at full speed to catch up.
+     */
+    private static final long MAX_BURST = 1000000000L;
+
+    // Page header fields
+    private static final int SERIAL_OFFSET = 14;
+    private static final int SEQUENCE_OFFSET = 18;
+    private static final int CHECKSUM_OFFSET = 22;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ?
+                        (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    /**
+     * Page of the replayed file.
+     */
+    private static class ReplayPage {
+        private byte[] data;
+        private long duration;
+        private long samples;
+    }
+
+    /**
+     * Audio truncated or dropped by impairments, over all clients.
+     */
+    public static class Losses {
+        private List<Long> gaps = new ArrayList<Long>();
+        private long pages = 0;
+        private long truncatedGaps = 0;
+
+        /**
+         * Add a run of consecutive lost pages.
+         *
+         * @param count Number of pages
+         * @param samples Samples per channel in the pages
+         * @param truncated Whether a page of the run was truncated
+         */
+        private synchronized void add(long count, long samples,
+                                      boolean truncated) {
+            gaps.add(samples);
+            pages += count;
+            if (truncated) {
+                truncatedGaps++;
+            }
+        }
+
+        /**
+         * Get number of runs of consecutive lost pages.
+         *
+         * @return Count
+         */
+        public synchronized int getGaps() {
+            return gaps.size();
+        }
+
+        /**
+         * Get number of runs including a truncated page, after which the
+         * client must find the next page in the data.
+         *
+         * @return Count
+         */
+        public synchronized long getTruncatedGaps() {
+            return this.truncatedGaps;
+        }
+
+        /**
+         * Get number of lost pages.
+         *
+         * @return Count
+         */
+        public synchronized long getPages() {
+            return this.pages;
+        }
+
+        /**
+         * Get amount of lost audio, each run counted up to a limit.
+         *
+         * @param limit Samples per channel counted at most per run
+         * @return Samples per channel
+         */
+        public synchronized long getSamples(long limit) {
+            long total = 0;
+            for (long gap : gaps) {
+                total += Math.min(gap, limit);
+            }
+            return total;
+        }
+
+        /**
+         * Get longest run of lost audio.
+         *
+         * @return Samples per channel
+         */
+        public synchronized long getLongestGap() {
+            long longest = 0;
+            for (long gap : gaps) {
+                longest = Math.max(longest, gap);
+            }
+            return longest;
+        }
+    }
+
+    /**
+     * Chain of the replayed file.
+     */
+    private static class Chain {
+        private List<ReplayPage> pages = new ArrayList<ReplayPage>();
+
+        // Vorbis headers, or null if the chain is replayed unchanged
+        private Packet identification;
+        private Packet setup;
+        private Info info;
+        private Comment comment;
+        private String title;
+        private int headerPages;
+    }
+
+    private List<Chain> chains = new ArrayList<Chain>();
+    private double speed;
+    private volatile int passes = 0;
+    private Losses losses = new Losses();
+    private Impairment impairment = new Impairment();
+    private String name = "Droidcast replay";
+    private String genre = "Test";
+
+    private ServerSocket server;
+    private Thread acceptor;
+    private List<Socket> clients = new ArrayList<Socket>();
+    private volatile boolean running = false;
+    private volatile long connections = 0;
+
+    /**
+     * Constructor for {@code ReplayServer}.
+     *
+     * @param file OGG Vorbis file
+     * @param speed Replay speed, {@code 1} for real time
+     * @throws IOException
+     */
+    public ReplayServer(File file, double speed) throws IOException {
+        this.speed = speed;
+
+        InputStream input = new FileInputStream(file);
+        try {
+            readPages(input);
+        } finally {
+            input.close();
+        }
+
+        if (chains.isEmpty()) {
+            throw new IOException("No OGG pages in " + file);
+        }
+
+        for (int i = 0; i < chains.size(); i++) {
+            readHeaders(chains.get(i), i);
+        }
+    }
+
+    /**
+     * Split the file into chains of pages, computing the duration of
+     * each page.
+     *
+     * @param input File stream
+     * @throws IOException
+     */
+    private void readPages(InputStream input) throws IOException {
+        SyncState sync = new SyncState();
+        Page page = new Page();
+        sync.init();
+
+        Chain chain = null;
+        int rate = DEFAULT_RATE;
+        long granule = 0;
+
+        while (true) {
+            int result = sync.pageout(page);
+            if (result == 0) {
+                int index = sync.buffer(4096);
+                int read = input.read(sync.data, index, 4096);
+                if (read < 0) {
+                    break;
+                }
+                sync.wrote(read);
+                continue;
+            }
+            if (result < 0) {
+                continue;
+            }
+
+            if (page.bos() != 0 || chain == null) {
+                chain = new Chain();
+                chains.add(chain);
+                rate = getRate(page, rate);
+                granule = 0;
+            }
+
+            ReplayPage replayed = new ReplayPage();
+            replayed.data = new byte[page.header_len + page.body_len];
+            System.arraycopy(page.header_base, page.header,
+                             replayed.data, 0, page.header_len);
+            System.arraycopy(page.body_base, page.body,
+                             replayed.data, page.header_len, page.body_len);
+
+            // Duration in microseconds, so chains of different rates are
+            // paced alike
+            long position = page.granulepos();
+            if (position > granule) {
+                replayed.duration = (position - granule) * 1000000 / rate;
+                replayed.samples = position - granule;
+                granule = position;
+            }
+
+            chain.pages.add(replayed);
+        }
+
+        sync.clear();
+    }
+
+    /**
+     * Read the Vorbis headers of a chain, so it can be sent with other
+     * serial numbers and titles. A chain whose headers share a page with
+     * audio is replayed unchanged.
+     *
+     * @param chain Chain
+     * @param index Chain number
+     */
+    private static void readHeaders(Chain chain, int index) {
+        SyncState sync = new SyncState();
+        StreamState stream = new StreamState();
+        Page page = new Page();
+        Packet packet = new Packet();
+        Packet[] headers = new Packet[3];
+        Info info = new Info();
+        Comment comment = new Comment();
+
+        sync.init();
+        info.init();
+        comment.init();
+
+        int count = 0;
+        int pages = 0;
+        while (count < 3 && pages < chain.pages.size()) {
+            byte[] data = chain.pages.get(pages++).data;
+            int offset = sync.buffer(data.length);
+            System.arraycopy(data, 0, sync.data, offset, data.length);
+            sync.wrote(data.length);
+            if (sync.pageout(page) != 1) {
+                return;
+            }
+
+            if (pages == 1) {
+                stream.init(page.serialno());
+            }
+            stream.pagein(page);
+
+            while (count < 3 && stream.packetout(packet) == 1) {
+                if (info.synthesis_headerin(comment, packet) < 0) {
+                    return;
+                }
+                headers[count++] = copy(packet);
+            }
+        }
+
+        if (count < 3 || stream.packetout(packet) != 0) {
+            return;
+        }
+
+        String title = comment.query("TITLE");
+        chain.title = title != null ? title : "Track " + (index + 1);
+        chain.identification = headers[0];
+        chain.setup = headers[2];
+        chain.info = info;
+        chain.comment = comment;
+        chain.headerPages = pages;
+    }
+
+    /**
+     * Copy a packet with its data.
+     *
+     * @param packet Packet
+     * @return Copy
+     */
+    private static Packet copy(Packet packet) {
+        Packet copy = new Packet();
+        copy.packet_base = new byte[packet.bytes];
+        System.arraycopy(packet.packet_base, packet.packet,
+                         copy.packet_base, 0, packet.bytes);
+        copy.packet = 0;
+        copy.bytes = packet.bytes;
+        copy.b_o_s = packet.b_o_s;
+        copy.e_o_s = packet.e_o_s;
+        copy.granulepos = packet.granulepos;
+        copy.packetno = packet.packetno;
+        return copy;
+    }
+
+    /**
+     * Get sample rate from the identification header in a page.
+     *
+     * @param page First page of a chain
+     * @param rate Rate to keep if the page is not a Vorbis header
+     * @return Sample rate
+     */
+    private static int getRate(Page page, int rate) {
+        byte[] body = page.body_base;
+        int offset = page.body;
+        if (page.body_len < 16 || body[offset] != 1 ||
+            body[offset + 1] != 'v') {
+            return rate;
+        }
+
+        int read = getInt(body, offset + 12);
+        return read > 0 ? read : rate;
+    }
+
+    /**
+     * Set impairments applied to clients connecting afterwards.
+     *
+     * @param impairment Impairment
+     */
+    public void setImpairment(Impairment impairment) {
+        this.impairment = impairment;
+    }
+
+    /**
+     * Get impairments.
+     *
+     * @return Impairment
+     */
+    public Impairment getImpairment() {
+        return this.impairment;
+    }
+
+    /**
+     * Set number of passes over the file, after which each client is
+     * disconnected.
+     *
+     * @param passes Passes, or {@code 0} to replay until closed
+     */
+    public void setPasses(int passes) {
+        this.passes = passes;
+    }
+
+    /**
+     * Get audio lost to impairments so far.
+     *
+     * @return Losses
+     */
+    public Losses getLosses() {
+        return this.losses;
+    }
+
+    /**
+     * Set station name and genre sent as ICY headers.
+     *
+     * @param name Name
+     * @param genre Genre
+     */
+    public void setStation(String name, String genre) {
+        this.name = name;
+        this.genre = genre;
+    }
+
+    /**
+     * Start accepting clients on a free local port.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        running = true;
+
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Replay server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stop the server, disconnecting all clients.
+     */
+    public void close() {
+        running = false;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (clients) {
+            for (Socket client : clients) {
+                closeQuietly(client);
+            }
+            clients.clear();
+        }
+    }
+
+    /**
+     * Get stream URL.
+     *
+     * @return URL
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getLocalPort() + "/";
+    }
+
+    /**
+     * Get number of clients served so far.
+     *
+     * @return Count
+     */
+    public long getConnections() {
+        return this.connections;
+    }
+
+    /**
+     * Accept loop.
+     */
+    private void accept() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            synchronized (clients) {
+                clients.add(socket);
+            }
+
+            final Client client = new Client(socket, impairment,
+                                              connections++);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.serve();
+                    } catch (IOException e) {
+                        // Client disconnected or connection reset
+                    } finally {
+                        synchronized (clients) {
+                            clients.remove(socket);
+                        }
+                        closeQuietly(socket);
+                    }
+                }
+            }, "Replay client");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Connection of a client.
+     */
+    private class Client {
+        private Socket socket;
+        private OutputStream output;
+        private Impairment impairment;
+        private Random random;
+        private byte[] buffer = new byte[MAX_PAGE_SIZE];
+
+        // Replay schedule
+        private long start;
+        private long time = 0;
+        private long capped;
+
+        // Run of lost pages
+        private long dropping = 0;
+        private long gapPages = 0;
+        private long gapSamples = 0;
+        private boolean gapTruncated = false;
+
+        /**
+         * Constructor for {@code Client}.
+         *
+         * @param socket Socket
+         * @param impairment Impairment
+         * @param number Connection number
+         */
+        public Client(Socket socket, Impairment impairment, long number) {
+            this.socket = socket;
+            this.impairment = impairment;
+            this.random = new Random(impairment.getSeed() * 31 + number);
+        }
+
+        /**
+         * Serve the client until it disconnects.
+         *
+         * @throws IOException
+         */
+        public void serve() throws IOException {
+            BufferedReader request = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(),
+                                          "US-ASCII"));
+            String line;
+            do {
+                line = request.readLine();
+            } while (line != null && line.length() > 0);
+
+            output = socket.getOutputStream();
+            output.write(("HTTP/1.0 200 OK\r\n" +
+                          "Server: Icecast 2.4.0\r\n" +
+                          "Content-Type: " +
+                          Source.ContentType.CONTENT_TYPE_OGG + "\r\n" +
+                          Source.Icy.ICY_HEADER_NAME + ": " + name + "\r\n" +
+                          Source.Icy.ICY_HEADER_GENRE + ": " + genre +
+                          "\r\n" +
+                          "icy-pub: 0\r\n" +
+                          "Cache-Control: no-cache\r\n" +
+                          "\r\n").getBytes("UTF-8"));
+
+            start = System.nanoTime();
+            capped = start;
+
+            for (int pass = 0; running && (passes == 0 || pass < passes);
+                 pass++) {
+                for (Chain chain : chains) {
+                    if (chain.identification != null) {
+                        sendChain(chain, pass);
+                    } else {
+                        for (ReplayPage page : chain.pages) {
+                            System.arraycopy(page.data, 0, buffer, 0,
+                                             page.data.length);
+                            send(page.data.length, page.duration);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Send a chain with a new serial number and title.
+         *
+         * @param chain Chain
+         * @param pass Number of passes over the file so far
+         * @throws IOException
+         */
+        private void sendChain(Chain chain, int pass) throws IOException {
+            int serial = random.nextInt();
+            StreamState stream = new StreamState();
+            Page page = new Page();
+            stream.init(serial);
+
+            // Headers
+            Comment comment = new Comment();
+            comment.init();
+            for (int i = 0; i < chain.comment.comments; i++) {
+                String entry = chain.comment.getComment(i);
+                if (!entry.regionMatches(true, 0, "TITLE=", 0, 6)) {
+                    comment.add(entry);
+                }
+            }
+            comment.add_tag("TITLE", chain.title + " #" + (pass + 1));
+
+            Packet packet = new Packet();
+            comment.header_out(packet);
+            packet.packetno = 1;
+
+            stream.packetin(chain.identification);
+            int pages = 0;
+            while (stream.flush(page) != 0) {
+                sendPage(page);
+                pages++;
+            }
+            stream.packetin(packet);
+            stream.packetin(chain.setup);
+            while (stream.flush(page) != 0) {
+                sendPage(page);
+                pages++;
+            }
+
+            // Audio, numbered after the new header pages
+            int shift = pages - chain.headerPages;
+            int last = chain.pages.size() - 1;
+            for (int i = chain.headerPages; i <= last; i++) {
+                ReplayPage replayed = chain.pages.get(i);
+                byte[] data = replayed.data;
+                System.arraycopy(data, 0, buffer, 0, data.length);
+
+                putInt(buffer, SERIAL_OFFSET, serial);
+                putInt(buffer, SEQUENCE_OFFSET,
+                       getInt(data, SEQUENCE_OFFSET) + shift);
+                putInt(buffer, CHECKSUM_OFFSET, 0);
+                putInt(buffer, CHECKSUM_OFFSET,
+                       checksum(buffer, data.length));
+
+                int length = data.length;
+                if (i > chain.headerPages && i < last) {
+                    length = impair(replayed);
+                } else {
+                    dropping = 0;
+                    endGap();
+                }
+                send(length, replayed.duration);
+            }
+        }
+
+        /**
+         * Drop or truncate a page, tallying runs of lost pages.
+         *
+         * @param page Page
+         * @return Bytes of the page to send
+         */
+        private int impair(ReplayPage page) {
+            int length = page.data.length;
+            boolean truncated = false;
+
+            if (dropping <= 0 &&
+                random.nextDouble() < impairment.getDropProbability()) {
+                dropping = impairment.getDropTime() * 1000;
+            }
+
+            if (dropping > 0) {
+                dropping -= page.duration;
+                length = 0;
+            } else if (random.nextDouble() <
+                       impairment.getTruncateProbability()) {
+                length = 1 + random.nextInt(length - 1);
+                truncated = true;
+            }
+
+            if (length < page.data.length) {
+                gapPages++;
+                gapSamples += page.samples;
+                gapTruncated |= truncated;
+            } else {
+                endGap();
+            }
+            return length;
+        }
+
+        /**
+         * Tally the run of lost pages ended by a page sent whole.
+         */
+        private void endGap() {
+            if (gapPages > 0) {
+                losses.add(gapPages, gapSamples, gapTruncated);
+                gapPages = 0;
+                gapSamples = 0;
+                gapTruncated = false;
+            }
+        }
+
+        /**
+         * Send a page built by a stream state.
+         *
+         * @param page Page
+         * @throws IOException
+         */
+        private void sendPage(Page page) throws IOException {
+            System.arraycopy(page.header_base, page.header,
+                             buffer, 0, page.header_len);
+            System.arraycopy(page.body_base, page.body,
+                             buffer, page.header_len, page.body_len);
+            send(page.header_len + page.body_len, 0);
+        }
+
+        /**
+         * Send the page in the buffer with impairments and wait until the
+         * next page is due.
+         *
+         * @param length Page size in bytes
+         * @param duration Duration of the page in microseconds
+         * @throws IOException
+         */
+        private void send(int length, long duration) throws IOException {
+            if (random.nextDouble() < impairment.getResetProbability()) {
+                socket.setSoLinger(true, 0);
+                throw new IOException("Reset");
+            }
+            write(length);
+
+            time += duration;
+            long due = start + (long) (time * 1000 / speed);
+            if (impairment.getJitter() > 0) {
+                due += (long) (random.nextDouble() *
+                               impairment.getJitter() * 1000000);
+            }
+            if (random.nextDouble() < impairment.getStallProbability()) {
+                due = Math.max(due, System.nanoTime() +
+                                    impairment.getStallTime() * 1000000);
+            }
+            waitUntil(due);
+        }
+
+        /**
+         * Write from the buffer within the bandwidth cap.
+         *
+         * @param length Bytes
+         * @throws IOException
+         */
+        private void write(int length) throws IOException {
+            int bandwidth = impairment.getBandwidth();
+            if (bandwidth <= 0) {
+                output.write(buffer, 0, length);
+                return;
+            }
+
+            for (int off = 0; off < length; off += CHUNK_SIZE) {
+                int size = Math.min(CHUNK_SIZE, length - off);
+                capped = Math.max(capped, System.nanoTime() - MAX_BURST);
+                capped += size * 1000000000L / bandwidth;
+                waitUntil(capped);
+                output.write(buffer, off, size);
+            }
+        }
+    }
+
+    /**
+     * Sleep until a time.
+     *
+     * @param due Time in nanoseconds
+     * @throws IOException
+     */
+    private static void waitUntil(long due) throws IOException {
+        long wait = (due - System.nanoTime()) / 1000000;
+        if (wait <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * Compute OGG page checksum.
+     *
+     * @param data Page with a zero checksum field
+     * @param length Page size in bytes
+     * @return Checksum
+     */
+    private static int checksum(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    /**
+     * Read a little endian integer.
+     *
+     * @param data Data
+     * @param offset Offset
+     * @return Value
+     */
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) |
+               (data[offset + 1] & 0xff) << 8 |
+               (data[offset + 2] & 0xff) << 16 |
+               (data[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Write a little endian integer.
+     *
+     * @param data Data
+     * @param offset Offset
+     * @param value Value
+     */
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Close a socket ignoring errors.
+     *
+     * @param socket Socket
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
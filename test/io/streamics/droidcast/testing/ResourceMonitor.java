@@ -0,0 +1,442 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package io.streamics.droidcast.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Monitor of heap, allocation, garbage collection pauses and threads of
+ * a long running process, detecting leaks by their growth.
+ *
+ * A background thread wakes up every {@link #TICK} milliseconds. Waking
+ * up late means the process was paused, mostly by the garbage collector,
+ * and the used heap read on every tick gives the amount allocated since
+ * the previous tick. Neither needs a management API, which Android does
+ * not provide.
+ *
+ * Heap after garbage collection and thread count are recorded by calling
+ * {@link #sample()} at a regular interval. Growth is measured between the
+ * smallest values of a window of samples after warmup and of the latest
+ * window, so a single sample taken during a burst of activity is not
+ * mistaken for a leak.
+ */
+public class ResourceMonitor {
+    /**
+     * Interval in milliseconds of the pause detection thread.
+     */
+    public static final int TICK = 5;
+
+    /**
+     * Number of samples compared at the start and at the end.
+     */
+    public static final int WINDOW = 5;
+
+    /**
+     * Number of garbage collections requested to settle the heap.
+     */
+    private static final int COLLECTIONS = 3;
+
+    /**
+     * Recorded sample.
+     */
+    public static class Sample {
+        private long time;
+        private long heap;
+        private long allocated;
+        private int threads;
+        private long maxPause;
+        private long pauses;
+
+        /**
+         * Get time of the sample.
+         *
+         * @return Milliseconds since the monitor started
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        /**
+         * Get used heap after garbage collection.
+         *
+         * @return Bytes
+         */
+        public long getHeap() {
+            return this.heap;
+        }
+
+        /**
+         * Get amount allocated since the previous sample.
+         *
+         * @return Bytes
+         */
+        public long getAllocated() {
+            return this.allocated;
+        }
+
+        /**
+         * Get number of live threads.
+         *
+         * @return Count
+         */
+        public int getThreads() {
+            return this.threads;
+        }
+
+        /**
+         * Get longest pause since the previous sample.
+         *
+         * @return Milliseconds
+         */
+        public long getMaxPause() {
+            return this.maxPause;
+        }
+
+        /**
+         * Get number of pauses longer than the pause limit since the
+         * previous sample.
+         *
+         * @return Count
+         */
+        public long getPauses() {
+            return this.pauses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%6ds heap %7d KB alloc %8d KB threads %3d " +
+                    "pause %4d ms (%d long)",
+                    time / 1000, heap / 1024, allocated / 1024, threads,
+                    maxPause, pauses);
+        }
+    }
+
+    private final Runtime runtime = Runtime.getRuntime();
+    private final List<Sample> samples = new ArrayList<Sample>();
+    private Thread detector;
+    private volatile boolean running = false;
+    private long startTime;
+
+    // Limits
+    private int warmup = 2;
+    private long maxHeapGrowth = 4 * 1024 * 1024;
+    private int maxThreadGrowth = 2;
+    private long maxPause = 200;
+
+    // Measured by the detector, reset by each sample
+    private final Object lock = new Object();
+    private long allocated;
+    private long intervalMaxPause;
+    private long intervalPauses;
+    private long totalPauses;
+    private long worstPause;
+
+    // Changed around requested collections, which are not counted as pauses
+    private volatile int collecting = 0;
+
+    /**
+     * Set number of samples taken before the baseline window, while
+     * caches and pools are still filling.
+     *
+     * @param samples Count
+     */
+    public void setWarmup(int samples) {
+        this.warmup = samples;
+    }
+
+    /**
+     * Set allowed growth of the heap after garbage collection.
+     *
+     * @param bytes Bytes
+     */
+    public void setMaxHeapGrowth(long bytes) {
+        this.maxHeapGrowth = bytes;
+    }
+
+    /**
+     * Set allowed growth of the number of threads.
+     *
+     * @param threads Count
+     */
+    public void setMaxThreadGrowth(int threads) {
+        this.maxThreadGrowth = threads;
+    }
+
+    /**
+     * Set longest allowed pause.
+     *
+     * @param milliseconds Milliseconds
+     */
+    public void setMaxPause(long milliseconds) {
+        this.maxPause = milliseconds;
+    }
+
+    /**
+     * Start detecting pauses and measuring allocation.
+     */
+    public void start() {
+        startTime = System.currentTimeMillis();
+        running = true;
+
+        detector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                detect();
+            }
+        }, "Resource monitor");
+        detector.setDaemon(true);
+        detector.setPriority(Thread.MAX_PRIORITY);
+        detector.start();
+    }
+
+    /**
+     * Stop detecting pauses.
+     */
+    public void stop() {
+        running = false;
+        if (detector != null) {
+            detector.interrupt();
+            try {
+                detector.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            detector = null;
+        }
+    }
+
+    /**
+     * Pause detection loop.
+     */
+    private void detect() {
+        long used = getUsed();
+        long last = System.nanoTime();
+
+        while (running) {
+            int before = collecting;
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            long pause = (now - last) / 1000000 - TICK;
+            last = now;
+
+            long current = getUsed();
+            long difference = current - used;
+            used = current;
+
+            // Skip ticks overlapping requested collections
+            if (before != collecting || (before & 1) != 0) {
+                continue;
+            }
+
+            synchronized (lock) {
+                // Used heap drops when collected, missing what was
+                // allocated during that tick only
+                if (difference > 0) {
+                    allocated += difference;
+                }
+                if (pause > intervalMaxPause) {
+                    intervalMaxPause = pause;
+                }
+                if (pause > maxPause) {
+                    intervalPauses++;
+                    totalPauses++;
+                }
+                if (pause > worstPause) {
+                    worstPause = pause;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get used heap.
+     *
+     * @return Bytes
+     */
+    private long getUsed() {
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Record a sample, collecting garbage first.
+     *
+     * @return Sample
+     */
+    public Sample sample() {
+        collecting++;
+        for (int i = 0; i < COLLECTIONS; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        long heap = getUsed();
+        collecting++;
+
+        Sample sample = new Sample();
+        sample.time = System.currentTimeMillis() - startTime;
+        sample.heap = heap;
+        sample.threads = Thread.activeCount();
+
+        synchronized (lock) {
+            sample.allocated = allocated;
+            sample.maxPause = intervalMaxPause;
+            sample.pauses = intervalPauses;
+            allocated = 0;
+            intervalMaxPause = 0;
+            intervalPauses = 0;
+        }
+
+        synchronized (samples) {
+            samples.add(sample);
+        }
+        return sample;
+    }
+
+    /**
+     * Get recorded samples.
+     *
+     * @return Copy of the samples in order
+     */
+    public List<Sample> getSamples() {
+        synchronized (samples) {
+            return new ArrayList<Sample>(samples);
+        }
+    }
+
+    /**
+     * Get allocation rate over the recorded samples.
+     *
+     * @return Bytes per second
+     */
+    public long getAllocationRate() {
+        List<Sample> recorded = getSamples();
+        if (recorded.isEmpty()) {
+            return 0;
+        }
+
+        long bytes = 0;
+        for (Sample sample : recorded) {
+            bytes += sample.allocated;
+        }
+        long time = recorded.get(recorded.size() - 1).time;
+        return time > 0 ? bytes * 1000 / time : 0;
+    }
+
+    /**
+     * Get longest pause so far.
+     *
+     * @return Milliseconds
+     */
+    public long getWorstPause() {
+        synchronized (lock) {
+            return this.worstPause;
+        }
+    }
+
+    /**
+     * Get growth of the heap after garbage collection.
+     *
+     * @return Bytes, or 0 if not enough samples were recorded
+     */
+    public long getHeapGrowth() {
+        List<Sample> recorded = getSamples();
+        if (recorded.size() < warmup + 2 * WINDOW) {
+            return 0;
+        }
+
+        long first = Long.MAX_VALUE;
+        long last = Long.MAX_VALUE;
+        for (int i = 0; i < WINDOW; i++) {
+            first = Math.min(first, recorded.get(warmup + i).heap);
+            last = Math.min(last,
+                            recorded.get(recorded.size() - 1 - i).heap);
+        }
+        return last - first;
+    }
+
+    /**
+     * Get growth of the number of threads.
+     *
+     * @return Count, or 0 if not enough samples were recorded
+     */
+    public int getThreadGrowth() {
+        List<Sample> recorded = getSamples();
+        if (recorded.size() < warmup + 2 * WINDOW) {
+            return 0;
+        }
+
+        int first = Integer.MAX_VALUE;
+        int last = Integer.MAX_VALUE;
+        for (int i = 0; i < WINDOW; i++) {
+            first = Math.min(first, recorded.get(warmup + i).threads);
+            last = Math.min(last,
+                            recorded.get(recorded.size() - 1 - i).threads);
+        }
+        return last - first;
+    }
+
+    /**
+     * Check the recorded samples against the limits.
+     *
+     * @return Description of the exceeded limits, or {@code null} if none
+     */
+    public String getFailure() {
+        StringBuilder failure = new StringBuilder();
+
+        long heapGrowth = getHeapGrowth();
+        if (heapGrowth > maxHeapGrowth) {
+            failure.append(String.format(
+                    "heap grew by %d KB, limit %d KB; ",
+                    heapGrowth / 1024, maxHeapGrowth / 1024));
+        }
+
+        int threadGrowth = getThreadGrowth();
+        if (threadGrowth > maxThreadGrowth) {
+            failure.append(String.format(
+                    "threads grew by %d, limit %d; ",
+                    threadGrowth, maxThreadGrowth));
+        }
+
+        long pauses;
+        synchronized (lock) {
+            pauses = totalPauses;
+        }
+        if (pauses > 0) {
+            failure.append(String.format(
+                    "%d pauses longer than %d ms, longest %d ms; ",
+                    pauses, maxPause, getWorstPause()));
+        }
+
+        if (failure.length() == 0) {
+            return null;
+        }
+        failure.setLength(failure.length() - 2);
+        return failure.toString();
+    }
+}
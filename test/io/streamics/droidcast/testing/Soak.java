@@ -0,0 +1,240 @@
+/*
+ * Droidcast
+ *
+ * Copyright 2015 Sebastian Nogara <snogaraleal@gmail.com>
+ *
+ * This file is part of Droidcast.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+
+package io.streamics.droidcast.testing;
+
+import io.streamics.droidcast.core.decoder.Decoder;
+import io.streamics.droidcast.core.decoder.DecoderThread;
+import io.streamics.droidcast.core.decoder.Meta;
+import io.streamics.droidcast.core.source.Source;
+
+import java.io.File;
+
+import com.jcraft.jorbis.Info;
+
+/**
+ * Headless soak test playing a chained OGG Vorbis file from a local
+ * {@link ReplayServer} for hours, failing if heap or threads keep growing
+ * or garbage collection pauses are long enough to be audible.
+ *
+ * The stream is decoded without playback, at the speed of the server, and
+ * reconnected at a regular interval so restarting a stream is covered as
+ * well. Run as:
+ *
+ * <pre>
+ * java io.streamics.droidcast.testing.Soak file.ogg [hours] [speed]
+ * </pre>
+ *
+ * A sample is printed every {@link #SAMPLE_INTERVAL} milliseconds, and
+ * the process exits with status 1 if a limit of the
+ * {@link ResourceMonitor} was exceeded.
+ */
+public class Soak {
+    /**
+     * Interval in milliseconds between samples.
+     */
+    public static final long SAMPLE_INTERVAL = 30000;
+
+    /**
+     * Interval in milliseconds between reconnections.
+     */
+    public static final long RECONNECT_INTERVAL = 10 * 60000;
+
+    /**
+     * Time in milliseconds given to the decoder to stop on its own before
+     * the connection is closed.
+     */
+    public static final long STOP_TIMEOUT = 2000;
+
+    /**
+     * Default duration in hours.
+     */
+    public static final double DEFAULT_HOURS = 1;
+
+    /**
+     * Default replay speed.
+     */
+    public static final double DEFAULT_SPEED = 8;
+
+    /**
+     * Consumer counting decoded audio and chains.
+     */
+    private static class Counter implements Decoder.Consumer {
+        private volatile long bytes = 0;
+        private volatile long chains = 0;
+
+        @Override
+        public void onInfo(Info info) {
+            chains++;
+        }
+
+        @Override
+        public void onMeta(Meta meta) {
+        }
+
+        @Override
+        public void onRead(byte[] data, int off, int len) {
+            bytes += len;
+        }
+
+        @Override
+        public void onFinish() {
+        }
+    }
+
+    private ReplayServer server;
+    private ResourceMonitor monitor = new ResourceMonitor();
+    private Counter counter = new Counter();
+    private Source source;
+    private DecoderThread thread;
+    private long reconnections = 0;
+
+    /**
+     * Constructor for {@code Soak}.
+     *
+     * @param server Server replaying the stream, not started yet
+     */
+    public Soak(ReplayServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Get resource monitor, to change its limits before running.
+     *
+     * @return Monitor
+     */
+    public ResourceMonitor getMonitor() {
+        return this.monitor;
+    }
+
+    /**
+     * Run the soak test.
+     *
+     * @param duration Milliseconds
+     * @return Description of the exceeded limits, or {@code null} if none
+     * @throws Exception
+     */
+    public String run(long duration) throws Exception {
+        server.start();
+        monitor.start();
+
+        long start = System.currentTimeMillis();
+        long nextReconnect = start + RECONNECT_INTERVAL;
+
+        try {
+            connect();
+
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (now - start >= duration) {
+                    break;
+                }
+
+                Thread.sleep(Math.min(SAMPLE_INTERVAL,
+                                      start + duration - now));
+
+                now = System.currentTimeMillis();
+                if (now >= nextReconnect || !thread.isAlive()) {
+                    disconnect();
+                    connect();
+                    reconnections++;
+                    nextReconnect = now + RECONNECT_INTERVAL;
+                }
+
+                ResourceMonitor.Sample sample = monitor.sample();
+                System.out.println(sample + String.format(
+                        " decoded %d MB chains %d reconnections %d",
+                        counter.bytes / (1024 * 1024), counter.chains,
+                        reconnections));
+            }
+        } finally {
+            disconnect();
+            monitor.stop();
+            server.close();
+        }
+
+        System.out.println(String.format(
+                "heap growth %d KB, thread growth %d, allocation %d KB/s, " +
+                "longest pause %d ms",
+                monitor.getHeapGrowth() / 1024, monitor.getThreadGrowth(),
+                monitor.getAllocationRate() / 1024,
+                monitor.getWorstPause()));
+
+        return monitor.getFailure();
+    }
+
+    /**
+     * Connect to the server and start decoding.
+     *
+     * @throws Exception
+     */
+    private void connect() throws Exception {
+        source = new Source(server.getUrl());
+        thread = new DecoderThread(source.getStream());
+        thread.getDecoder().addConsumer(counter);
+        thread.start();
+    }
+
+    /**
+     * Stop decoding and disconnect.
+     *
+     * @throws InterruptedException
+     */
+    private void disconnect() throws InterruptedException {
+        if (thread != null) {
+            // Let the decoder finish its current read before closing
+            thread.stopDecoder();
+            thread.join(STOP_TIMEOUT);
+            source.close();
+            thread.join();
+            thread = null;
+            source = null;
+        }
+    }
+
+    /**
+     * Run from the command line.
+     *
+     * @param args File, and optionally hours and speed
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: Soak file.ogg [hours] [speed]");
+            System.exit(2);
+        }
+
+        double hours = args.length > 1 ?
+                Double.parseDouble(args[1]) : DEFAULT_HOURS;
+        double speed = args.length > 2 ?
+                Double.parseDouble(args[2]) : DEFAULT_SPEED;
+
+        Soak soak = new Soak(new ReplayServer(new File(args[0]), speed));
+        String failure = soak.run((long) (hours * 3600000));
+
+        if (failure != null) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+}